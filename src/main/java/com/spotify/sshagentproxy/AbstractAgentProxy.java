@@ -0,0 +1,193 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * A skeletal implementation of {@link AgentProxy} that implements the methods which don't need
+ * to talk to ssh-agent.
+ */
+public abstract class AbstractAgentProxy implements AgentProxy {
+
+  // The most sign requests that are written before their replies are read. The replies have to
+  // fit in the socket buffers, or ssh-agent would stop reading requests while its replies wait.
+  static final int MAX_OUTSTANDING_SIGN_REQUESTS = 32;
+
+  @Override
+  public byte[] sign(final Identity identity, final Path path) throws IOException {
+    try (final FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      return sign(identity, file, file.size());
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation reads the data into memory and calls {@link #sign(Identity, byte[])},
+   * so its memory use does depend on {@code length}, which can't be more than
+   * {@link Integer#MAX_VALUE}. Implementations that write to ssh-agent themselves should override
+   * it to stream the data.
+   */
+  @Override
+  public byte[] sign(final Identity identity, final ReadableByteChannel src, final long length)
+      throws IOException {
+    checkArgument(length >= 0 && length <= Integer.MAX_VALUE,
+                  "Data length must be between 0 and %s bytes.", Integer.MAX_VALUE);
+    final ByteBuffer data = ByteBuffer.allocate((int) length);
+    while (data.hasRemaining()) {
+      if (src.read(data) < 0) {
+        throw new EOFException("Channel ended before the requested length was read.");
+      }
+    }
+    return sign(identity, data.array());
+  }
+
+  @Override
+  public List<byte[]> signAll(final Identity identity, final List<byte[]> data)
+      throws IOException {
+    final List<byte[]> signatures = Lists.newArrayListWithCapacity(data.size());
+    signAll(identity, data.iterator(), new SignatureConsumer() {
+      @Override
+      public void accept(final byte[] signed, final byte[] signature) {
+        signatures.add(signature);
+      }
+    });
+    return signatures;
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation prepares the identity once and signs each payload with
+   * {@link #sign(Identity, byte[])} in turn. Implementations that can pipeline should override it.
+   */
+  @Override
+  public void signAll(final Identity identity, final Iterator<byte[]> data,
+                      final SignatureConsumer consumer) throws IOException {
+    final PreparedIdentity prepared = prepare(identity);
+    while (data.hasNext()) {
+      final byte[] next = data.next();
+      consumer.accept(next, sign(prepared, next));
+    }
+  }
+
+  /**
+   * Sign payloads with an {@link AsyncAgentProxy}, keeping up to
+   * {@link #MAX_OUTSTANDING_SIGN_REQUESTS} requests in flight.
+   */
+  static void signAll(final AsyncAgentProxy proxy, final Identity identity,
+                      final Iterator<byte[]> data, final SignatureConsumer consumer)
+      throws IOException {
+    final PreparedIdentity prepared = PreparedIdentity.of(identity);
+    final Queue<byte[]> outstanding = new ArrayDeque<>();
+    final Queue<ListenableFuture<byte[]>> signatures = new ArrayDeque<>();
+    while (data.hasNext() || !outstanding.isEmpty()) {
+      if (data.hasNext() && outstanding.size() < MAX_OUTSTANDING_SIGN_REQUESTS) {
+        final byte[] next = data.next();
+        outstanding.add(next);
+        signatures.add(proxy.signAsync(prepared, next));
+      } else {
+        consumer.accept(outstanding.remove(), PendingRequest.await(signatures.remove()));
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This implementation signs with each identity in turn.
+   */
+  @Override
+  public Map<Identity, byte[]> signWithEach(final List<Identity> identities, final byte[] data)
+      throws IOException {
+    final Map<Identity, byte[]> signatures = Maps.newLinkedHashMap();
+    for (final Identity identity : identities) {
+      signatures.put(identity, sign(identity, data));
+    }
+    return signatures;
+  }
+
+  /**
+   * Sign with each identity using an {@link AsyncAgentProxy}, sending every request before
+   * waiting for the first reply.
+   */
+  static Map<Identity, byte[]> signWithEach(final AsyncAgentProxy proxy,
+                                            final List<Identity> identities, final byte[] data)
+      throws IOException {
+    final List<ListenableFuture<byte[]>> futures =
+        Lists.newArrayListWithCapacity(identities.size());
+    for (final Identity identity : identities) {
+      futures.add(proxy.signAsync(identity, data));
+    }
+    return awaitEach(identities, futures);
+  }
+
+  /**
+   * Wait for the signature of each identity.
+   */
+  static Map<Identity, byte[]> awaitEach(final List<Identity> identities,
+                                         final List<ListenableFuture<byte[]>> futures)
+      throws IOException {
+    final Map<Identity, byte[]> signatures = Maps.newLinkedHashMap();
+    for (int i = 0; i < identities.size(); i++) {
+      signatures.put(identities.get(i), PendingRequest.await(futures.get(i)));
+    }
+    return signatures;
+  }
+
+  @Override
+  public PreparedIdentity prepare(final Identity identity) {
+    return PreparedIdentity.of(identity);
+  }
+}
@@ -0,0 +1,671 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jnr.enxio.channels.NativeSelectorProvider;
+import jnr.unixsocket.UnixSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single thread that drives any number of non-blocking connections to ssh-agents. Each
+ * connection is exposed as an {@link AsyncAgentProxy}. Requests are queued by the calling thread
+ * and written by the event loop, which also reads and decodes the replies, so the number of
+ * connections doesn't affect the number of threads.
+ *
+ * <p>Futures are completed on the event loop thread. Callbacks attached to them must not block.
+ */
+public final class AgentEventLoop implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(AgentEventLoop.class);
+
+  private static final AtomicInteger LOOP_COUNT = new AtomicInteger();
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+  // Streamed sign requests are handed to the event loop in this many chunks of this size at most.
+  private static final int STREAM_CHUNKS = 2;
+  private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+  // Marks the end of a streamed message, or that it was aborted.
+  private static final ByteBuffer END_OF_MESSAGE = ByteBuffer.allocate(0);
+
+  private final Selector selector;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private final Set<Connection> connections = Sets.newConcurrentHashSet();
+  // Only used by the event loop thread
+  private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+  private final Thread thread;
+
+  private volatile boolean closed;
+
+  private AgentEventLoop(final Selector selector) {
+    this.selector = selector;
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        loop();
+      }
+    }, "ssh-agent-event-loop-" + LOOP_COUNT.incrementAndGet());
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * Start a new event loop thread.
+   * @return An {@link AgentEventLoop}
+   */
+  public static AgentEventLoop open() throws IOException {
+    return new AgentEventLoop(NativeSelectorProvider.getInstance().openSelector());
+  }
+
+  /**
+   * Connect to the ssh-agent listening on the socket named by the SSH_AUTH_SOCK environment
+   * variable.
+   * @return An {@link AsyncAgentProxy} driven by this event loop.
+   */
+  public AsyncAgentProxy connect() throws IOException {
+    return connect(AgentProxies.DefaultAgentProxy.socketFileFromEnvironmentVariable());
+  }
+
+  /**
+   * Connect to the ssh-agent listening on a Unix domain socket.
+   * @param socketFile The path of the ssh-agent's socket.
+   * @return An {@link AsyncAgentProxy} driven by this event loop.
+   */
+  public AsyncAgentProxy connect(final File socketFile) throws IOException {
+    checkNotNull(socketFile, "socketFile cannot be null.");
+    return register(AgentProxies.openChannel(socketFile));
+  }
+
+  /**
+   * Hand a connected channel over to this event loop.
+   */
+  AsyncAgentProxy register(final UnixSocketChannel channel) throws IOException {
+    if (closed) {
+      channel.close();
+      throw new IOException("This AgentEventLoop is closed.");
+    }
+    channel.configureBlocking(false);
+    final Connection connection = new Connection(channel);
+    connections.add(connection);
+    if (closed) {
+      // The event loop stopped before it could see this connection.
+      connection.fail(new IOException("This AgentEventLoop is closed."));
+      return connection;
+    }
+    execute(new Runnable() {
+      @Override
+      public void run() {
+        connection.register();
+      }
+    });
+    return connection;
+  }
+
+  /**
+   * Run a task on the event loop thread.
+   */
+  private void execute(final Runnable task) {
+    tasks.add(task);
+    selector.wakeup();
+  }
+
+  private void loop() {
+    try {
+      while (!closed) {
+        selector.select();
+
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+
+        final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          final SelectionKey key = keys.next();
+          keys.remove();
+          final Connection connection = (Connection) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.onWritable();
+            }
+          } catch (Throwable t) {
+            connection.fail(t);
+          }
+        }
+      }
+    } catch (Throwable t) {
+      log.error("ssh-agent event loop failed.", t);
+    } finally {
+      closed = true;
+      for (final Connection connection : connections) {
+        connection.fail(new IOException("The AgentEventLoop is closed."));
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        log.debug("Error closing selector.", e);
+      }
+    }
+  }
+
+  /**
+   * Return the number of open connections driven by this event loop.
+   */
+  int connections() {
+    return connections.size();
+  }
+
+  /**
+   * Stop the event loop and close all of its connections.
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("thread", thread.getName())
+        .add("connections", connections.size())
+        .add("closed", closed)
+        .toString();
+  }
+
+  /**
+   * A connection to ssh-agent. Callers enqueue requests and the event loop thread writes them,
+   * reads replies and completes the oldest pending request with each one.
+   */
+  private class Connection extends AbstractAgentProxy implements AsyncAgentProxy {
+
+    private final UnixSocketChannel channel;
+    private final Queue<PendingRequest<?>> pending = new ConcurrentLinkedQueue<>();
+    private final Queue<Message> writes = new ConcurrentLinkedQueue<>();
+    // Only used by the event loop thread
+    private final AgentFrameDecoder decoder = new AgentFrameDecoder();
+    private SelectionKey key;
+
+    private volatile boolean closed;
+    private volatile Throwable failure;
+
+    private final Runnable flush = new Runnable() {
+      @Override
+      public void run() {
+        updateInterest();
+      }
+    };
+
+    private Connection(final UnixSocketChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public List<Identity> list() throws IOException {
+      return PendingRequest.await(listAsync());
+    }
+
+    @Override
+    public List<Identity> list(final long timeout, final TimeUnit unit) throws IOException {
+      return PendingRequest.await(listAsync(), timeout, unit);
+    }
+
+    @Override
+    public byte[] sign(final Identity identity, final byte[] data) throws IOException {
+      return PendingRequest.await(signAsync(identity, data));
+    }
+
+    @Override
+    public byte[] sign(final Identity identity, final byte[] data, final long timeout,
+                       final TimeUnit unit) throws IOException {
+      return PendingRequest.await(signAsync(identity, data), timeout, unit);
+    }
+
+    @Override
+    public AgentSignature sign(final Identity identity, final byte[] data,
+                               final String algorithm) throws IOException {
+      return PendingRequest.await(signAsync(identity, data, algorithm));
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>The calling thread reads the data and hands it to the event loop a chunk at a time, so
+     * other requests are written after it.
+     */
+    @Override
+    public byte[] sign(final Identity identity, final ReadableByteChannel src, final long length)
+        throws IOException {
+      final RuntimeException unsupported = KeyCodecs.unsupportedKeyFormat(identity);
+      if (unsupported != null) {
+        throw unsupported;
+      }
+
+      // Invalid requests must fail before they're enqueued, or they'd fail every other request.
+      AgentOutput.checkStreamLength(src, length);
+
+      final PendingRequest<byte[]> request = PendingRequest.signature();
+      final StreamedMessage message = new StreamedMessage();
+      if (enqueue(request, message)) {
+        try {
+          new AgentOutput(message).signRequest(identity, src, length);
+          message.close();
+        } catch (IOException | RuntimeException e) {
+          // Part of the message may have been queued, so the connection is unusable.
+          failOnEventLoop(e);
+        }
+      }
+      return PendingRequest.await(request.future());
+    }
+
+    @Override
+    public void signAll(final Identity identity, final Iterator<byte[]> data,
+                        final SignatureConsumer consumer) throws IOException {
+      signAll(this, identity, data, consumer);
+    }
+
+    @Override
+    public Map<Identity, byte[]> signWithEach(final List<Identity> identities, final byte[] data)
+        throws IOException {
+      return signWithEach(this, identities, data);
+    }
+
+    @Override
+    public ListenableFuture<List<Identity>> listAsync() {
+      final PendingRequest<List<Identity>> request = PendingRequest.identities();
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try {
+        new AgentOutput(bytes).requestIdentities();
+      } catch (IOException e) {
+        request.fail(e);
+        return request.future();
+      }
+      enqueue(request, new BufferMessage(ByteBuffer.wrap(bytes.toByteArray())));
+      return request.future();
+    }
+
+    @Override
+    public ListenableFuture<byte[]> signAsync(final Identity identity, final byte[] data) {
+      final RuntimeException unsupported = KeyCodecs.unsupportedKeyFormat(identity);
+      if (unsupported != null) {
+        return Futures.immediateFailedFuture(unsupported);
+      }
+
+      final PendingRequest<byte[]> request = PendingRequest.signature();
+      enqueue(request, new BufferMessage(AgentOutput.signRequestMessage(identity, data)));
+      return request.future();
+    }
+
+    @Override
+    public ListenableFuture<AgentSignature> signAsync(final Identity identity, final byte[] data,
+                                                      final String algorithm) {
+      final int flags;
+      try {
+        flags = KeyCodecs.signFlags(identity, algorithm);
+      } catch (UnsupportedOperationException | IllegalArgumentException e) {
+        return Futures.immediateFailedFuture(e);
+      }
+
+      final PendingRequest<AgentSignature> request = PendingRequest.agentSignature();
+      enqueue(request, new BufferMessage(AgentOutput.signRequestMessage(identity, data, flags)));
+      return request.future();
+    }
+
+    /**
+     * Queue a request and the message to write for it.
+     * @return false if the connection is closed and the request was failed instead.
+     */
+    private boolean enqueue(final PendingRequest<?> request, final Message message) {
+      // Requests and their messages must be queued in the same order.
+      synchronized (this) {
+        if (closed) {
+          request.fail(new IOException("This AgentProxy is closed.", failure));
+          return false;
+        }
+        pending.add(request);
+        writes.add(message);
+      }
+      execute(flush);
+      return true;
+    }
+
+    private void register() {
+      try {
+        key = channel.register(selector, SelectionKey.OP_READ, this);
+        updateInterest();
+      } catch (IOException e) {
+        fail(e);
+      }
+    }
+
+    private void updateInterest() {
+      if (key != null && key.isValid()) {
+        final Message message = writes.peek();
+        key.interestOps(message == null || message.current() == null
+                        ? SelectionKey.OP_READ
+                        : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    private void onWritable() throws IOException {
+      Message message;
+      while ((message = writes.peek()) != null) {
+        final ByteBuffer buffer = message.current();
+        if (buffer == null) {
+          // The rest of a streamed message hasn't been handed over yet.
+          break;
+        }
+        if (buffer.hasRemaining()) {
+          channel.write(buffer);
+          if (buffer.hasRemaining()) {
+            // The socket buffer is full, wait until it becomes writable again.
+            break;
+          }
+        }
+        if (message.advance()) {
+          writes.poll();
+        }
+      }
+      updateInterest();
+    }
+
+    private void onReadable() throws IOException {
+      readBuffer.clear();
+      final int read = channel.read(readBuffer);
+      if (read < 0) {
+        throw new EOFException("ssh-agent closed the connection.");
+      }
+      readBuffer.flip();
+
+      byte[] frame;
+      while ((frame = decoder.decode(readBuffer)) != null) {
+        final PendingRequest<?> request = pending.poll();
+        if (request == null) {
+          throw new IOException("Received an unexpected message from ssh-agent.");
+        }
+        try {
+          request.complete(frame);
+        } catch (RuntimeException e) {
+          request.fail(e);
+          throw e;
+        }
+      }
+    }
+
+    /**
+     * Close the connection and fail every request that is still waiting for a reply.
+     */
+    private void fail(final Throwable cause) {
+      synchronized (this) {
+        if (closed) {
+          return;
+        }
+        if (failure == null) {
+          failure = cause;
+        }
+        closed = true;
+      }
+      log.debug("Closing ssh-agent connection.", cause);
+      connections.remove(this);
+      if (key != null) {
+        key.cancel();
+      }
+      try {
+        channel.close();
+      } catch (IOException e) {
+        log.debug("Error closing ssh-agent connection.", e);
+      }
+      PendingRequest<?> request;
+      while ((request = pending.poll()) != null) {
+        request.fail(new IOException("ssh-agent connection closed.", cause));
+      }
+      Message message;
+      while ((message = writes.poll()) != null) {
+        message.abort();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      failOnEventLoop(new IOException("This AgentProxy is closed."));
+    }
+
+    /**
+     * Close the connection from the event loop thread, or straight away if it has stopped.
+     */
+    private void failOnEventLoop(final Throwable cause) {
+      if (AgentEventLoop.this.closed) {
+        fail(cause);
+      } else {
+        execute(new Runnable() {
+          @Override
+          public void run() {
+            fail(cause);
+          }
+        });
+      }
+    }
+
+    @Override
+    public String toString() {
+      return Objects.toStringHelper(this)
+          .add("pending", pending.size())
+          .add("closed", closed)
+          .toString();
+    }
+
+    /**
+     * A sign request streamed by the calling thread. The data is copied into a few fixed-size
+     * chunks, which the event loop hands back once they've been written, so the calling thread
+     * waits while all of them are in use.
+     */
+    private class StreamedMessage extends OutputStream implements Message {
+
+      private final BlockingQueue<ByteBuffer> ready = new LinkedBlockingQueue<>();
+      private final BlockingQueue<ByteBuffer> free = new LinkedBlockingQueue<>();
+      // Only used by the calling thread
+      private ByteBuffer chunk;
+      private int allocated;
+
+      @Override
+      public void write(final int value) throws IOException {
+        write(new byte[] {(byte) value}, 0, 1);
+      }
+
+      @Override
+      public void write(final byte[] bytes, final int off, final int len) throws IOException {
+        int offset = off;
+        int remaining = len;
+        while (remaining > 0) {
+          if (chunk == null) {
+            chunk = takeChunk();
+          }
+          final int count = Math.min(remaining, chunk.remaining());
+          chunk.put(bytes, offset, count);
+          offset += count;
+          remaining -= count;
+          if (!chunk.hasRemaining()) {
+            flush();
+          }
+        }
+      }
+
+      /**
+       * Hand the current chunk over to the event loop.
+       */
+      @Override
+      public void flush() {
+        if (chunk != null && chunk.position() > 0) {
+          chunk.flip();
+          ready.add(chunk);
+          chunk = null;
+          execute(Connection.this.flush);
+        }
+      }
+
+      /**
+       * Hand the rest of the message over to the event loop.
+       */
+      @Override
+      public void close() {
+        flush();
+        ready.add(END_OF_MESSAGE);
+        execute(Connection.this.flush);
+      }
+
+      private ByteBuffer takeChunk() throws IOException {
+        ByteBuffer next = free.poll();
+        if (next == null && allocated < STREAM_CHUNKS) {
+          allocated++;
+          return ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+        }
+        try {
+          if (next == null) {
+            next = free.take();
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while streaming to ssh-agent.");
+        }
+        if (next == END_OF_MESSAGE) {
+          throw new IOException("ssh-agent connection closed.", failure);
+        }
+        next.clear();
+        return next;
+      }
+
+      @Override
+      public ByteBuffer current() {
+        return ready.peek();
+      }
+
+      @Override
+      public boolean advance() {
+        final ByteBuffer written = ready.poll();
+        if (written == END_OF_MESSAGE) {
+          return true;
+        }
+        free.add(written);
+        return false;
+      }
+
+      @Override
+      public void abort() {
+        // Wake the calling thread if it is waiting for a chunk.
+        free.add(END_OF_MESSAGE);
+      }
+    }
+  }
+
+  /**
+   * A message waiting to be written by the event loop.
+   */
+  private interface Message {
+
+    /**
+     * Return the buffer to write next, or null if it isn't available yet.
+     */
+    ByteBuffer current();
+
+    /**
+     * Move on once the current buffer has been written.
+     * @return true if the whole message has been written.
+     */
+    boolean advance();
+
+    /**
+     * Called if the connection fails before the message has been written.
+     */
+    void abort();
+  }
+
+  /**
+   * A message that is written from a single buffer.
+   */
+  private static class BufferMessage implements Message {
+
+    private final ByteBuffer buffer;
+
+    BufferMessage(final ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public ByteBuffer current() {
+      return buffer;
+    }
+
+    @Override
+    public boolean advance() {
+      return true;
+    }
+
+    @Override
+    public void abort() {
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import java.io.IOException;
+
+/**
+ * Thrown when ssh-agent answers a request with a failure message, e.g. because it doesn't hold
+ * the private key, the user declined a confirmation or the agent is locked. The whole reply has
+ * been read, so the connection to ssh-agent can still be used.
+ *
+ * <p>Agent failures are expected in normal operation and carry no information about where they
+ * were raised, so no stack trace is captured.
+ */
+public class AgentFailureException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final int messageType;
+
+  AgentFailureException(final int messageType) {
+    super("ssh-agent failed to process the request (message type " + messageType + ").");
+    this.messageType = messageType;
+  }
+
+  /**
+   * Return the message type of the failure reply, i.e. SSH_AGENT_FAILURE (5),
+   * SSH2_AGENT_FAILURE (30) or SSH_COM_AGENT2_FAILURE (102).
+   */
+  public int getMessageType() {
+    return messageType;
+  }
+
+  @Override
+  public synchronized Throwable fillInStackTrace() {
+    return this;
+  }
+}
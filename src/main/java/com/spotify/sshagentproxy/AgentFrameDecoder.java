@@ -0,0 +1,106 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import com.google.common.base.Objects;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reassembles length-prefixed ssh-agent messages from bytes that arrive in arbitrary chunks,
+ * e.g. from a non-blocking channel. It is a small state machine that first collects the four
+ * byte length and then the message body.
+ */
+class AgentFrameDecoder {
+
+  // Number of bytes in an int
+  private static final int INT_BYTES = 4;
+
+  // Upper bound on the length of a single message, so that a corrupt length prefix doesn't
+  // make us allocate an arbitrarily large buffer. OpenSSH's own limit is 256 KiB.
+  static final int MAX_FRAME_LENGTH = 1024 * 1024;
+
+  private final ByteBuffer length = ByteBuffer.allocate(INT_BYTES);
+  private ByteBuffer frame;
+
+  /**
+   * Consume bytes from {@code src} until a whole message has been read or {@code src} is
+   * exhausted.
+   * @param src Bytes received from ssh-agent.
+   * @return The whole message including its four byte length prefix, or null if more bytes are
+   *         needed.
+   */
+  byte[] decode(final ByteBuffer src) throws IOException {
+    if (frame == null) {
+      while (length.hasRemaining() && src.hasRemaining()) {
+        length.put(src.get());
+      }
+      if (length.hasRemaining()) {
+        return null;
+      }
+
+      length.flip();
+      final int frameLength = length.getInt();
+      length.clear();
+      if (frameLength < 0 || frameLength > MAX_FRAME_LENGTH) {
+        throw new IOException("Invalid ssh-agent message length " + frameLength + ".");
+      }
+      frame = ByteBuffer.allocate(INT_BYTES + frameLength);
+      frame.putInt(frameLength);
+    }
+
+    final int count = Math.min(frame.remaining(), src.remaining());
+    final ByteBuffer chunk = src.duplicate();
+    chunk.limit(chunk.position() + count);
+    frame.put(chunk);
+    src.position(src.position() + count);
+    if (frame.hasRemaining()) {
+      return null;
+    }
+
+    final byte[] result = frame.array();
+    frame = null;
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("buffered", frame == null ? length.position() : frame.position())
+        .toString();
+  }
+}
@@ -37,30 +37,45 @@
 package com.spotify.sshagentproxy;
 
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.common.base.Strings.isNullOrEmpty;
 
 import com.google.common.base.Objects;
-import com.google.common.base.Throwables;
 import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A class that represents ssh-agent input.
+ * A class that represents ssh-agent input. Replies are read a whole length-prefixed frame at a
+ * time into a buffer that is reused between replies, so instances must not be used by more than
+ * one thread at a time.
  */
 class AgentInput implements Closeable {
 
   private static final Logger log = LoggerFactory.getLogger(AgentInput.class);
 
+  // Number of bytes in an int
+  private static final int INT_BYTES = 4;
+
+  // Number of bytes of the length, message type and count or signature length of a reply
+  private static final int HEADER_BYTES = 9;
+
+  // Enough for the identities answer of a few RSA keys, grown on demand.
+  private static final int INITIAL_FRAME_CAPACITY = 4096;
+
+  // ssh-agent communication protocol constants
+  static final int SSH_AGENT_FAILURE = 5;
+  static final int SSH2_AGENT_FAILURE = 30;
+  static final int SSH_COM_AGENT2_FAILURE = 102;
+
   private final InputStream in;
+  private byte[] frame = new byte[INITIAL_FRAME_CAPACITY];
 
   AgentInput(final InputStream in) {
     checkNotNull(in, "InputStream cannot be null.");
@@ -70,27 +85,39 @@ class AgentInput implements Closeable {
   /**
    * Return a list of {@link Identity} from the bytes in the ssh-agent's {@link InputStream}.
    * @return A list of {@link Identity}
+   * @throws AgentFailureException if ssh-agent replied with a failure message.
    */
   List<Identity> readIdentitiesAnswer() throws IOException {
-    // Read the first 9 bytes from the InputStream which are the
-    // SSH2_AGENT_IDENTITIES_ANSWER headers. Return an IdentitiesAnswerHeaders object that
-    // represents the message.
-    final byte[] headerBytes = readBytes(9, "SSH2_AGENT_IDENTITIES_ANSWER");
-    log.debug("Received SSH2_AGENT_IDENTITIES_ANSWER message from ssh-agent.");
-    final IdentitiesAnswerHeaders headers = IdentitiesAnswerHeaders.from(headerBytes);
+    final int length = readFrame("SSH2_AGENT_IDENTITIES_ANSWER");
+    return decodeIdentitiesAnswer(frame, length);
+  }
+
+  /**
+   * Return a list of {@link Identity} from a whole SSH2_AGENT_IDENTITIES_ANSWER message.
+   * @param message The message including its length prefix.
+   * @return A list of {@link Identity}
+   * @throws AgentFailureException if the message is a failure message.
+   */
+  static List<Identity> decodeIdentitiesAnswer(final byte[] message)
+      throws AgentFailureException {
+    return decodeIdentitiesAnswer(message, message.length);
+  }
 
-    // 5 is the sum of the number of bytes of response code and count
-    final byte[] bytes = readBytes(headers.getLength() - 5);
-    final Iterator<byte[]> byteIterator = new ByteIterator(bytes);
+  private static List<Identity> decodeIdentitiesAnswer(final byte[] message, final int length)
+      throws AgentFailureException {
+    checkFailure(message);
+    final IdentitiesAnswerHeaders headers = IdentitiesAnswerHeaders.from(message);
+    log.debug("Received SSH2_AGENT_IDENTITIES_ANSWER message from ssh-agent.");
+    final SshDecoder decoder =
+        new SshDecoder(ByteBuffer.wrap(message, HEADER_BYTES, length - HEADER_BYTES));
 
-    final List<Identity> identities = Lists.newArrayList();
-    while (byteIterator.hasNext()) {
-      final byte[] keyBlob = byteIterator.next();
-      final byte[] keyComment = byteIterator.next();
+    final List<Identity> identities = Lists.newArrayListWithCapacity(headers.getCount());
+    for (int i = 0; i < headers.getCount() && decoder.hasRemaining(); i++) {
+      final byte[] keyBlob = decoder.readBytes();
+      final byte[] keyComment = decoder.readBytes();
       try {
-        identities.add(DefaultIdentity.from(keyBlob, new String(keyComment)));
-      } catch (InvalidKeyException | InvalidKeySpecException | NoSuchAlgorithmException
-          | UnsupportedOperationException e) {
+        identities.add(DefaultIdentity.fromCommentBytes(keyBlob, keyComment));
+      } catch (IllegalArgumentException | UnsupportedOperationException e) {
         log.warn("Unable to parse SSH identity. Skipping. {}", e);
       }
     }
@@ -101,64 +128,142 @@ class AgentInput implements Closeable {
   /**
    * Return an array of bytes from the ssh-agent representing data signed by a private SSH key.
    * @return An array of signed bytes.
+   * @throws AgentFailureException if ssh-agent replied with a failure message.
    */
   byte[] readSignResponse() throws IOException {
-    // Read the first 9 bytes from the InputStream which are the SSH2_AGENT_SIGN_RESPONSE headers.
-    final byte[] headerBytes = readBytes(9, "SSH2_AGENT_SIGN_RESPONSE");
+    final int length = readFrame("SSH2_AGENT_SIGN_RESPONSE");
+    return decodeSignResponse(frame, length);
+  }
+
+  /**
+   * Return the signed bytes from a whole SSH2_AGENT_SIGN_RESPONSE message.
+   * @param message The message including its length prefix.
+   * @return An array of signed bytes.
+   * @throws AgentFailureException if the message is a failure message.
+   */
+  static byte[] decodeSignResponse(final byte[] message) throws AgentFailureException {
+    return decodeSignResponse(message, message.length);
+  }
+
+  private static byte[] decodeSignResponse(final byte[] message, final int length)
+      throws AgentFailureException {
+    final SshDecoder decoder = signatureDecoder(message, length);
+    readSignatureFormat(decoder);
+    return decoder.readBytes();
+  }
+
+  /**
+   * Return the signature and its algorithm from the ssh-agent.
+   * @return {@link AgentSignature}
+   * @throws AgentFailureException if ssh-agent replied with a failure message.
+   */
+  AgentSignature readSignature() throws IOException {
+    final int length = readFrame("SSH2_AGENT_SIGN_RESPONSE");
+    return decodeSignature(frame, length);
+  }
+
+  /**
+   * Return the signature and its algorithm from a whole SSH2_AGENT_SIGN_RESPONSE message.
+   * @param message The message including its length prefix.
+   * @return {@link AgentSignature}
+   * @throws AgentFailureException if the message is a failure message.
+   */
+  static AgentSignature decodeSignature(final byte[] message) throws AgentFailureException {
+    return decodeSignature(message, message.length);
+  }
+
+  private static AgentSignature decodeSignature(final byte[] message, final int length)
+      throws AgentFailureException {
+    final SshDecoder decoder = signatureDecoder(message, length);
+    final String algorithm = readSignatureFormat(decoder);
+    return new AgentSignature(algorithm, decoder.readBytes());
+  }
+
+  /**
+   * Check the headers of a SSH2_AGENT_SIGN_RESPONSE message and return a decoder of its
+   * signature blob.
+   */
+  private static SshDecoder signatureDecoder(final byte[] message, final int length)
+      throws AgentFailureException {
+    checkFailure(message);
+    SignResponseHeaders.from(message);
     log.debug("Received SSH2_AGENT_SIGN_RESPONSE message from ssh-agent.");
-    final SignResponseHeaders headers = SignResponseHeaders.from(headerBytes);
-
-    // Read the rest of the SSH2_AGENT_SIGN_RESPONSE message from ssh-agent.
-    // 5 is the sum of the number of bytes of response code and response length
-    final byte[] bytes = readBytes(headers.getLength() - 5);
-    final ByteIterator iterator = new ByteIterator(bytes);
-    final byte[] responseType = iterator.next();
-
-    final String signatureFormatId = new String(responseType);
-    if (!signatureFormatId.equals(Rsa.RSA_LABEL)) {
-      throw new RuntimeException("I unexpectedly got a non-Rsa signature format ID in the "
-                                 + "SSH2_AGENT_SIGN_RESPONSE's signature blob.");
-    }
+    return new SshDecoder(ByteBuffer.wrap(message, HEADER_BYTES, length - HEADER_BYTES));
+  }
 
-    return iterator.next();
+  private static String readSignatureFormat(final SshDecoder decoder) {
+    final String signatureFormatId = decoder.readAscii();
+    if (KeyCodecs.forSignatureFormat(signatureFormatId) == null) {
+      throw new RuntimeException("I unexpectedly got an unsupported signature format ID "
+                                 + signatureFormatId + " in the SSH2_AGENT_SIGN_RESPONSE's "
+                                 + "signature blob.");
+    }
+    return signatureFormatId;
   }
 
   /**
-   * Read n bytes from the {@link InputStream}.
-   * @param numBytes bytes to read
-   * @return byte[]
+   * Throw an {@link AgentFailureException} if a whole message is one of the failure messages.
+   * These are only one byte long, so they are recognized before any other header is parsed.
    */
-  private byte[] readBytes(final int numBytes) throws IOException {
-    return readBytes(numBytes, null);
+  private static void checkFailure(final byte[] message) throws AgentFailureException {
+    if (message.length <= INT_BYTES) {
+      throw new IllegalArgumentException("ssh-agent messages must have a message type.");
+    }
+    final int messageType = message[INT_BYTES] & 0xff;
+    if (messageType == SSH_AGENT_FAILURE
+        || messageType == SSH2_AGENT_FAILURE
+        || messageType == SSH_COM_AGENT2_FAILURE) {
+      log.debug("Received failure message {} from ssh-agent.", messageType);
+      throw new AgentFailureException(messageType);
+    }
   }
 
   /**
-   * Read n bytes from the {@link InputStream}.
-   * @param numBytes bytes to read
-   * @param messageType An optional String indicating the expected SSH2 agent's message type.
-   * @return byte[]
+   * Read a whole length-prefixed message into the frame buffer. The length is read first, then
+   * exactly that many bytes, so the stream stays at a message boundary whatever the message is.
+   * @param messageType The expected SSH2 agent's message type, for error messages.
+   * @return The number of bytes of the message in the frame buffer, including its length prefix.
    */
-  private byte[] readBytes(final int numBytes, String messageType) throws IOException {
-    final String errMsg = isNullOrEmpty(messageType)
-                          ? "Error reading from ssh-agent."
-                          : "Error reading " + messageType + " from ssh-agent.";
-
-    final byte[] result = new byte[numBytes];
-
-    final int bytesRead;
-    try {
-      bytesRead = in.read(result, 0, numBytes);
-    } catch (IOException e) {
-      log.error(errMsg);
-      throw Throwables.propagate(e);
+  private int readFrame(final String messageType) throws IOException {
+    readFully(frame, 0, INT_BYTES, messageType);
+    final int bodyLength = Ints.fromBytes(frame[0], frame[1], frame[2], frame[3]);
+    if (bodyLength <= 0 || bodyLength > AgentFrameDecoder.MAX_FRAME_LENGTH) {
+      throw new IOException("Invalid length " + bodyLength + " of " + messageType
+                            + " from ssh-agent.");
     }
 
-    if (bytesRead == -1) {
-      log.error(errMsg);
-      throw new IOException(errMsg);
+    final int length = INT_BYTES + bodyLength;
+    if (frame.length < length) {
+      frame = Arrays.copyOf(frame, Math.max(length, frame.length * 2));
+    }
+    readFully(frame, INT_BYTES, bodyLength, messageType);
+    // Failure messages are shorter than the headers of the replies we expect.
+    if (length < HEADER_BYTES) {
+      checkFailure(frame);
+      throw new IOException("Received a truncated " + messageType + " from ssh-agent.");
     }
+    return length;
+  }
 
-    return result;
+  /**
+   * Read exactly n bytes from the {@link InputStream}, blocking until they have all arrived.
+   * @param bytes    Array to read into.
+   * @param offset   Index of the first byte to read into.
+   * @param numBytes Bytes to read.
+   * @param messageType The expected SSH2 agent's message type, for error messages.
+   */
+  private void readFully(final byte[] bytes, final int offset, final int numBytes,
+                         final String messageType) throws IOException {
+    int bytesRead = 0;
+    while (bytesRead < numBytes) {
+      final int read = in.read(bytes, offset + bytesRead, numBytes - bytesRead);
+      if (read == -1) {
+        final String errMsg = "Error reading " + messageType + " from ssh-agent.";
+        log.error(errMsg);
+        throw new EOFException(errMsg);
+      }
+      bytesRead += read;
+    }
   }
 
   @Override
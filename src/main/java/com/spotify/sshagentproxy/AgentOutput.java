@@ -36,20 +36,27 @@
 
 package com.spotify.sshagentproxy;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import com.google.common.base.Objects;
 import java.io.Closeable;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.interfaces.RSAPublicKey;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A class that represents the ssh-agent output.
+ * A class that represents the ssh-agent output. Sign requests reuse a message buffer, so instances
+ * must not be used by more than one thread at a time.
  */
 class AgentOutput implements Closeable {
 
@@ -60,69 +67,251 @@ class AgentOutput implements Closeable {
 
   // ssh-agent communication protocol constants
   private static final int SSH2_AGENTC_REQUEST_IDENTITIES = 11;
-  private static final int SSH2_AGENTC_SIGN_REQUEST = 13;
+  static final int NO_FLAGS = 0;
+
+  // Sized for the sign request header of a 4096 bit RSA key, grown on demand.
+  private static final int INITIAL_MESSAGE_CAPACITY = 1024;
+
+  // Larger messages get a buffer of their own, so that one big request doesn't pin its memory.
+  private static final int MAX_RETAINED_MESSAGE_CAPACITY = 64 * 1024;
+
+  // Size of the buffer used to stream data from channels that can't transfer directly.
+  private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+  // The message length must fit in a signed int along with the key blob and other fields.
+  private static final int MAX_DATA_LENGTH = Integer.MAX_VALUE - 64 * 1024;
 
   private final OutputStream out;
+  private final GatheringByteChannel channel;
+  private final ByteBuffer flags = ByteBuffer.allocate(INT_BYTES);
+  private ByteBuffer message = ByteBuffer.allocate(INITIAL_MESSAGE_CAPACITY);
+  private ByteBuffer transferBuffer;
 
   AgentOutput(final OutputStream out) {
     checkNotNull(out, "OutputStream cannot be null.");
     this.out = out;
+    this.channel = null;
+  }
+
+  /**
+   * Create an {@link AgentOutput} that writes each message to the channel as a single buffer.
+   * The data to be signed is copied into that buffer, since jnr-unixsocket writes every buffer of
+   * a gathering write with a system call of its own.
+   *
+   * <p>Messages are written to the channel itself rather than through
+   * {@link Channels#newOutputStream}, which holds the channel's blocking lock that a thread
+   * reading replies with {@link Channels#newInputStream} holds while it waits.
+   * @param channel {@link GatheringByteChannel}, e.g. a UnixSocketChannel.
+   */
+  AgentOutput(final GatheringByteChannel channel) {
+    checkNotNull(channel, "GatheringByteChannel cannot be null.");
+    this.out = Channels.newOutputStream(channel);
+    this.channel = channel;
   }
 
   /**
    * Send a SSH2_AGENTC_REQUEST_IDENTITIES message to ssh-agent.
    */
   void requestIdentities() throws IOException {
-    writeField(out, SSH2_AGENTC_REQUEST_IDENTITIES);
+    // All protocol messages are prefixed with their length in bytes, encoded
+    // as a 32 bit unsigned integer.
+    final ByteBuffer message = ByteBuffer.allocate(INT_BYTES + 1);
+    message.putInt(1);
+    message.put((byte) SSH2_AGENTC_REQUEST_IDENTITIES);
+    if (channel != null) {
+      message.flip();
+      write(message);
+    } else {
+      out.write(message.array());
+      out.flush();
+    }
     log.debug("Sent SSH2_AGENTC_REQUEST_IDENTITIES message to ssh-agent.");
   }
 
   /**
-   * Convert int to a big-endian byte array containing the minimum number of bytes required to
-   * represent it. Write those bytes to an {@link OutputStream}.
-   * @param out {@link OutputStream}
-   * @param num int
+   * Send a SSH2_AGENTC_SIGN_REQUEST message to ssh-agent.
+   * @param rsaPublicKey The {@link RSAPublicKey} that tells ssh-agent which private key to use to
+   *                     sign the data.
+   * @param data         The data in bytes to be signed.
+   */
+  void signRequest(final RSAPublicKey rsaPublicKey, final byte[] data) throws IOException {
+    writeSignRequest(PreparedIdentity.encodePrefix(Rsa.encode(rsaPublicKey)), data, NO_FLAGS);
+  }
+
+  /**
+   * Send a SSH2_AGENTC_SIGN_REQUEST message to ssh-agent.
+   * @param identity The {@link Identity} that tells ssh-agent which private key to use to sign
+   *                 the data. If it is a {@link PreparedIdentity} its key blob isn't re-encoded.
+   * @param data     The data in bytes to be signed.
    */
-  private static void writeField(final OutputStream out, final int num) throws IOException {
-    final byte[] bytes = BigInteger.valueOf(num).toByteArray();
-    writeField(out, bytes);
+  void signRequest(final Identity identity, final byte[] data) throws IOException {
+    writeSignRequest(PreparedIdentity.of(identity).getSignRequestPrefix(), data, NO_FLAGS);
   }
 
   /**
-   * Write bytes to an {@link OutputStream} and prepend with four bytes indicating their length.
-   * @param out {@link OutputStream}
-   * @param bytes Array of bytes.
+   * Send a SSH2_AGENTC_SIGN_REQUEST message to ssh-agent with flags, e.g. to ask for a SHA-2
+   * signature from an RSA key.
+   * @param identity The {@link Identity} that tells ssh-agent which private key to use to sign
+   *                 the data.
+   * @param data     The data in bytes to be signed.
+   * @param flags    The flags, see {@link KeyCodec#getSignFlags(String)}.
    */
-  private static void writeField(final OutputStream out, final byte[] bytes)
+  void signRequest(final Identity identity, final byte[] data, final int flags)
       throws IOException {
-    // All protocol messages are prefixed with their length in bytes, encoded
-    // as a 32 bit unsigned integer.
-    final ByteBuffer buffer = ByteBuffer.allocate(INT_BYTES + bytes.length);
-    buffer.putInt(bytes.length);
-    buffer.put(bytes);
-    out.write(buffer.array());
-    out.flush();
+    writeSignRequest(PreparedIdentity.of(identity).getSignRequestPrefix(), data, flags);
   }
 
   /**
-   * Send a SSH2_AGENTC_SIGN_REQUEST message to ssh-agent.
-   * @param rsaPublicKey The {@link RSAPublicKey} that tells ssh-agent which private key to use to
-   *                     sign the data.
-   * @param data         The data in bytes to be signed.
+   * Send a SSH2_AGENTC_SIGN_REQUEST message to ssh-agent, streaming the data to be signed from a
+   * channel instead of holding it in memory. {@link FileChannel}s are transferred from their
+   * current position with {@link FileChannel#transferTo(long, long, WritableByteChannel)}; other
+   * channels are copied through a fixed-size buffer.
+   *
+   * <p>If the channel ends before {@code length} bytes were read only part of the message has been
+   * sent, and the connection to ssh-agent can't be used any more.
+   * @param identity The {@link Identity} that tells ssh-agent which private key to use to sign
+   *                 the data.
+   * @param src      A blocking channel to read the data to be signed from.
+   * @param length   The number of bytes to read from {@code src}.
    */
-  void signRequest(final RSAPublicKey rsaPublicKey, final byte[] data) throws IOException {
-    // TODO (dxia) Support more than just Rsa keys
-    final String keyType = Rsa.RSA_LABEL;
-    final byte[] publicExponent = rsaPublicKey.getPublicExponent().toByteArray();
-    final byte[] modulus = rsaPublicKey.getModulus().toByteArray();
-
-    // Four bytes indicating length of string denoting key type
-    // Four bytes indicating length of public exponent
-    // Four bytes indicating length of modulus
-    final int publicKeyLength = 4 + keyType.length()
-                                + 4 + publicExponent.length
-                                + 4 + modulus.length;
+  void signRequest(final Identity identity, final ReadableByteChannel src, final long length)
+      throws IOException {
+    checkStreamLength(src, length);
+    writeHeader(PreparedIdentity.of(identity).getSignRequestPrefix(), (int) length);
+    transfer(src, length);
+    flags.clear();
+    flags.putInt(0, NO_FLAGS);
+    write(flags);
+
+    log.debug("Sent SSH2_AGENTC_SIGN_REQUEST message to ssh-agent.");
+  }
+
+  /**
+   * Check that {@code length} bytes can be signed from {@code src} before anything is written, so
+   * that invalid requests don't leave a partial message on the connection.
+   * @throws IllegalArgumentException if {@code length} is negative or too large.
+   * @throws EOFException if {@code src} is a file with fewer than {@code length} bytes left.
+   */
+  static void checkStreamLength(final ReadableByteChannel src, final long length)
+      throws IOException {
+    checkArgument(length >= 0 && length <= MAX_DATA_LENGTH,
+                  "Data length must be between 0 and %s bytes.", MAX_DATA_LENGTH);
+    if (src instanceof FileChannel) {
+      final FileChannel file = (FileChannel) src;
+      if (file.size() - file.position() < length) {
+        throw new EOFException("File is shorter than the requested length.");
+      }
+    }
+  }
 
+  private void writeSignRequest(final byte[] prefix, final byte[] data, final int flagBits)
+      throws IOException {
+    final ByteBuffer buffer = messageBuffer(signRequestLength(prefix, data.length));
+    putSignRequest(buffer, prefix, data, flagBits);
+    buffer.flip();
+    write(buffer);
+
+    log.debug("Sent SSH2_AGENTC_SIGN_REQUEST message to ssh-agent.");
+  }
+
+  private void writeHeader(final byte[] prefix, final int dataLength) throws IOException {
+    final ByteBuffer buffer = messageBuffer(signRequestHeaderLength(prefix));
+    putSignRequestHeader(buffer, prefix, dataLength);
+    buffer.flip();
+    write(buffer);
+  }
+
+  /**
+   * Return a cleared buffer with room for {@code length} bytes. The message buffer is reused and
+   * grown on demand, up to {@link #MAX_RETAINED_MESSAGE_CAPACITY}.
+   */
+  private ByteBuffer messageBuffer(final int length) {
+    if (length > MAX_RETAINED_MESSAGE_CAPACITY) {
+      return ByteBuffer.allocate(length);
+    }
+    if (message.capacity() < length) {
+      message = ByteBuffer.allocate(Math.max(length, 2 * message.capacity()));
+    }
+    message.clear();
+    return message;
+  }
+
+  private void transfer(final ReadableByteChannel src, final long length) throws IOException {
+    final WritableByteChannel target = channel != null ? channel : Channels.newChannel(out);
+    long remaining = length;
+    if (src instanceof FileChannel) {
+      final FileChannel file = (FileChannel) src;
+      long position = file.position();
+      while (remaining > 0) {
+        final long transferred = file.transferTo(position, remaining, target);
+        if (transferred == 0 && position >= file.size()) {
+          // The file was truncated after its size was checked.
+          throw new EOFException("File ended before the requested length was read.");
+        }
+        position += transferred;
+        remaining -= transferred;
+      }
+      file.position(position);
+      return;
+    }
+
+    if (transferBuffer == null) {
+      transferBuffer = ByteBuffer.allocate(TRANSFER_BUFFER_SIZE);
+    }
+    while (remaining > 0) {
+      transferBuffer.clear();
+      transferBuffer.limit((int) Math.min(transferBuffer.capacity(), remaining));
+      if (src.read(transferBuffer) < 0) {
+        throw new EOFException("Channel ended before the requested length was read.");
+      }
+      transferBuffer.flip();
+      remaining -= transferBuffer.remaining();
+      while (transferBuffer.hasRemaining()) {
+        target.write(transferBuffer);
+      }
+    }
+  }
+
+  /**
+   * Encode a SSH2_AGENTC_SIGN_REQUEST message into a new buffer, ready to be written.
+   * @param identity The {@link Identity} whose private key should sign the data.
+   * @param data     The data in bytes to be signed.
+   * @return The message, including its length prefix.
+   */
+  static ByteBuffer signRequestMessage(final Identity identity, final byte[] data) {
+    return signRequestMessage(identity, data, NO_FLAGS);
+  }
+
+  /**
+   * Like {@link #signRequestMessage(Identity, byte[])}, with flags.
+   * @param flags The flags, see {@link KeyCodec#getSignFlags(String)}.
+   */
+  static ByteBuffer signRequestMessage(final Identity identity, final byte[] data,
+                                       final int flags) {
+    final byte[] prefix = PreparedIdentity.of(identity).getSignRequestPrefix();
+    final ByteBuffer buffer = ByteBuffer.allocate(signRequestLength(prefix, data.length));
+    putSignRequest(buffer, prefix, data, flags);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static int signRequestHeaderLength(final byte[] prefix) {
+    return INT_BYTES + prefix.length + INT_BYTES;
+  }
+
+  private static int signRequestLength(final byte[] prefix, final int dataLength) {
+    return signRequestHeaderLength(prefix) + dataLength + INT_BYTES;
+  }
+
+  private static void putSignRequest(final ByteBuffer buffer, final byte[] prefix,
+                                     final byte[] data, final int flags) {
+    putSignRequestHeader(buffer, prefix, data.length);
+    buffer.put(data);
+    buffer.putInt(flags);
+  }
+
+  private static void putSignRequestHeader(final ByteBuffer header, final byte[] prefix,
+                                           final int dataLength) {
     // The message is made of:
     // Four bytes indicating length in bytes of rest of message
     // One byte indicating SSH2_AGENTC_SIGN_REQUEST
@@ -131,39 +320,22 @@ class AgentOutput implements Closeable {
     // Four bytes for length of data
     // Bytes representing data to be signed
     // Four bytes of flags
-    final ByteBuffer buff = ByteBuffer.allocate(
-        INT_BYTES + 1 + INT_BYTES + publicKeyLength + INT_BYTES + data.length + 4);
+    // Everything before the data goes in the header. The key part never changes for a key and
+    // comes from the prepared prefix.
+    header.putInt(prefix.length + INT_BYTES + dataLength + INT_BYTES);
+    header.put(prefix);
+    header.putInt(dataLength);
+  }
 
-    // 13 =
-    // One byte indicating SSH2_AGENTC_SIGN_REQUEST
-    // Four bytes denoting length of public key
-    // Four bytes for length of data
-    // Four bytes of flags
-    buff.putInt(publicKeyLength + data.length + 13);
-    buff.put((byte) SSH2_AGENTC_SIGN_REQUEST);
-
-    // Add the public key
-    buff.putInt(publicKeyLength);
-    buff.putInt(keyType.length());
-    for (final byte b : keyType.getBytes()) {
-      buff.put(b);
+  private void write(final ByteBuffer buffer) throws IOException {
+    if (channel != null) {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } else {
+      out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+      out.flush();
     }
-    buff.putInt(publicExponent.length);
-    buff.put(publicExponent);
-    buff.putInt(modulus.length);
-    buff.put(modulus);
-
-    // Add the data to be signed
-    buff.putInt(data.length);
-    buff.put(data);
-
-    // Add empty flags
-    buff.put(new byte[] {0, 0, 0, 0});
-
-    out.write(buff.array());
-    out.flush();
-
-    log.debug("Sent SSH2_AGENTC_SIGN_REQUEST message to ssh-agent.");
   }
 
   @Override
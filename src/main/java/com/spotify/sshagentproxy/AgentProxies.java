@@ -41,61 +41,214 @@ import static com.google.common.base.Strings.isNullOrEmpty;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Objects;
 import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.io.File;
 import java.io.IOException;
+import java.nio.channels.Channel;
 import java.nio.channels.Channels;
-import java.security.interfaces.RSAPublicKey;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import jnr.unixsocket.UnixSocketAddress;
 import jnr.unixsocket.UnixSocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class contains a static factory method that creates a default implementation of
- * {@link AgentProxy}.
+ * This class contains static factory methods that create implementations of {@link AgentProxy}.
  */
 public class AgentProxies {
 
+  private static final Logger log = LoggerFactory.getLogger(AgentProxies.class);
+
   public static AgentProxy newInstance() {
     return DefaultAgentProxy.fromEnvironmentVariable();
   }
 
+  /**
+   * Create a thread-safe {@link AgentProxy} that keeps up to one connection to ssh-agent per
+   * available processor.
+   * @return A pooled {@link AgentProxy}
+   */
+  public static AgentProxy newPooledInstance() {
+    return newPooledInstance(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Create a thread-safe {@link AgentProxy} that keeps up to {@code maxConnections} connections
+   * to ssh-agent. Every call to {@link AgentProxy#list()} or {@link AgentProxy#sign} leases one
+   * connection for its duration. Connections are opened lazily and those that fail are evicted.
+   * @param maxConnections Maximum number of concurrently open connections.
+   * @return A pooled {@link AgentProxy}
+   */
+  public static AgentProxy newPooledInstance(final int maxConnections) {
+    final File socketFile = DefaultAgentProxy.socketFileFromEnvironmentVariable();
+    return new PooledAgentProxy(new AgentProxyFactory() {
+      @Override
+      public DefaultAgentProxy create() throws IOException {
+        return DefaultAgentProxy.connect(socketFile);
+      }
+    }, maxConnections);
+  }
+
+  /**
+   * Create a thread-safe {@link AgentProxy} that reconnects to ssh-agent when the connection
+   * breaks, e.g. because the agent was restarted. Failed connection attempts are retried after
+   * an exponential backoff between 100 ms and 30 s, and a connection that has been idle for
+   * 30 s is probed in the background.
+   * @return A {@link ReconnectingAgentProxy}
+   */
+  public static ReconnectingAgentProxy newReconnectingInstance() {
+    final File socketFile = DefaultAgentProxy.socketFileFromEnvironmentVariable();
+    final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("ssh-agent-probe-%d")
+        .build();
+    return new ReconnectingAgentProxy(new AgentProxyFactory() {
+      @Override
+      public DefaultAgentProxy create() throws IOException {
+        return DefaultAgentProxy.connect(socketFile);
+      }
+    }, 100, 30 * 1000, 30 * 1000, TimeUnit.MILLISECONDS,
+        Executors.newSingleThreadScheduledExecutor(threadFactory),
+        Ticker.systemTicker(), new Random());
+  }
+
+  /**
+   * Create a thread-safe {@link AsyncAgentProxy} that pipelines requests over a single
+   * connection to ssh-agent. Concurrent requests are written without waiting for earlier replies,
+   * which hides the round trip to the agent when it is slow to reach, e.g. when forwarded over
+   * ssh. Replies are read on a dedicated thread that completes the futures returned by
+   * {@link AsyncAgentProxy#listAsync()} and {@link AsyncAgentProxy#signAsync}.
+   * @return A pipelined {@link AsyncAgentProxy}
+   */
+  public static AsyncAgentProxy newPipelinedInstance() {
+    try {
+      final UnixSocketChannel channel =
+          openChannel(DefaultAgentProxy.socketFileFromEnvironmentVariable());
+      return new PipelinedAgentProxy(new AgentInput(Channels.newInputStream(channel)),
+                                     new AgentOutput(channel));
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Wrap an {@link AgentProxy} so that {@link AgentProxy#list()} returns cached identities.
+   * Once the cached list is older than {@code ttl}, it is still returned while a fresh one is
+   * fetched in the background.
+   * @param proxy An {@link AgentProxy} that is safe for concurrent use.
+   * @param ttl   How long identities are considered fresh.
+   * @param unit  The unit of {@code ttl}.
+   * @return A {@link CachingAgentProxy} that owns {@code proxy}.
+   */
+  public static CachingAgentProxy withIdentityCache(final AgentProxy proxy, final long ttl,
+                                                    final TimeUnit unit) {
+    final ThreadFactory threadFactory = new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("ssh-agent-identity-refresh-%d")
+        .build();
+    return new CachingAgentProxy(proxy, ttl, unit, Executors.newSingleThreadExecutor(threadFactory),
+                                 Ticker.systemTicker());
+  }
+
+  /**
+   * Wrap an {@link AgentProxy} so that {@link AgentProxy#sign(Identity, byte[])} returns cached
+   * signatures for key types whose signatures are deterministic, i.e. RSA and Ed25519.
+   * @param proxy       The {@link AgentProxy} to ask for signatures that aren't cached.
+   * @param maximumSize The maximum number of signatures to cache.
+   * @param ttl         How long a signature is cached.
+   * @param unit        The unit of {@code ttl}.
+   * @return A {@link SignatureCachingAgentProxy} that owns {@code proxy}.
+   */
+  public static SignatureCachingAgentProxy withSignatureCache(final AgentProxy proxy,
+                                                              final long maximumSize,
+                                                              final long ttl,
+                                                              final TimeUnit unit) {
+    return new SignatureCachingAgentProxy(proxy, maximumSize, ttl, unit, Ticker.systemTicker());
+  }
+
+  /**
+   * Wrap an {@link AgentProxy} so that concurrent calls to
+   * {@link AgentProxy#sign(Identity, byte[])} with the same identity and data share one request
+   * to ssh-agent and all get its signature.
+   * @param proxy An {@link AgentProxy} that is safe for concurrent use.
+   * @return An {@link AgentProxy} that owns {@code proxy}.
+   */
+  public static AgentProxy withRequestCoalescing(final AgentProxy proxy) {
+    return new CoalescingAgentProxy(proxy);
+  }
+
+  static UnixSocketChannel openChannel(final File socketFile) throws IOException {
+    final UnixSocketChannel channel = UnixSocketChannel.open(new UnixSocketAddress(socketFile));
+    log.debug("connected to " + channel.getRemoteSocketAddress());
+    return channel;
+  }
+
   static AgentProxy withCustomInputOutput(final AgentInput in, final AgentOutput out) {
     return new DefaultAgentProxy(in, out);
   }
 
-  static class DefaultAgentProxy implements AgentProxy {
+  static class DefaultAgentProxy extends AbstractAgentProxy {
 
     private static final Logger log = LoggerFactory.getLogger(DefaultAgentProxy.class);
 
     private final AgentInput in;
     private final AgentOutput out;
+    private final Channel channel;
+
+    private volatile boolean closed;
 
     public static DefaultAgentProxy fromEnvironmentVariable() {
+      try {
+        return connect(socketFileFromEnvironmentVariable());
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    static File socketFileFromEnvironmentVariable() {
       final String socketPath = System.getenv("SSH_AUTH_SOCK");
       if (isNullOrEmpty(socketPath)) {
         throw new RuntimeException(
             "The environment variable SSH_AUTH_SOCK is not set. Please configure your ssh-agent.");
       }
+      return new File(socketPath);
+    }
 
-      try {
-        final UnixSocketChannel channel = UnixSocketChannel.open(
-            new UnixSocketAddress(new File(socketPath)));
-
-        log.debug("connected to " + channel.getRemoteSocketAddress());
-
-        return new DefaultAgentProxy(new AgentInput(Channels.newInputStream(channel)),
-                                     new AgentOutput(Channels.newOutputStream(channel)));
-      } catch (IOException e) {
-        throw new RuntimeException(e);
-      }
+    static DefaultAgentProxy connect(final File socketFile) throws IOException {
+      final UnixSocketChannel channel = openChannel(socketFile);
+      return new DefaultAgentProxy(new AgentInput(Channels.newInputStream(channel)),
+                                   new AgentOutput(channel),
+                                   channel);
     }
 
     @VisibleForTesting
     DefaultAgentProxy(final AgentInput in, final AgentOutput out) {
+      this(in, out, null);
+    }
+
+    private DefaultAgentProxy(final AgentInput in, final AgentOutput out, final Channel channel) {
       this.out = out;
       this.in = in;
+      this.channel = channel;
+    }
+
+    /**
+     * Return false if the underlying channel to ssh-agent is known to be closed.
+     */
+    boolean isOpen() {
+      return !closed && (channel == null || channel.isOpen());
     }
 
     @Override
@@ -104,22 +257,150 @@ public class AgentProxies {
       return in.readIdentitiesAnswer();
     }
 
+    @Override
+    public List<Identity> list(final long timeout, final TimeUnit unit) throws IOException {
+      return withDeadline(timeout, unit, new Callable<List<Identity>>() {
+        @Override
+        public List<Identity> call() throws IOException {
+          return list();
+        }
+      });
+    }
+
     @Override
     public byte[] sign(final Identity identity, final byte[] data) throws IOException {
-      // TODO (dxia) Support other SSH keys
-      final String keyFormat = identity.getKeyFormat();
-      if (!keyFormat.equals(Rsa.RSA_LABEL)) {
-        throw Throwables.propagate(new RuntimeException(String.format(
-            "Unknown key type %s. This code currently only supports %s.",
-            keyFormat, Rsa.RSA_LABEL)));
-      }
+      checkKeyFormat(identity);
+      out.signRequest(identity, data);
+      return in.readSignResponse();
+    }
+
+    @Override
+    public byte[] sign(final Identity identity, final byte[] data, final long timeout,
+                       final TimeUnit unit) throws IOException {
+      return withDeadline(timeout, unit, new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return sign(identity, data);
+        }
+      });
+    }
 
-      out.signRequest((RSAPublicKey) identity.getPublicKey(), data);
+    @Override
+    public AgentSignature sign(final Identity identity, final byte[] data,
+                               final String algorithm) throws IOException {
+      final int flags = KeyCodecs.signFlags(identity, algorithm);
+      out.signRequest(identity, data, flags);
+      return in.readSignature();
+    }
+
+    @Override
+    public byte[] sign(final Identity identity, final ReadableByteChannel src, final long length)
+        throws IOException {
+      checkKeyFormat(identity);
+      out.signRequest(identity, src, length);
       return in.readSignResponse();
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * <p>Up to {@link #MAX_OUTSTANDING_SIGN_REQUESTS} requests are written before their replies
+     * are read. If ssh-agent refuses a payload, a payload can't be sent or the consumer fails, the
+     * replies still outstanding are read and dropped, so the connection stays usable.
+     */
+    @Override
+    public void signAll(final Identity identity, final Iterator<byte[]> data,
+                        final SignatureConsumer consumer) throws IOException {
+      checkKeyFormat(identity);
+      final PreparedIdentity prepared = PreparedIdentity.of(identity);
+      // Payloads whose sign request has been written but whose reply hasn't been read yet
+      final Queue<byte[]> outstanding = new ArrayDeque<>();
+      while (data.hasNext() || !outstanding.isEmpty()) {
+        if (data.hasNext() && outstanding.size() < MAX_OUTSTANDING_SIGN_REQUESTS) {
+          final byte[] next;
+          try {
+            next = data.next();
+            out.signRequest(prepared, next);
+          } catch (RuntimeException e) {
+            // Nothing of this request was written, e.g. for a null payload.
+            skipSignResponses(outstanding.size());
+            throw e;
+          }
+          outstanding.add(next);
+          continue;
+        }
+
+        final byte[] signed = outstanding.remove();
+        final byte[] signature;
+        try {
+          signature = in.readSignResponse();
+        } catch (AgentFailureException e) {
+          skipSignResponses(outstanding.size());
+          throw e;
+        }
+        try {
+          consumer.accept(signed, signature);
+        } catch (IOException | RuntimeException e) {
+          skipSignResponses(outstanding.size());
+          throw e;
+        }
+      }
+    }
+
+    private void skipSignResponses(final int count) throws IOException {
+      for (int i = 0; i < count; i++) {
+        try {
+          in.readSignResponse();
+        } catch (AgentFailureException e) {
+          // The reply was consumed all the same.
+        }
+      }
+    }
+
+    /**
+     * Run a request, closing the connection if it hasn't finished by the deadline. Closing wakes
+     * up blocked reads and writes, and the connection couldn't be used again anyway since the
+     * reply may still arrive.
+     */
+    private <T> T withDeadline(final long timeout, final TimeUnit unit,
+                               final Callable<T> request) throws IOException {
+      final AtomicBoolean expired = new AtomicBoolean();
+      final ScheduledFuture<?> watchdog = Watchdog.schedule(new Runnable() {
+        @Override
+        public void run() {
+          expired.set(true);
+          try {
+            close();
+          } catch (IOException e) {
+            log.debug("Error closing ssh-agent connection.", e);
+          }
+        }
+      }, timeout, unit);
+
+      try {
+        return request.call();
+      } catch (IOException | RuntimeException e) {
+        if (expired.get()) {
+          throw (IOException) Watchdog.timeout(timeout, unit).initCause(e);
+        }
+        throw e;
+      } catch (Exception e) {
+        throw Throwables.propagate(e);
+      } finally {
+        watchdog.cancel(false);
+      }
+    }
+
+    private static void checkKeyFormat(final Identity identity) {
+      final RuntimeException unsupported = KeyCodecs.unsupportedKeyFormat(identity);
+      if (unsupported != null) {
+        throw unsupported;
+      }
+    }
+
     @Override
     public void close() throws IOException {
+      closed = true;
       out.close();
       in.close();
     }
@@ -38,8 +38,25 @@ package com.spotify.sshagentproxy;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * A client of ssh-agent. Use {@link AgentProxies} to create one.
+ *
+ * <p>This interface gains methods as more of ssh-agent is supported. As of 0.2.2 it has the
+ * timeout, signature algorithm, file and channel variants of {@code list} and {@code sign}, as
+ * well as {@code signAll}, {@code signWithEach} and {@code prepare}. Classes that implement it
+ * directly no longer compile until they implement those too. Implementations should extend
+ * {@link AbstractAgentProxy}, which implements the methods that can be built on the others, so
+ * that only {@code list}, {@code sign} and their timeout and signature algorithm variants are
+ * left. To decorate another {@link AgentProxy}, extend {@link ForwardingAgentProxy}, which
+ * forwards every method.
+ */
 public interface AgentProxy extends Closeable {
 
   /**
@@ -48,6 +65,16 @@ public interface AgentProxy extends Closeable {
    */
   List<Identity> list() throws IOException;
 
+  /**
+   * Get a list of public keys from the ssh-agent, giving up once {@code timeout} has passed.
+   * @param timeout     The maximum time to wait for the ssh-agent.
+   * @param unit        The unit of {@code timeout}.
+   * @return            A list of {@link Identity}
+   * @throws java.net.SocketTimeoutException if the deadline passed. A connection that may still
+   *                    receive the reply is closed rather than reused.
+   */
+  List<Identity> list(final long timeout, final TimeUnit unit) throws IOException;
+
   /**
    * Ask the ssh-agent to hash and sign some data in the form of an array of bytes.
    *
@@ -62,4 +89,109 @@ public interface AgentProxy extends Closeable {
    * @return            An array of bytes of signed data.
    */
   byte[] sign(final Identity identity, final byte[] data) throws IOException;
+
+  /**
+   * Ask the ssh-agent to hash and sign some data, giving up once {@code timeout} has passed. This
+   * bounds the wait for agents that hang or ask the user to confirm every signature.
+   * @param identity    The {@link Identity} whose private key should sign the data.
+   * @param data        An array of bytes for data to be signed.
+   * @param timeout     The maximum time to wait for the ssh-agent.
+   * @param unit        The unit of {@code timeout}.
+   * @return            An array of bytes of signed data.
+   * @throws java.net.SocketTimeoutException if the deadline passed. A connection that may still
+   *                    receive the reply is closed rather than reused.
+   */
+  byte[] sign(final Identity identity, final byte[] data, final long timeout,
+              final TimeUnit unit) throws IOException;
+
+  /**
+   * Ask the ssh-agent to sign some data with a particular signature algorithm, e.g. to get
+   * "rsa-sha2-256" or "rsa-sha2-512" signatures from an RSA key instead of legacy "ssh-rsa" ones
+   * made with SHA-1. The algorithm is requested with the flags of the sign request, see
+   * {@link KeyCodec#getSignFlags(String)}. Other key types only make signatures of their own key
+   * format.
+   * @param identity    The {@link Identity} whose private key should sign the data.
+   * @param data        An array of bytes for data to be signed.
+   * @param algorithm   The signature algorithm.
+   * @return            The signature with the algorithm ssh-agent used. Agents that don't know
+   *                    the flags may have used the key's default algorithm instead.
+   * @throws IllegalArgumentException if keys of the identity's type don't make signatures of
+   *                    {@code algorithm}.
+   */
+  AgentSignature sign(final Identity identity, final byte[] data, final String algorithm)
+      throws IOException;
+
+  /**
+   * Ask the ssh-agent to sign the contents of a file. The file is streamed to the ssh-agent
+   * rather than read into memory.
+   *
+   * Note that ssh-agent implementations limit the size of the messages they accept (OpenSSH
+   * rejects anything larger than 256 KiB), so large files usually need to be hashed first, e.g.
+   * with {@link SshSig}.
+   * @param identity    The {@link Identity} whose private key should sign the data.
+   * @param path        The file to be signed.
+   * @return            An array of bytes of signed data.
+   */
+  byte[] sign(final Identity identity, final Path path) throws IOException;
+
+  /**
+   * Ask the ssh-agent to sign {@code length} bytes read from a channel. The data is streamed to
+   * the ssh-agent through a fixed-size buffer, or transferred directly for a
+   * {@link java.nio.channels.FileChannel}, so memory use doesn't depend on {@code length}.
+   * @param identity    The {@link Identity} whose private key should sign the data.
+   * @param src         A blocking channel positioned at the start of the data to be signed.
+   * @param length      The number of bytes to sign.
+   * @return            An array of bytes of signed data.
+   */
+  byte[] sign(final Identity identity, final ReadableByteChannel src, final long length)
+      throws IOException;
+
+  /**
+   * Ask the ssh-agent to sign each of several payloads with the same key. The key blob is encoded
+   * once, and connections that can pipeline send requests without waiting for earlier replies, so
+   * bulk signing isn't limited by the round trip to the ssh-agent.
+   * @param identity    The {@link Identity} whose private key should sign the data.
+   * @param data        The payloads to be signed.
+   * @return            The signatures, in the order of {@code data}.
+   * @throws IOException if signing failed, e.g. with an {@link AgentFailureException} if the
+   *                     ssh-agent refused to sign one of the payloads.
+   */
+  List<byte[]> signAll(final Identity identity, final List<byte[]> data) throws IOException;
+
+  /**
+   * Like {@link #signAll(Identity, List)}, but takes payloads from an iterator as requests can be
+   * sent and hands each signature to a consumer as it arrives, so neither the payloads nor the
+   * signatures have to be held in memory at once. The consumer is called in the order of
+   * {@code data}, on the calling thread. If signing fails part way, the signatures received before
+   * the failure have already been consumed.
+   * @param identity    The {@link Identity} whose private key should sign the data.
+   * @param data        The payloads to be signed.
+   * @param consumer    Called with each payload and its signature.
+   * @throws IOException if signing failed, e.g. with an {@link AgentFailureException} if the
+   *                     ssh-agent refused to sign one of the payloads.
+   */
+  void signAll(final Identity identity, final Iterator<byte[]> data,
+               final SignatureConsumer consumer) throws IOException;
+
+  /**
+   * Ask the ssh-agent to sign the same data with each of several keys, e.g. for approvals that
+   * need more than one signature. Implementations with more than one connection, or that can
+   * pipeline, send the requests in parallel, so this takes about one round trip to the ssh-agent.
+   * @param identities  The {@link Identity}s whose private keys should sign the data.
+   * @param data        An array of bytes for data to be signed.
+   * @return            The signature of each identity, in the order of {@code identities}.
+   * @throws IOException if signing failed, e.g. with an {@link AgentFailureException} if the
+   *                     ssh-agent refused to sign with one of the keys.
+   */
+  Map<Identity, byte[]> signWithEach(final List<Identity> identities, final byte[] data)
+      throws IOException;
+
+  /**
+   * Return an {@link Identity} that keeps the key-dependent part of sign requests encoded, so
+   * that signing repeatedly with the same key doesn't encode the key blob every time. Pass the
+   * result to {@link #sign(Identity, byte[])} in place of {@code identity}.
+   * @param identity    An {@link Identity} returned by {@link #list()}.
+   * @return            A {@link PreparedIdentity} for {@code identity}.
+   */
+  PreparedIdentity prepare(final Identity identity);
 }
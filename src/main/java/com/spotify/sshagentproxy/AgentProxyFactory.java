@@ -0,0 +1,52 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import java.io.IOException;
+
+/**
+ * Opens new connections to ssh-agent. Used by {@link AgentProxy} implementations that manage
+ * more than one connection over their lifetime.
+ */
+interface AgentProxyFactory {
+
+  /**
+   * Open a new connection to ssh-agent.
+   * @return A connected {@link AgentProxies.DefaultAgentProxy}
+   */
+  AgentProxies.DefaultAgentProxy create() throws IOException;
+}
@@ -36,13 +36,13 @@
 
 package com.spotify.sshagentproxy;
 
-import java.nio.ByteBuffer;
-import java.util.Arrays;
+import com.google.common.primitives.Ints;
 
 /**
  * An abstract class that represents a message headers from the ssh-agent.
  * There are always three headers consisting of the first four bytes, fifth byte, and next four
- * bytes. What these bytes mean depends on the message type.
+ * bytes. What these bytes mean depends on the message type. Headers are read in place from the
+ * start of an array, which may also hold the rest of the message.
  */
 abstract class AgentReplyHeaders {
 
@@ -52,7 +52,7 @@ abstract class AgentReplyHeaders {
    * @return int
    */
   protected static int first(final byte[] bytes) {
-    return intFromSubArray(bytes, 0, 4);
+    return intAt(bytes, 0);
   }
 
   /**
@@ -70,19 +70,16 @@ abstract class AgentReplyHeaders {
    * @return int
    */
   protected static int third(final byte[] bytes) {
-    return intFromSubArray(bytes, 5, 9);
+    return intAt(bytes, 5);
   }
 
   /**
-   * Take a slice of an array of bytes and interpret it as an int.
+   * Interpret four bytes of an array as a big-endian int without copying them.
    * @param bytes Array of bytes
-   * @param from  Start index in the array
-   * @param to    End index in the array
+   * @param index Index of the first of the four bytes
    * @return int
    */
-  private static int intFromSubArray(final byte[] bytes, final int from, final int to) {
-    final byte[] subBytes = Arrays.copyOfRange(bytes, from, to);
-    final ByteBuffer wrap = ByteBuffer.wrap(subBytes);
-    return wrap.getInt();
+  private static int intAt(final byte[] bytes, final int index) {
+    return Ints.fromBytes(bytes[index], bytes[index + 1], bytes[index + 2], bytes[index + 3]);
   }
 }
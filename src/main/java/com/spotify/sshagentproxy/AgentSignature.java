@@ -0,0 +1,112 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import java.util.Arrays;
+
+/**
+ * A signature made by ssh-agent together with the name of its algorithm, e.g. "rsa-sha2-512" or
+ * "ssh-ed25519", as returned by {@link AgentProxy#sign(Identity, byte[], String)}. Agents that
+ * don't know the requested algorithm may sign with the key's default one instead, so check
+ * {@link #getAlgorithm()} before verifying.
+ */
+public final class AgentSignature {
+
+  private final String algorithm;
+  private final byte[] blob;
+
+  AgentSignature(final String algorithm, final byte[] blob) {
+    this.algorithm = checkNotNull(algorithm, "Algorithm cannot be null.");
+    this.blob = checkNotNull(blob, "Signature blob cannot be null.");
+  }
+
+  /**
+   * Return the signature algorithm, the first string of the signature blob sent by ssh-agent.
+   */
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  /**
+   * Return the signature itself, without the algorithm.
+   */
+  public byte[] getBlob() {
+    return blob.clone();
+  }
+
+  byte[] blob() {
+    return blob;
+  }
+
+  /**
+   * Encode the algorithm and the signature as a signature blob as per RFC 4253 section 6.6.
+   */
+  public byte[] encode() {
+    return new SshEncoder(4 + algorithm.length() + 4 + blob.length)
+        .writeUtf8(algorithm)
+        .writeString(blob)
+        .toByteArray();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("algorithm", algorithm)
+        .toString();
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+
+    final AgentSignature that = (AgentSignature) obj;
+    return algorithm.equals(that.algorithm) && Arrays.equals(blob, that.blob);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * algorithm.hashCode() + Arrays.hashCode(blob);
+  }
+}
@@ -0,0 +1,81 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
+
+/**
+ * An {@link AgentProxy} that can also send requests without waiting for the reply. Failures,
+ * including I/O errors, are reported through the returned futures.
+ *
+ * <p>The asynchronous methods don't wait for ssh-agent to answer, but an implementation may block
+ * the calling thread while the request, or one made before it, is written to the socket. That
+ * includes a large streamed sign request, see
+ * {@link AgentProxy#sign(Identity, java.nio.channels.ReadableByteChannel, long)}.
+ */
+public interface AsyncAgentProxy extends AgentProxy {
+
+  /**
+   * Asynchronously get a list of public keys from the ssh-agent.
+   * @return A future list of {@link Identity}
+   */
+  ListenableFuture<List<Identity>> listAsync();
+
+  /**
+   * Asynchronously ask the ssh-agent to hash and sign some data in the form of an array of bytes.
+   * The data may be written after this method returns, so it must not be modified until the
+   * future completes.
+   * @param identity    The {@link Identity} whose private key should sign the data.
+   * @param data        An array of bytes for data to be signed.
+   * @return            A future array of bytes of signed data.
+   * @see AgentProxy#sign(Identity, byte[])
+   */
+  ListenableFuture<byte[]> signAsync(final Identity identity, final byte[] data);
+
+  /**
+   * Asynchronously ask the ssh-agent to sign some data with a particular signature algorithm.
+   * The data must not be modified until the future completes.
+   * @param identity    The {@link Identity} whose private key should sign the data.
+   * @param data        An array of bytes for data to be signed.
+   * @param algorithm   The signature algorithm, e.g. "rsa-sha2-512".
+   * @return            A future signature with the algorithm ssh-agent used.
+   * @see AgentProxy#sign(Identity, byte[], String)
+   */
+  ListenableFuture<AgentSignature> signAsync(final Identity identity, final byte[] data,
+                                             final String algorithm);
+}
@@ -37,7 +37,6 @@
 package com.spotify.sshagentproxy;
 
 import com.google.common.base.Objects;
-import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -46,40 +45,20 @@ import java.util.Iterator;
  */
 class ByteIterator implements Iterator<byte[]> {
 
-  private final byte[] data;
-  private int cursor;
+  private final SshDecoder decoder;
 
   ByteIterator(final byte[] data) {
-    this.data = data;
-    this.cursor = 0;
+    this.decoder = new SshDecoder(data);
   }
 
   @Override
   public boolean hasNext() {
-    return this.cursor < this.data.length;
+    return decoder.hasRemaining();
   }
 
   @Override
   public byte[] next() {
-    int num = s2i(Arrays.copyOfRange(this.data, this.cursor, this.data.length));
-    this.cursor += 4;
-    final byte[] bytes = Arrays.copyOfRange(this.data, this.cursor, this.cursor + num);
-    this.cursor += num;
-    return bytes;
-  }
-
-  /**
-   * Read four bytes off the provided byte string and return the value as a big endian
-   * 32 bit unsigned integer.
-   * @param bytes Array of bytes.
-   * @return int
-   */
-  private int s2i(final byte[] bytes) {
-    int num = 0;
-    for (int i = 0; i < 4; i++) {
-      num += (bytes[i] & 0xff) << ((3 - i) * 8);
-    }
-    return num;
+    return decoder.readBytes();
   }
 
   @Override
@@ -90,6 +69,7 @@ class ByteIterator implements Iterator<byte[]> {
   @Override
   public String toString() {
     return Objects.toStringHelper(this)
+        .add("decoder", decoder)
         .toString();
   }
 }
@@ -0,0 +1,176 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link AgentProxy} that caches the identities returned by {@link #list()}.
+ *
+ * <p>The first call to {@link #list()} asks ssh-agent for its identities. Later calls return the
+ * cached list. Once it is older than the configured time-to-live the next call still returns it,
+ * but also starts fetching a fresh list in the background, which replaces the cached one when it
+ * arrives. If that fetch fails the stale list is kept and the next call tries again. Call
+ * {@link #invalidate()} after adding or removing keys to make the next call block on a fresh list.
+ *
+ * <p>Identities are fetched from a background thread, so the wrapped {@link AgentProxy} must be
+ * safe for concurrent use, e.g. one created by {@link AgentProxies#newPooledInstance()}.
+ */
+public class CachingAgentProxy extends ForwardingAgentProxy {
+
+  private static final String KEY = "identities";
+
+  private final AgentProxy delegate;
+  private final LoadingCache<String, List<Identity>> identities;
+  private final long ttlNanos;
+  private final Executor refreshExecutor;
+
+  private volatile IdentityIndex index;
+
+  /**
+   * @param refreshExecutor Runs background refreshes. If it is an {@link ExecutorService} it is
+   *                        owned by this proxy and shut down when it is closed.
+   */
+  CachingAgentProxy(final AgentProxy delegate, final long ttl, final TimeUnit unit,
+                    final Executor refreshExecutor, final Ticker ticker) {
+    checkNotNull(delegate, "AgentProxy cannot be null.");
+    checkNotNull(refreshExecutor, "Executor cannot be null.");
+    checkArgument(ttl >= 0, "ttl cannot be negative.");
+    this.delegate = delegate;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.refreshExecutor = refreshExecutor;
+    this.identities = CacheBuilder.newBuilder()
+        .refreshAfterWrite(Math.max(ttlNanos, 1), TimeUnit.NANOSECONDS)
+        .ticker(ticker)
+        .build(CacheLoader.asyncReloading(new CacheLoader<String, List<Identity>>() {
+          @Override
+          public List<Identity> load(final String key) throws IOException {
+            return ImmutableList.copyOf(delegate.list());
+          }
+        }, refreshExecutor));
+  }
+
+  @Override
+  protected AgentProxy delegate() {
+    return delegate;
+  }
+
+  /**
+   * Return the cached identities, fetching them first if there are none.
+   * @return An immutable list of {@link Identity}
+   */
+  @Override
+  public List<Identity> list() throws IOException {
+    try {
+      return identities.get(KEY);
+    } catch (ExecutionException | UncheckedExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Return the cached identities, or fetch them from ssh-agent within {@code timeout} if there
+   * are none.
+   * @return An immutable list of {@link Identity}
+   */
+  @Override
+  public List<Identity> list(final long timeout, final TimeUnit unit) throws IOException {
+    if (identities.getIfPresent(KEY) != null) {
+      // Returns straight away, refreshing in the background if needed.
+      return list();
+    }
+    final List<Identity> fetched = ImmutableList.copyOf(delegate.list(timeout, unit));
+    identities.put(KEY, fetched);
+    return fetched;
+  }
+
+  /**
+   * Return the cached identities indexed for lookup, fetching them first if there are none. The
+   * index is built the first time it is asked for after each fetch.
+   */
+  public IdentityIndex index() throws IOException {
+    final List<Identity> current = list();
+    IdentityIndex result = index;
+    // IdentityIndex.of keeps an immutable list as is, so an index of the cached list holds it.
+    if (result == null || result.getIdentities() != current) {
+      result = IdentityIndex.of(current);
+      index = result;
+    }
+    return result;
+  }
+
+  /**
+   * Discard the cached identities so that the next call to {@link #list()} fetches them from
+   * ssh-agent.
+   */
+  public void invalidate() {
+    identities.invalidateAll();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (refreshExecutor instanceof ExecutorService) {
+      ((ExecutorService) refreshExecutor).shutdownNow();
+    }
+    super.close();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("delegate", delegate)
+        .add("ttlNanos", ttlNanos)
+        .toString();
+  }
+}
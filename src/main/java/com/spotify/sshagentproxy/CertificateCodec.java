@@ -0,0 +1,136 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.util.Set;
+
+/**
+ * The {@link KeyCodec} of OpenSSH certificates of another key type, e.g.
+ * ssh-ed25519-cert-v01@openssh.com, see OpenSSH's PROTOCOL.certkeys. ssh-agent signs with the
+ * certified key, so signatures are those of the key type and are handled by its codec.
+ */
+final class CertificateCodec implements KeyCodec {
+
+  static final String CERT_SUFFIX = "-cert-v01@openssh.com";
+
+  private final KeyCodec keyCodec;
+  private final int keyFields;
+  private final String keyFormat;
+
+  /**
+   * @param keyCodec  The codec of the certified key type.
+   * @param keyFields The number of strings and mpints that encode a key of that type after its
+   *                  key format, e.g. two for ssh-rsa's exponent and modulus.
+   */
+  CertificateCodec(final KeyCodec keyCodec, final int keyFields) {
+    this.keyCodec = checkNotNull(keyCodec, "KeyCodec cannot be null.");
+    this.keyFields = keyFields;
+    this.keyFormat = keyCodec.getKeyFormat() + CERT_SUFFIX;
+  }
+
+  /**
+   * Return the codec of the certified key type.
+   */
+  KeyCodec getKeyCodec() {
+    return keyCodec;
+  }
+
+  int getKeyFields() {
+    return keyFields;
+  }
+
+  @Override
+  public String getKeyFormat() {
+    return keyFormat;
+  }
+
+  @Override
+  public Set<String> getSignatureFormats() {
+    return keyCodec.getSignatureFormats();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Returns the certified key.
+   */
+  @Override
+  public PublicKey decodePublicKey(final byte[] keyBlob) throws GeneralSecurityException {
+    final OpenSshCertificate certificate;
+    try {
+      certificate = OpenSshCertificate.parse(keyBlob);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidKeyException(e);
+    }
+    return keyCodec.decodePublicKey(certificate.getKeyBlob());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Always false, as a bare {@link PublicKey} belongs to the codec of its own key type.
+   */
+  @Override
+  public boolean supports(final PublicKey publicKey) {
+    return false;
+  }
+
+  @Override
+  public int getSignFlags(final String signatureAlgorithm) {
+    return keyCodec.getSignFlags(signatureAlgorithm);
+  }
+
+  @Override
+  public boolean verify(final PublicKey publicKey, final String signatureAlgorithm,
+                        final byte[] data, final byte[] signature)
+      throws GeneralSecurityException {
+    return keyCodec.verify(publicKey, signatureAlgorithm, data, signature);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("keyFormat", keyFormat)
+        .toString();
+  }
+}
@@ -0,0 +1,100 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableList;
+import java.util.List;
+
+/**
+ * An {@link Identity} whose key blob is an OpenSSH certificate, e.g. one added with
+ * {@code ssh-add} next to its -cert.pub file. {@link #getPublicKey()} returns the certified key.
+ * The certificate is parsed the first time it is asked for, and parsed certificates are shared
+ * between identities with the same key blob, see {@link OpenSshCertificate#parse(byte[])}.
+ */
+public class CertificateIdentity extends DefaultIdentity {
+
+  private volatile OpenSshCertificate certificate;
+
+  CertificateIdentity(final String keyFormat, final byte[] keyBlob, final byte[] commentBytes,
+                      final String comment) {
+    super(keyFormat, keyBlob, commentBytes, comment);
+  }
+
+  /**
+   * Return the certificate identities among {@code identities} that are valid at
+   * {@code timeMillis}, in order. Listing the same certificates again doesn't parse them again.
+   * @param identities Identities, e.g. as returned by {@link AgentProxy#list()}.
+   * @param timeMillis Milliseconds since the epoch, e.g. {@link System#currentTimeMillis()}.
+   */
+  public static List<CertificateIdentity> validAt(final List<Identity> identities,
+                                                  final long timeMillis) {
+    checkNotNull(identities, "Identities cannot be null.");
+    final ImmutableList.Builder<CertificateIdentity> valid = ImmutableList.builder();
+    for (final Identity identity : identities) {
+      if (identity instanceof CertificateIdentity) {
+        final CertificateIdentity certificateIdentity = (CertificateIdentity) identity;
+        if (certificateIdentity.isValidAt(timeMillis)) {
+          valid.add(certificateIdentity);
+        }
+      }
+    }
+    return valid.build();
+  }
+
+  /**
+   * Return the parsed certificate.
+   * @throws IllegalArgumentException if the key blob isn't a well-formed certificate.
+   */
+  public OpenSshCertificate getCertificate() {
+    OpenSshCertificate result = certificate;
+    if (result == null) {
+      result = OpenSshCertificate.parse(getKeyBlob());
+      certificate = result;
+    }
+    return result;
+  }
+
+  /**
+   * Return true if the certificate is valid at {@code timeMillis}, see
+   * {@link OpenSshCertificate#isValidAt(long)}.
+   */
+  public boolean isValidAt(final long timeMillis) {
+    return getCertificate().isValidAt(timeMillis);
+  }
+}
@@ -0,0 +1,191 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link AgentProxy} that lets concurrent identical calls to
+ * {@link #sign(Identity, byte[])} share one request to ssh-agent.
+ *
+ * <p>The first thread to ask for a signature of some data with some key sends the request.
+ * Threads asking for the same signature while it is in flight wait for that request and get a
+ * copy of its signature, or the exception it failed with. Nothing is kept once the request has
+ * completed, see {@link SignatureCachingAgentProxy} for that. Signatures of files and channels
+ * are never shared. Calls without a timeout don't share requests sent with one, so they never
+ * fail with another thread's timeout.
+ */
+class CoalescingAgentProxy extends ForwardingAgentProxy {
+
+  private final AgentProxy delegate;
+  private final ConcurrentMap<SignatureKey, ListenableFuture<byte[]>> inFlight =
+      Maps.newConcurrentMap();
+  // Requests with a deadline, which callers without one don't share as they may time out.
+  private final ConcurrentMap<SignatureKey, ListenableFuture<byte[]>> timedInFlight =
+      Maps.newConcurrentMap();
+
+  CoalescingAgentProxy(final AgentProxy delegate) {
+    checkNotNull(delegate, "AgentProxy cannot be null.");
+    this.delegate = delegate;
+  }
+
+  @Override
+  protected AgentProxy delegate() {
+    return delegate;
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data) throws IOException {
+    return sign(identity, data, new Call() {
+      @Override
+      public byte[] sign() throws IOException {
+        return delegate.sign(identity, data);
+      }
+
+      @Override
+      public byte[] await(final ListenableFuture<byte[]> shared) throws IOException {
+        return PendingRequest.await(shared);
+      }
+    }, inFlight);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>A thread that shares another thread's request stops waiting for it after {@code timeout},
+   * without cancelling it for the others.
+   */
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data, final long timeout,
+                     final TimeUnit unit) throws IOException {
+    return sign(identity, data, new Call() {
+      @Override
+      public byte[] sign() throws IOException {
+        return delegate.sign(identity, data, timeout, unit);
+      }
+
+      @Override
+      public byte[] await(final ListenableFuture<byte[]> shared) throws IOException {
+        return PendingRequest.await(nonCancelling(shared), timeout, unit);
+      }
+    }, timedInFlight);
+  }
+
+  /**
+   * @param requests The requests this call shares. Calls with a deadline also share requests
+   *                 without one.
+   */
+  private byte[] sign(final Identity identity, final byte[] data, final Call call,
+                      final ConcurrentMap<SignatureKey, ListenableFuture<byte[]>> requests)
+      throws IOException {
+    final SignatureKey key = SignatureKey.of(identity, data);
+    final SettableFuture<byte[]> request = SettableFuture.create();
+    ListenableFuture<byte[]> shared = requests == timedInFlight ? inFlight.get(key) : null;
+    if (shared == null) {
+      shared = requests.putIfAbsent(key, request);
+    }
+    if (shared != null) {
+      return call.await(shared).clone();
+    }
+
+    try {
+      final byte[] signature = call.sign();
+      request.set(signature);
+      return signature.clone();
+    } catch (IOException | RuntimeException | Error e) {
+      request.setException(e);
+      throw e;
+    } finally {
+      requests.remove(key, request);
+    }
+  }
+
+  /**
+   * Return a future that completes with {@code shared}, but can be cancelled on its own.
+   */
+  private static <T> ListenableFuture<T> nonCancelling(final ListenableFuture<T> shared) {
+    final SettableFuture<T> view = SettableFuture.create();
+    Futures.addCallback(shared, new FutureCallback<T>() {
+      @Override
+      public void onSuccess(final T result) {
+        view.set(result);
+      }
+
+      @Override
+      public void onFailure(final Throwable cause) {
+        view.setException(cause);
+      }
+    });
+    return view;
+  }
+
+  /**
+   * Return the number of distinct signatures currently being requested from ssh-agent.
+   */
+  int inFlight() {
+    return inFlight.size() + timedInFlight.size();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("delegate", delegate)
+        .add("inFlight", inFlight())
+        .toString();
+  }
+
+  /**
+   * How the calling thread gets a signature: by sending a request itself, or by waiting for the
+   * request of another thread.
+   */
+  private interface Call {
+
+    byte[] sign() throws IOException;
+
+    byte[] await(ListenableFuture<byte[]> shared) throws IOException;
+  }
+}
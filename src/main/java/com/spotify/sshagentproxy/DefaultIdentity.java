@@ -36,49 +36,75 @@
 
 package com.spotify.sshagentproxy;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
-import java.util.Iterator;
+import java.util.Arrays;
 
+/**
+ * An {@link Identity} that keeps the key blob and comment as the raw bytes sent by ssh-agent.
+ * Only the key format is decoded up front. The comment and the {@link PublicKey} are decoded the
+ * first time they're asked for, so listing many identities doesn't pay for building keys that are
+ * never used. Instances are thread-safe. The public key is built under a lock; the other lazily
+ * computed values are idempotent, so racing threads at worst compute one of them twice.
+ *
+ * <p>Identities of OpenSSH certificates are {@link CertificateIdentity}s.
+ */
 public class DefaultIdentity implements Identity {
 
-  private static final String RSA_LABEL = "ssh-rsa";
-  private static final String DSS_LABEL = "ssh-dss";
-
   private final String keyFormat;
-  private final PublicKey publicKey;
-  private final String comment;
   private final byte[] keyBlob;
+  private final byte[] commentBytes;
 
-  private DefaultIdentity(final String keyFormat, final PublicKey publicKey, final String comment,
-                          final byte[] keyBlob) {
+  private volatile PublicKey publicKey;
+  private volatile String comment;
+  private volatile String fingerprint;
+  private volatile String md5Fingerprint;
+
+  DefaultIdentity(final String keyFormat, final byte[] keyBlob, final byte[] commentBytes,
+                  final String comment) {
     this.keyFormat = keyFormat;
-    this.publicKey = publicKey;
-    this.comment = comment;
     this.keyBlob = keyBlob;
+    this.commentBytes = commentBytes;
+    this.comment = comment;
   }
 
   public static Identity from(final byte[] keyBlob, final String comment)
       throws NoSuchAlgorithmException, InvalidKeyException, InvalidKeySpecException {
-    final Iterator<byte[]> keyBlobIterator = new ByteIterator(keyBlob);
-    final String keyFormat = new String(keyBlobIterator.next());
-
-    final PublicKey publicKey;
-    switch (keyFormat) {
-      case RSA_LABEL:
-        publicKey = Rsa.from(keyBlob);
-        break;
-      case DSS_LABEL:
-      default:
-        throw new UnsupportedOperationException(String.format(
-            "Got unsupported key format '%s'. Skipping.", keyFormat));
+    return create(keyFormat(keyBlob), keyBlob, null, comment);
+  }
+
+  /**
+   * Create an identity whose comment is decoded as UTF-8 the first time it is needed.
+   * @param keyBlob      The key blob as sent by ssh-agent.
+   * @param commentBytes The comment as sent by ssh-agent.
+   */
+  static Identity fromCommentBytes(final byte[] keyBlob, final byte[] commentBytes) {
+    return create(keyFormat(keyBlob), keyBlob, commentBytes, null);
+  }
+
+  /**
+   * Create a {@link CertificateIdentity} for certificates and a plain identity otherwise.
+   */
+  private static Identity create(final String keyFormat, final byte[] keyBlob,
+                                 final byte[] commentBytes, final String comment) {
+    if (KeyCodecs.get(keyFormat) instanceof CertificateCodec) {
+      return new CertificateIdentity(keyFormat, keyBlob, commentBytes, comment);
     }
+    return new DefaultIdentity(keyFormat, keyBlob, commentBytes, comment);
+  }
 
-    keyBlobIterator.next();
-    return new DefaultIdentity(keyFormat, publicKey, comment, keyBlob);
+  private static String keyFormat(final byte[] keyBlob) {
+    final String keyFormat = new SshDecoder(keyBlob).readAscii();
+    if (!KeyCodecs.isSupported(keyFormat)) {
+      throw new UnsupportedOperationException(String.format(
+          "Got unsupported key format '%s'. Skipping.", keyFormat));
+    }
+    return keyFormat;
   }
 
   @Override
@@ -86,12 +112,59 @@ public class DefaultIdentity implements Identity {
     return keyFormat;
   }
 
+  /**
+   * Return the {@link PublicKey}, building it from the key blob on first use.
+   * @throws IllegalStateException if the key blob can't be decoded.
+   */
   public PublicKey getPublicKey() {
-    return publicKey;
+    PublicKey result = publicKey;
+    if (result == null) {
+      synchronized (this) {
+        result = publicKey;
+        if (result == null) {
+          try {
+            result = KeyCodecs.get(keyFormat).decodePublicKey(keyBlob);
+          } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Unable to decode " + keyFormat + " public key.", e);
+          }
+          publicKey = result;
+        }
+      }
+    }
+    return result;
   }
 
   public String getComment() {
-    return comment;
+    String result = comment;
+    if (result == null && commentBytes != null) {
+      result = new String(commentBytes, Charsets.UTF_8);
+      comment = result;
+    }
+    return result;
+  }
+
+  /**
+   * Return the SHA-256 fingerprint, computing it on first use, see {@link Fingerprints}.
+   */
+  public String getFingerprint() {
+    String result = fingerprint;
+    if (result == null) {
+      result = Fingerprints.sha256(Fingerprints.fingerprintBlob(this));
+      fingerprint = result;
+    }
+    return result;
+  }
+
+  /**
+   * Return the MD5 fingerprint, computing it on first use, see {@link Fingerprints}.
+   */
+  public String getMd5Fingerprint() {
+    String result = md5Fingerprint;
+    if (result == null) {
+      result = Fingerprints.md5(Fingerprints.fingerprintBlob(this));
+      md5Fingerprint = result;
+    }
+    return result;
   }
 
   @Override
@@ -103,8 +176,7 @@ public class DefaultIdentity implements Identity {
   public String toString() {
     return Objects.toStringHelper(this)
         .add("keyFormat", keyFormat)
-        .add("publicKey", publicKey)
-        .add("comment", comment)
+        .add("comment", getComment())
         .toString();
   }
 
@@ -119,21 +191,25 @@ public class DefaultIdentity implements Identity {
 
     final DefaultIdentity that = (DefaultIdentity) obj;
 
+    // The key blob encodes the public key, so comparing blobs avoids building the keys.
     if (keyFormat != null ? !keyFormat.equals(that.keyFormat) : that.keyFormat != null) {
       return false;
     }
-    if (publicKey != null ? !publicKey.equals(that.publicKey) : that.publicKey != null) {
+    if (!Arrays.equals(keyBlob, that.keyBlob)) {
       return false;
     }
-    return !(comment != null ? !comment.equals(that.comment) : that.comment != null);
+    final String thisComment = getComment();
+    final String thatComment = that.getComment();
+    return !(thisComment != null ? !thisComment.equals(thatComment) : thatComment != null);
 
   }
 
   @Override
   public int hashCode() {
+    final String thisComment = getComment();
     int result = keyFormat != null ? keyFormat.hashCode() : 0;
-    result = 31 * result + (publicKey != null ? publicKey.hashCode() : 0);
-    result = 31 * result + (comment != null ? comment.hashCode() : 0);
+    result = 31 * result + Arrays.hashCode(keyBlob);
+    result = 31 * result + (thisComment != null ? thisComment.hashCode() : 0);
     return result;
   }
 }
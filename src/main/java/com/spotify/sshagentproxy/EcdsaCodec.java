@@ -0,0 +1,251 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import java.math.BigInteger;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The {@link KeyCodec} of ecdsa-sha2-* keys on one of the NIST curves, see RFC 5656. Signatures
+ * are sent by ssh-agent as two mpints and are converted to DER for the JCA when verified.
+ */
+final class EcdsaCodec implements KeyCodec {
+
+  static final EcdsaCodec NISTP256 = new EcdsaCodec("nistp256", "secp256r1", "SHA256withECDSA");
+  static final EcdsaCodec NISTP384 = new EcdsaCodec("nistp384", "secp384r1", "SHA384withECDSA");
+  static final EcdsaCodec NISTP521 = new EcdsaCodec("nistp521", "secp521r1", "SHA512withECDSA");
+
+  private static final byte UNCOMPRESSED_POINT = 4;
+
+  private static final int DER_SEQUENCE = 0x30;
+  private static final int DER_INTEGER = 0x02;
+
+  private final String keyFormat;
+  private final String curveId;
+  private final String curveName;
+  private final String jcaAlgorithm;
+
+  // Looked up on first use, so a JDK without EC support only fails for EC keys.
+  private volatile ECParameterSpec params;
+
+  private EcdsaCodec(final String curveId, final String curveName,
+                     final String jcaAlgorithm) {
+    this.keyFormat = "ecdsa-sha2-" + curveId;
+    this.curveId = curveId;
+    this.curveName = curveName;
+    this.jcaAlgorithm = jcaAlgorithm;
+  }
+
+  @Override
+  public String getKeyFormat() {
+    return keyFormat;
+  }
+
+  @Override
+  public Set<String> getSignatureFormats() {
+    return ImmutableSet.of(keyFormat);
+  }
+
+  @Override
+  public PublicKey decodePublicKey(final byte[] keyBlob) throws GeneralSecurityException {
+    final byte[] point;
+    try {
+      final SshDecoder decoder = new SshDecoder(keyBlob);
+      final String format = decoder.readAscii();
+      final String curve = decoder.readAscii();
+      if (!format.equals(keyFormat) || !curve.equals(curveId)) {
+        throw new InvalidKeyException(String.format(
+            "Expected a %s key on curve %s but got %s on %s", keyFormat, curveId, format, curve));
+      }
+      point = decoder.readBytes();
+    } catch (IllegalArgumentException e) {
+      throw new InvalidKeyException(e);
+    }
+
+    final ECParameterSpec params = params();
+    final int fieldBytes = fieldBytes(params);
+    if (point.length != 1 + 2 * fieldBytes || point[0] != UNCOMPRESSED_POINT) {
+      throw new InvalidKeyException("Only uncompressed " + curveId + " points are supported.");
+    }
+    final BigInteger x = new BigInteger(1, Arrays.copyOfRange(point, 1, 1 + fieldBytes));
+    final BigInteger y = new BigInteger(1, Arrays.copyOfRange(point, 1 + fieldBytes,
+                                                              point.length));
+    return KeyFactory.getInstance("EC").generatePublic(
+        new ECPublicKeySpec(new ECPoint(x, y), params));
+  }
+
+  /**
+   * Encode an {@link ECPublicKey} on this codec's curve as a key blob.
+   */
+  byte[] encode(final ECPublicKey publicKey) {
+    checkArgument(supports(publicKey), "Not a %s public key.", curveId);
+    final int fieldBytes = fieldBytes(publicKey.getParams());
+    final byte[] point = new byte[1 + 2 * fieldBytes];
+    point[0] = UNCOMPRESSED_POINT;
+    putUnsigned(publicKey.getW().getAffineX(), point, 1, fieldBytes);
+    putUnsigned(publicKey.getW().getAffineY(), point, 1 + fieldBytes, fieldBytes);
+    return new SshEncoder()
+        .writeUtf8(keyFormat)
+        .writeUtf8(curveId)
+        .writeString(point)
+        .toByteArray();
+  }
+
+  @Override
+  public boolean supports(final PublicKey publicKey) {
+    if (!(publicKey instanceof ECPublicKey)) {
+      return false;
+    }
+    try {
+      return params().getCurve().equals(((ECPublicKey) publicKey).getParams().getCurve());
+    } catch (GeneralSecurityException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public int getSignFlags(final String signatureAlgorithm) {
+    checkArgument(getKeyFormat().equals(signatureAlgorithm),
+                  "%s keys don't make %s signatures.", getKeyFormat(), signatureAlgorithm);
+    return AgentOutput.NO_FLAGS;
+  }
+
+  @Override
+  public boolean verify(final PublicKey publicKey, final String signatureAlgorithm,
+                        final byte[] data, final byte[] signature)
+      throws GeneralSecurityException {
+    if (!getKeyFormat().equals(signatureAlgorithm)) {
+      return false;
+    }
+    final BigInteger sigR;
+    final BigInteger sigS;
+    try {
+      final SshDecoder decoder = new SshDecoder(signature);
+      sigR = decoder.readMpint();
+      sigS = decoder.readMpint();
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    final Signature verifier = Signature.getInstance(jcaAlgorithm);
+    verifier.initVerify(publicKey);
+    verifier.update(data);
+    return verifier.verify(toDer(sigR, sigS));
+  }
+
+  /**
+   * Encode an ECDSA signature as the DER SEQUENCE of two INTEGERs the JCA expects.
+   */
+  static byte[] toDer(final BigInteger sigR, final BigInteger sigS) {
+    final byte[] rBytes = sigR.toByteArray();
+    final byte[] sBytes = sigS.toByteArray();
+    final int contentLength = derLength(rBytes.length) + derLength(sBytes.length);
+    final byte[] der = new byte[derLength(contentLength)];
+    int offset = putHeader(der, 0, DER_SEQUENCE, contentLength);
+    offset = putHeader(der, offset, DER_INTEGER, rBytes.length);
+    System.arraycopy(rBytes, 0, der, offset, rBytes.length);
+    offset = putHeader(der, offset + rBytes.length, DER_INTEGER, sBytes.length);
+    System.arraycopy(sBytes, 0, der, offset, sBytes.length);
+    return der;
+  }
+
+  /**
+   * Return the length of a DER element with {@code contentLength} bytes of content. The
+   * signatures of the NIST curves are always shorter than 256 bytes.
+   */
+  private static int derLength(final int contentLength) {
+    checkArgument(contentLength < 256, "DER content too long.");
+    return (contentLength < 128 ? 2 : 3) + contentLength;
+  }
+
+  private static int putHeader(final byte[] der, final int offset, final int tag,
+                               final int contentLength) {
+    int position = offset;
+    der[position++] = (byte) tag;
+    if (contentLength >= 128) {
+      der[position++] = (byte) 0x81;
+    }
+    der[position++] = (byte) contentLength;
+    return position;
+  }
+
+  private static void putUnsigned(final BigInteger value, final byte[] dest, final int offset,
+                                  final int length) {
+    final byte[] bytes = value.toByteArray();
+    // toByteArray() may add a sign byte or drop leading zeros.
+    final int start = Math.max(0, bytes.length - length);
+    final int copied = bytes.length - start;
+    System.arraycopy(bytes, start, dest, offset + length - copied, copied);
+  }
+
+  private static int fieldBytes(final ECParameterSpec params) {
+    return (params.getCurve().getField().getFieldSize() + 7) / 8;
+  }
+
+  private ECParameterSpec params() throws GeneralSecurityException {
+    ECParameterSpec result = params;
+    if (result == null) {
+      final AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+      parameters.init(new ECGenParameterSpec(curveName));
+      result = parameters.getParameterSpec(ECParameterSpec.class);
+      params = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("keyFormat", keyFormat)
+        .toString();
+  }
+}
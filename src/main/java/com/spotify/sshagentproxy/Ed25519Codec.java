@@ -0,0 +1,155 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.primitives.Bytes;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The {@link KeyCodec} of ssh-ed25519 keys, see RFC 8709. The JDK builds Ed25519 keys from Java
+ * 15 on; older JDKs need a provider such as Bouncy Castle that registers the "Ed25519"
+ * algorithm. Keys are passed to it in their X.509 encoding, so nothing here depends on a
+ * provider's key classes.
+ */
+final class Ed25519Codec implements KeyCodec {
+
+  static final String KEY_FORMAT = "ssh-ed25519";
+
+  private static final String ALGORITHM = "Ed25519";
+  private static final int KEY_LENGTH = 32;
+  private static final int SIGNATURE_LENGTH = 64;
+
+  // The X.509 SubjectPublicKeyInfo of an Ed25519 key up to the key itself, see RFC 8410.
+  private static final byte[] X509_PREFIX = new byte[] {
+      0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x70, 0x03, 0x21, 0x00};
+
+  @Override
+  public String getKeyFormat() {
+    return KEY_FORMAT;
+  }
+
+  @Override
+  public Set<String> getSignatureFormats() {
+    return ImmutableSet.of(KEY_FORMAT);
+  }
+
+  @Override
+  public PublicKey decodePublicKey(final byte[] keyBlob) throws GeneralSecurityException {
+    final byte[] key;
+    try {
+      final SshDecoder decoder = new SshDecoder(keyBlob);
+      final String keyFormat = decoder.readAscii();
+      if (!keyFormat.equals(KEY_FORMAT)) {
+        throw new InvalidKeyException("Expected a " + KEY_FORMAT + " key but got " + keyFormat);
+      }
+      key = decoder.readBytes();
+    } catch (IllegalArgumentException e) {
+      throw new InvalidKeyException(e);
+    }
+    if (key.length != KEY_LENGTH) {
+      throw new InvalidKeyException("Invalid " + KEY_FORMAT + " key length " + key.length);
+    }
+    return KeyFactory.getInstance(ALGORITHM)
+        .generatePublic(new X509EncodedKeySpec(Bytes.concat(X509_PREFIX, key)));
+  }
+
+  /**
+   * Encode an Ed25519 {@link PublicKey} as a key blob.
+   * @throws IllegalArgumentException if {@code publicKey} isn't an Ed25519 key.
+   */
+  static byte[] encode(final PublicKey publicKey) {
+    final byte[] encoded = publicKey.getEncoded();
+    checkArgument(isEd25519(encoded), "Not an Ed25519 public key.");
+    return new SshEncoder()
+        .writeUtf8(KEY_FORMAT)
+        .writeString(Arrays.copyOfRange(encoded, X509_PREFIX.length, encoded.length))
+        .toByteArray();
+  }
+
+  @Override
+  public boolean supports(final PublicKey publicKey) {
+    // Providers name the algorithm "Ed25519" or "EdDSA", so recognize the key by its encoding.
+    return "X.509".equals(publicKey.getFormat()) && isEd25519(publicKey.getEncoded());
+  }
+
+  @Override
+  public int getSignFlags(final String signatureAlgorithm) {
+    checkArgument(getKeyFormat().equals(signatureAlgorithm),
+                  "%s keys don't make %s signatures.", getKeyFormat(), signatureAlgorithm);
+    return AgentOutput.NO_FLAGS;
+  }
+
+  @Override
+  public boolean verify(final PublicKey publicKey, final String signatureAlgorithm,
+                        final byte[] data, final byte[] signature)
+      throws GeneralSecurityException {
+    if (!getKeyFormat().equals(signatureAlgorithm)) {
+      return false;
+    }
+    if (signature.length != SIGNATURE_LENGTH) {
+      return false;
+    }
+    final Signature verifier = Signature.getInstance(ALGORITHM);
+    verifier.initVerify(publicKey);
+    verifier.update(data);
+    return verifier.verify(signature);
+  }
+
+  private static boolean isEd25519(final byte[] encoded) {
+    return encoded != null
+           && encoded.length == X509_PREFIX.length + KEY_LENGTH
+           && Arrays.equals(Arrays.copyOf(encoded, X509_PREFIX.length), X509_PREFIX);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("keyFormat", KEY_FORMAT)
+        .toString();
+  }
+}
@@ -0,0 +1,114 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Key fingerprints in the formats printed by {@code ssh-add -l} and {@code ssh-keygen -l}, i.e.
+ * "SHA256:" followed by unpadded base64 and "MD5:" followed by colon-separated hex. Like OpenSSH,
+ * the fingerprint of a certificate is that of its certified key.
+ */
+public final class Fingerprints {
+
+  static final String SHA256_PREFIX = "SHA256:";
+  static final String MD5_PREFIX = "MD5:";
+
+  private static final BaseEncoding SHA256_ENCODING = BaseEncoding.base64().omitPadding();
+  private static final BaseEncoding MD5_ENCODING =
+      BaseEncoding.base16().lowerCase().withSeparator(":", 2);
+
+  private Fingerprints() {
+  }
+
+  /**
+   * Return the SHA-256 fingerprint of an identity. {@link DefaultIdentity}s compute it once.
+   */
+  public static String sha256(final Identity identity) {
+    checkNotNull(identity, "Identity cannot be null.");
+    if (identity instanceof DefaultIdentity) {
+      return ((DefaultIdentity) identity).getFingerprint();
+    }
+    return sha256(fingerprintBlob(identity));
+  }
+
+  /**
+   * Return the SHA-256 fingerprint of a key blob encoded as per RFC 4253 section 6.6.
+   */
+  public static String sha256(final byte[] keyBlob) {
+    return SHA256_PREFIX + SHA256_ENCODING.encode(hash(Hashing.sha256(), keyBlob));
+  }
+
+  /**
+   * Return the MD5 fingerprint of an identity. {@link DefaultIdentity}s compute it once.
+   */
+  public static String md5(final Identity identity) {
+    checkNotNull(identity, "Identity cannot be null.");
+    if (identity instanceof DefaultIdentity) {
+      return ((DefaultIdentity) identity).getMd5Fingerprint();
+    }
+    return md5(fingerprintBlob(identity));
+  }
+
+  /**
+   * Return the MD5 fingerprint of a key blob encoded as per RFC 4253 section 6.6.
+   */
+  public static String md5(final byte[] keyBlob) {
+    return MD5_PREFIX + MD5_ENCODING.encode(hash(Hashing.md5(), keyBlob));
+  }
+
+  /**
+   * Return the key blob an identity's fingerprints are computed from, i.e. the certified key's
+   * blob for certificates and the identity's own key blob otherwise.
+   */
+  static byte[] fingerprintBlob(final Identity identity) {
+    final byte[] keyBlob = identity.getKeyBlob();
+    if (KeyCodecs.get(identity.getKeyFormat()) instanceof CertificateCodec) {
+      return OpenSshCertificate.parse(keyBlob).getKeyBlob();
+    }
+    return keyBlob;
+  }
+
+  private static byte[] hash(final HashFunction function, final byte[] keyBlob) {
+    checkNotNull(keyBlob, "Key blob cannot be null.");
+    return function.hashBytes(keyBlob).asBytes();
+  }
+}
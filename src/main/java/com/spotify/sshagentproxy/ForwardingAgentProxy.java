@@ -0,0 +1,129 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link AgentProxy} which forwards all its method calls to another {@link AgentProxy}.
+ * Subclasses override methods to add behaviour such as caching, in the style of Guava's
+ * forwarding collections.
+ */
+public abstract class ForwardingAgentProxy extends AbstractAgentProxy {
+
+  /**
+   * Return the backing {@link AgentProxy} instance that methods are forwarded to.
+   */
+  protected abstract AgentProxy delegate();
+
+  @Override
+  public List<Identity> list() throws IOException {
+    return delegate().list();
+  }
+
+  @Override
+  public List<Identity> list(final long timeout, final TimeUnit unit) throws IOException {
+    return delegate().list(timeout, unit);
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data) throws IOException {
+    return delegate().sign(identity, data);
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data, final long timeout,
+                     final TimeUnit unit) throws IOException {
+    return delegate().sign(identity, data, timeout, unit);
+  }
+
+  @Override
+  public AgentSignature sign(final Identity identity, final byte[] data, final String algorithm)
+      throws IOException {
+    return delegate().sign(identity, data, algorithm);
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final Path path) throws IOException {
+    return delegate().sign(identity, path);
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final ReadableByteChannel src, final long length)
+      throws IOException {
+    return delegate().sign(identity, src, length);
+  }
+
+  @Override
+  public List<byte[]> signAll(final Identity identity, final List<byte[]> data)
+      throws IOException {
+    return delegate().signAll(identity, data);
+  }
+
+  @Override
+  public void signAll(final Identity identity, final Iterator<byte[]> data,
+                      final SignatureConsumer consumer) throws IOException {
+    delegate().signAll(identity, data, consumer);
+  }
+
+  @Override
+  public Map<Identity, byte[]> signWithEach(final List<Identity> identities, final byte[] data)
+      throws IOException {
+    return delegate().signWithEach(identities, data);
+  }
+
+  @Override
+  public PreparedIdentity prepare(final Identity identity) {
+    return delegate().prepare(identity);
+  }
+
+  @Override
+  public void close() throws IOException {
+    delegate().close();
+  }
+
+  @Override
+  public String toString() {
+    return delegate().toString();
+  }
+}
@@ -57,7 +57,7 @@ class IdentitiesAnswerHeaders extends AgentReplyHeaders {
   }
 
   static IdentitiesAnswerHeaders from(final byte[] bytes) {
-    if (bytes.length != 9) {
+    if (bytes.length < 9) {
       throw new IllegalArgumentException("SSH2_AGENT_IDENTITIES_ANSWER headers need to be 9 bytes"
                                          + " (received " + bytes.length + ")");
     }
@@ -44,7 +44,7 @@ import java.security.PublicKey;
 public interface Identity {
 
   /**
-   * Return the key format as a string, e.g. "ssh-rsa", "ssh-dss", etc.
+   * Return the key format as a string, e.g. "ssh-rsa", "ssh-ed25519", etc.
    */
   String getKeyFormat();
 
@@ -60,7 +60,7 @@ public interface Identity {
 
   /**
    * Return an array of bytes encoded as per RFC 4253 section 6.6 "Public Key Algorithms"
-   * for either of the supported key types: "ssh-dss" or "ssh-rsa".
+   * for one of the key types supported by {@link KeyCodecs}.
    */
   byte[] getKeyBlob();
 
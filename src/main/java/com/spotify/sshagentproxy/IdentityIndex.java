@@ -0,0 +1,148 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An immutable list of identities indexed by SHA-256 and MD5 fingerprint, key blob and comment,
+ * so finding a key among many is a hash lookup rather than a scan of {@link AgentProxy#list()}.
+ * Fingerprints are computed once when the index is built. Get one from
+ * {@link CachingAgentProxy#index()} to reuse it for as long as the identities are cached.
+ *
+ * <p>A key and its certificates share fingerprints, and several keys may share a comment, so
+ * those lookups return every match in list order. Malformed certificates can't be looked up by
+ * fingerprint.
+ */
+public final class IdentityIndex {
+
+  private static final Logger log = LoggerFactory.getLogger(IdentityIndex.class);
+
+  private final List<Identity> identities;
+  private final ImmutableListMultimap<String, Identity> byFingerprint;
+  private final Map<ByteBuffer, Identity> byKeyBlob;
+  private final ImmutableListMultimap<String, Identity> byComment;
+
+  private IdentityIndex(final List<Identity> identities) {
+    final ImmutableListMultimap.Builder<String, Identity> fingerprints =
+        ImmutableListMultimap.builder();
+    final Map<ByteBuffer, Identity> keyBlobs = Maps.newHashMap();
+    final ImmutableListMultimap.Builder<String, Identity> comments =
+        ImmutableListMultimap.builder();
+    for (final Identity identity : identities) {
+      try {
+        fingerprints.put(Fingerprints.sha256(identity), identity);
+        fingerprints.put(Fingerprints.md5(identity), identity);
+      } catch (IllegalArgumentException e) {
+        // A malformed certificate has no certified key to take fingerprints of.
+        log.debug("Not indexing the fingerprints of {}.", identity, e);
+      }
+      final ByteBuffer keyBlob = ByteBuffer.wrap(identity.getKeyBlob());
+      if (!keyBlobs.containsKey(keyBlob)) {
+        keyBlobs.put(keyBlob, identity);
+      }
+      if (identity.getComment() != null) {
+        comments.put(identity.getComment(), identity);
+      }
+    }
+    this.identities = identities;
+    this.byFingerprint = fingerprints.build();
+    this.byKeyBlob = ImmutableMap.copyOf(keyBlobs);
+    this.byComment = comments.build();
+  }
+
+  /**
+   * Index identities, e.g. as returned by {@link AgentProxy#list()}.
+   */
+  public static IdentityIndex of(final List<Identity> identities) {
+    checkNotNull(identities, "Identities cannot be null.");
+    return new IdentityIndex(ImmutableList.copyOf(identities));
+  }
+
+  /**
+   * Return the indexed identities in their original order.
+   * @return An immutable list of {@link Identity}
+   */
+  public List<Identity> getIdentities() {
+    return identities;
+  }
+
+  /**
+   * Return the identities with a fingerprint, or an empty list if there are none.
+   * @param fingerprint A fingerprint as printed by {@code ssh-add -l}, e.g. "SHA256:..." or
+   *                    "MD5:...", see {@link Fingerprints}.
+   */
+  public List<Identity> getByFingerprint(final String fingerprint) {
+    checkNotNull(fingerprint, "Fingerprint cannot be null.");
+    return byFingerprint.get(fingerprint);
+  }
+
+  /**
+   * Return the identity with a key blob, or null if there is none. If several identities have
+   * the key blob, the first one is returned.
+   */
+  public Identity getByKeyBlob(final byte[] keyBlob) {
+    checkNotNull(keyBlob, "Key blob cannot be null.");
+    return byKeyBlob.get(ByteBuffer.wrap(keyBlob));
+  }
+
+  /**
+   * Return the identities with a comment, or an empty list if there are none.
+   */
+  public List<Identity> getByComment(final String comment) {
+    checkNotNull(comment, "Comment cannot be null.");
+    return byComment.get(comment);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("identities", identities.size())
+        .toString();
+  }
+}
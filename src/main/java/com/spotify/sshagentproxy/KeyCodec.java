@@ -0,0 +1,97 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.Set;
+
+/**
+ * Decodes the keys and signatures of one SSH key type. Codecs for ssh-rsa, ssh-ed25519 and
+ * ecdsa-sha2-nistp256, -nistp384 and -nistp521 are built in; others can be added with
+ * {@link KeyCodecs#register(KeyCodec)}. Implementations must be thread-safe.
+ */
+public interface KeyCodec {
+
+  /**
+   * Return the key format this codec handles, e.g. "ssh-ed25519". It is the first string of the
+   * key blob.
+   */
+  String getKeyFormat();
+
+  /**
+   * Return the names ssh-agent gives to signatures made with keys of this type. They are the
+   * first string of the signature blob in a SSH2_AGENT_SIGN_RESPONSE.
+   */
+  Set<String> getSignatureFormats();
+
+  /**
+   * Decode a key blob encoded as per RFC 4253 section 6.6.
+   * @param keyBlob The key blob as sent by ssh-agent.
+   * @return {@link PublicKey}
+   * @throws GeneralSecurityException if the key blob is malformed or the JDK can't build keys
+   *                                  of this type.
+   */
+  PublicKey decodePublicKey(byte[] keyBlob) throws GeneralSecurityException;
+
+  /**
+   * Return true if {@code publicKey} is a key of this type.
+   */
+  boolean supports(PublicKey publicKey);
+
+  /**
+   * Return the flags of a SSH2_AGENTC_SIGN_REQUEST that ask for signatures of an algorithm.
+   * @param signatureAlgorithm One of {@link #getSignatureFormats()}.
+   * @throws IllegalArgumentException if keys of this type don't make such signatures.
+   */
+  int getSignFlags(String signatureAlgorithm);
+
+  /**
+   * Check a signature returned by {@link AgentProxy#sign(Identity, byte[])} or
+   * {@link AgentProxy#sign(Identity, byte[], String)}.
+   * @param publicKey          The {@link PublicKey} of the identity that signed the data.
+   * @param signatureAlgorithm The signature format, e.g. {@link AgentSignature#getAlgorithm()}.
+   * @param data               The data that was signed.
+   * @param signature          The signature, without the signature format.
+   * @return true if the signature is valid, false if it isn't or is of an algorithm keys of
+   *         this type don't make.
+   * @throws GeneralSecurityException if {@code publicKey} isn't a key of this type or the
+   *                                  signature is malformed.
+   */
+  boolean verify(PublicKey publicKey, String signatureAlgorithm, byte[] data, byte[] signature)
+      throws GeneralSecurityException;
+}
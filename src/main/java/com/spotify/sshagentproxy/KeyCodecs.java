@@ -0,0 +1,159 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Maps;
+import java.security.PublicKey;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The registry of {@link KeyCodec}s, looked up by key format when identities are listed and
+ * signed with, and by signature format when signatures are read. Lookups don't lock.
+ */
+public final class KeyCodecs {
+
+  private static final Map<String, KeyCodec> BY_KEY_FORMAT = Maps.newConcurrentMap();
+  private static final Map<String, KeyCodec> BY_SIGNATURE_FORMAT = Maps.newConcurrentMap();
+
+  static {
+    register(new RsaCodec());
+    register(new Ed25519Codec());
+    register(EcdsaCodec.NISTP256);
+    register(EcdsaCodec.NISTP384);
+    register(EcdsaCodec.NISTP521);
+    register(new CertificateCodec(new RsaCodec(), 2));
+    register(new CertificateCodec(new Ed25519Codec(), 1));
+    register(new CertificateCodec(EcdsaCodec.NISTP256, 2));
+    register(new CertificateCodec(EcdsaCodec.NISTP384, 2));
+    register(new CertificateCodec(EcdsaCodec.NISTP521, 2));
+  }
+
+  private KeyCodecs() {
+  }
+
+  /**
+   * Add support for a key type, replacing any codec registered for the same key format. Only
+   * identities listed after this call are affected. A codec only takes over a signature format
+   * from a codec of another key format if that one no longer makes it, so certificates, which
+   * sign like their keys, don't take the formats of their keys.
+   * @param codec {@link KeyCodec}
+   */
+  public static synchronized void register(final KeyCodec codec) {
+    checkNotNull(codec, "KeyCodec cannot be null.");
+    checkNotNull(codec.getKeyFormat(), "Key format cannot be null.");
+    BY_KEY_FORMAT.put(codec.getKeyFormat(), codec);
+    for (final String signatureFormat : codec.getSignatureFormats()) {
+      final KeyCodec current = BY_SIGNATURE_FORMAT.get(signatureFormat);
+      if (current == null
+          || current.getKeyFormat().equals(codec.getKeyFormat())
+          || BY_KEY_FORMAT.get(current.getKeyFormat()) != current) {
+        BY_SIGNATURE_FORMAT.put(signatureFormat, codec);
+      }
+    }
+  }
+
+  /**
+   * Return the codec for a key format, or null if the key format isn't supported.
+   * @param keyFormat A key format, e.g. "ssh-ed25519".
+   */
+  public static KeyCodec get(final String keyFormat) {
+    return BY_KEY_FORMAT.get(keyFormat);
+  }
+
+  public static boolean isSupported(final String keyFormat) {
+    return BY_KEY_FORMAT.containsKey(keyFormat);
+  }
+
+  /**
+   * Return the supported key formats in alphabetical order.
+   */
+  public static Set<String> supportedKeyFormats() {
+    return ImmutableSortedSet.copyOf(BY_KEY_FORMAT.keySet());
+  }
+
+  /**
+   * Return the codec of the key type that makes signatures of a format, or null if the format
+   * isn't supported.
+   */
+  static KeyCodec forSignatureFormat(final String signatureFormat) {
+    return BY_SIGNATURE_FORMAT.get(signatureFormat);
+  }
+
+  /**
+   * Return the codec that supports a {@link PublicKey}, or null if none does.
+   */
+  static KeyCodec forPublicKey(final PublicKey publicKey) {
+    for (final KeyCodec codec : BY_KEY_FORMAT.values()) {
+      if (codec.supports(publicKey)) {
+        return codec;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Return the exception to fail a sign request with if ssh-agent can't be asked to sign with an
+   * identity's key type, or null if it can.
+   */
+  static UnsupportedOperationException unsupportedKeyFormat(final Identity identity) {
+    final String keyFormat = identity.getKeyFormat();
+    if (isSupported(keyFormat)) {
+      return null;
+    }
+    return new UnsupportedOperationException(String.format(
+        "Unknown key type %s. This code currently only supports %s.",
+        keyFormat, supportedKeyFormats()));
+  }
+
+  /**
+   * Return the flags that ask ssh-agent to sign with an identity's key using an algorithm.
+   * @throws UnsupportedOperationException if the identity's key type isn't supported.
+   * @throws IllegalArgumentException if keys of that type don't make such signatures.
+   */
+  static int signFlags(final Identity identity, final String algorithm) {
+    checkNotNull(algorithm, "Algorithm cannot be null.");
+    final KeyCodec codec = get(identity.getKeyFormat());
+    if (codec == null) {
+      throw unsupportedKeyFormat(identity);
+    }
+    return codec.getSignFlags(algorithm);
+  }
+}
@@ -0,0 +1,178 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.util.List;
+
+/**
+ * The signature of one message in a batch signed by {@link MerkleSigner}: the message's position
+ * in the batch, its inclusion proof and ssh-agent's signature of the batch's Merkle root. Use
+ * {@link #encode()} and {@link #decode(byte[])} to store it or send it along with the message.
+ * The root is signed with SHA-2 for RSA keys, see {@link #getSignatureAlgorithm()}.
+ */
+public final class MerkleSignature {
+
+  private static final int VERSION = 1;
+
+  private final int index;
+  private final int leafCount;
+  private final List<byte[]> path;
+  private final String signatureAlgorithm;
+  private final byte[] rootSignature;
+
+  MerkleSignature(final int index, final int leafCount, final List<byte[]> path,
+                  final String signatureAlgorithm, final byte[] rootSignature) {
+    checkArgument(index >= 0 && index < leafCount, "index must be between 0 and leafCount.");
+    checkNotNull(path, "path cannot be null.");
+    checkNotNull(signatureAlgorithm, "signatureAlgorithm cannot be null.");
+    checkNotNull(rootSignature, "rootSignature cannot be null.");
+    this.index = index;
+    this.leafCount = leafCount;
+    this.path = ImmutableList.copyOf(path);
+    this.signatureAlgorithm = signatureAlgorithm;
+    this.rootSignature = rootSignature;
+  }
+
+  /**
+   * Return the position of the message in its batch.
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * Return the number of messages in the batch.
+   */
+  public int getLeafCount() {
+    return leafCount;
+  }
+
+  /**
+   * Return the sibling hashes from the message's leaf up to the root, lowest first.
+   */
+  public List<byte[]> getPath() {
+    final List<byte[]> copy = Lists.newArrayListWithCapacity(path.size());
+    for (final byte[] hash : path) {
+      copy.add(hash.clone());
+    }
+    return copy;
+  }
+
+  /**
+   * Return the algorithm ssh-agent signed the batch's root with, e.g. "rsa-sha2-512".
+   */
+  public String getSignatureAlgorithm() {
+    return signatureAlgorithm;
+  }
+
+  /**
+   * Return ssh-agent's signature of the batch's root, the blob of the {@link AgentSignature}
+   * returned by {@link AgentProxy#sign(Identity, byte[], String)}. Every message in a batch
+   * shares it.
+   */
+  public byte[] getRootSignature() {
+    return rootSignature.clone();
+  }
+
+  List<byte[]> path() {
+    return path;
+  }
+
+  byte[] rootSignature() {
+    return rootSignature;
+  }
+
+  /**
+   * Encode this signature with the data types of RFC 4251.
+   */
+  public byte[] encode() {
+    final SshEncoder encoder = new SshEncoder();
+    encoder.writeInt(VERSION)
+        .writeInt(index)
+        .writeInt(leafCount)
+        .writeInt(path.size());
+    for (final byte[] hash : path) {
+      encoder.writeString(hash);
+    }
+    return encoder.writeUtf8(signatureAlgorithm)
+        .writeString(rootSignature)
+        .toByteArray();
+  }
+
+  /**
+   * Decode a signature written by {@link #encode()}.
+   * @throws IllegalArgumentException if {@code encoded} isn't an encoded signature.
+   */
+  public static MerkleSignature decode(final byte[] encoded) {
+    final SshDecoder decoder = new SshDecoder(encoded);
+    final int version = decoder.readInt();
+    checkArgument(version == VERSION, "Unsupported Merkle signature version %s.", version);
+    final int index = decoder.readInt();
+    final int leafCount = decoder.readInt();
+    final int pathLength = decoder.readInt();
+    // A tree of at most 2^31 - 1 leaves is at most 31 levels high.
+    checkArgument(pathLength >= 0 && pathLength < Integer.SIZE, "Invalid path length %s.",
+                  pathLength);
+    final List<byte[]> path = Lists.newArrayListWithCapacity(pathLength);
+    for (int i = 0; i < pathLength; i++) {
+      final byte[] hash = decoder.readBytes();
+      checkArgument(hash.length == MerkleTree.HASH_LENGTH, "Invalid path hash length %s.",
+                    hash.length);
+      path.add(hash);
+    }
+    final String signatureAlgorithm = decoder.readAscii();
+    final byte[] rootSignature = decoder.readBytes();
+    checkArgument(!decoder.hasRemaining(), "Unexpected bytes after the Merkle signature.");
+    return new MerkleSignature(index, leafCount, path, signatureAlgorithm, rootSignature);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("index", index)
+        .add("leafCount", leafCount)
+        .add("pathLength", path.size())
+        .add("signatureAlgorithm", signatureAlgorithm)
+        .toString();
+  }
+}
@@ -0,0 +1,139 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.PublicKey;
+import java.security.SignatureException;
+import java.util.List;
+
+/**
+ * Signs batches of messages with a single request to ssh-agent. The messages are hashed into a
+ * {@link MerkleTree} locally and only its root is signed, so signing throughput depends on local
+ * hashing rather than on round trips to the agent. Each message gets a {@link MerkleSignature}
+ * that can be verified on its own with {@link #verify(PublicKey, byte[], MerkleSignature)}. Like
+ * {@link SshSig}, RSA keys sign with rsa-sha2-512 rather than SHA-1.
+ */
+public final class MerkleSigner {
+
+  static final String MAGIC_PREAMBLE = "SSHMERKLE";
+  static final int SIG_VERSION = 1;
+
+  private MerkleSigner() {
+  }
+
+  /**
+   * Sign a batch of messages.
+   * @param agentProxy The {@link AgentProxy} holding the private key.
+   * @param identity   The {@link Identity} to sign with.
+   * @param messages   The messages to be signed. There must be at least one.
+   * @return The signature of each message, in the order of {@code messages}.
+   */
+  public static List<MerkleSignature> sign(final AgentProxy agentProxy, final Identity identity,
+                                           final List<byte[]> messages) throws IOException {
+    checkNotNull(agentProxy, "AgentProxy cannot be null.");
+    checkNotNull(identity, "Identity cannot be null.");
+    final MerkleTree tree = MerkleTree.build(messages);
+    final AgentSignature rootSignature = agentProxy.sign(
+        identity, signedData(tree.leafCount(), tree.root()), SshSig.signatureAlgorithm(identity));
+
+    final List<MerkleSignature> signatures = Lists.newArrayListWithCapacity(messages.size());
+    for (int i = 0; i < messages.size(); i++) {
+      signatures.add(new MerkleSignature(i, tree.leafCount(), tree.path(i),
+                                         rootSignature.getAlgorithm(), rootSignature.blob()));
+    }
+    return signatures;
+  }
+
+  /**
+   * Check that a message is part of a batch whose root was signed by the private key of
+   * {@code publicKey}.
+   * @param publicKey The {@link PublicKey} of the {@link Identity} that signed the batch.
+   * @param message   The message.
+   * @param signature The message's signature.
+   * @return true if the inclusion proof and the root signature are both valid.
+   * @throws IllegalArgumentException if {@code publicKey} is of an unsupported type.
+   */
+  public static boolean verify(final PublicKey publicKey, final byte[] message,
+                               final MerkleSignature signature) {
+    checkNotNull(publicKey, "PublicKey cannot be null.");
+    checkNotNull(message, "message cannot be null.");
+    checkNotNull(signature, "MerkleSignature cannot be null.");
+    final byte[] root = MerkleTree.rootFromPath(message, signature.getIndex(),
+                                                signature.getLeafCount(), signature.path());
+    if (root == null) {
+      return false;
+    }
+
+    final KeyCodec codec = KeyCodecs.forPublicKey(publicKey);
+    checkArgument(codec != null, "Unsupported key type %s.", publicKey.getAlgorithm());
+    try {
+      return codec.verify(publicKey, signature.getSignatureAlgorithm(),
+                          signedData(signature.getLeafCount(), root), signature.rootSignature());
+    } catch (InvalidKeyException e) {
+      throw new IllegalArgumentException("Unable to verify with " + publicKey.getAlgorithm()
+                                         + " public key.", e);
+    } catch (SignatureException e) {
+      // The signature is malformed.
+      return false;
+    } catch (GeneralSecurityException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  /**
+   * Return the data sent to ssh-agent to sign the root of a batch. It names the tree's hash
+   * algorithm and its size, since an inclusion proof depends on both.
+   */
+  static byte[] signedData(final int leafCount, final byte[] root) {
+    return new SshEncoder()
+        .writeRaw(MAGIC_PREAMBLE.getBytes(Charsets.US_ASCII))
+        .writeInt(SIG_VERSION)
+        .writeUtf8(MerkleTree.HASH_ALGORITHM)
+        .writeInt(leafCount)
+        .writeString(root)
+        .toByteArray();
+  }
+}
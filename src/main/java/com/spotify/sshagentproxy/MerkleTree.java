@@ -0,0 +1,185 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A binary hash tree over a list of messages, built bottom up with SHA-256. Leaves and inner
+ * nodes are hashed with different prefixes, as in RFC 6962, so a leaf can't pass for a node. A
+ * node without a sibling is promoted to the next level as it is rather than hashed with a copy
+ * of itself, so no two lists of messages share a root.
+ */
+final class MerkleTree {
+
+  static final String HASH_ALGORITHM = "sha256";
+  static final int HASH_LENGTH = 32;
+
+  private static final byte LEAF_PREFIX = 0;
+  private static final byte NODE_PREFIX = 1;
+
+  // The hashes of each level, from the leaves up to the root
+  private final List<byte[][]> levels;
+
+  private MerkleTree(final List<byte[][]> levels) {
+    this.levels = levels;
+  }
+
+  /**
+   * Hash the messages into a tree.
+   * @param messages At least one message. Their order determines their indexes.
+   */
+  static MerkleTree build(final List<byte[]> messages) {
+    checkArgument(!messages.isEmpty(), "There must be at least one message.");
+    final MessageDigest digest = sha256();
+    final List<byte[][]> levels = Lists.newArrayList();
+
+    byte[][] level = new byte[messages.size()][];
+    for (int i = 0; i < level.length; i++) {
+      level[i] = hashLeaf(digest, messages.get(i));
+    }
+    levels.add(level);
+
+    while (level.length > 1) {
+      final byte[][] parents = new byte[(level.length + 1) / 2][];
+      for (int i = 0; i < parents.length; i++) {
+        final int left = 2 * i;
+        parents[i] = left + 1 < level.length
+                     ? hashNode(digest, level[left], level[left + 1])
+                     : level[left];
+      }
+      levels.add(parents);
+      level = parents;
+    }
+    return new MerkleTree(levels);
+  }
+
+  int leafCount() {
+    return levels.get(0).length;
+  }
+
+  byte[] root() {
+    return levels.get(levels.size() - 1)[0].clone();
+  }
+
+  /**
+   * Return the inclusion proof of a message: the sibling hashes on the way from its leaf to the
+   * root, lowest first. Levels where the node has no sibling contribute nothing.
+   */
+  List<byte[]> path(final int index) {
+    checkElementIndex(index, leafCount());
+    final ImmutableList.Builder<byte[]> path = ImmutableList.builder();
+    int node = index;
+    for (final byte[][] level : levels.subList(0, levels.size() - 1)) {
+      final int sibling = node ^ 1;
+      if (sibling < level.length) {
+        path.add(level[sibling].clone());
+      }
+      node >>= 1;
+    }
+    return path.build();
+  }
+
+  /**
+   * Compute the root of a tree from one of its messages and that message's inclusion proof.
+   * @return The root, or null if the proof doesn't have the shape of a proof for {@code index}
+   *         in a tree of {@code leafCount} messages.
+   */
+  static byte[] rootFromPath(final byte[] message, final int index, final int leafCount,
+                             final List<byte[]> path) {
+    if (index < 0 || index >= leafCount) {
+      return null;
+    }
+    final MessageDigest digest = sha256();
+    byte[] hash = hashLeaf(digest, message);
+    int node = index;
+    int levelSize = leafCount;
+    int next = 0;
+    while (levelSize > 1) {
+      final int sibling = node ^ 1;
+      if (sibling < levelSize) {
+        if (next == path.size()) {
+          return null;
+        }
+        final byte[] siblingHash = path.get(next++);
+        hash = (node & 1) == 0
+               ? hashNode(digest, hash, siblingHash)
+               : hashNode(digest, siblingHash, hash);
+      }
+      node >>= 1;
+      levelSize = (levelSize + 1) / 2;
+    }
+    return next == path.size() ? hash : null;
+  }
+
+  private static byte[] hashLeaf(final MessageDigest digest, final byte[] message) {
+    digest.update(LEAF_PREFIX);
+    return digest.digest(message);
+  }
+
+  private static byte[] hashNode(final MessageDigest digest, final byte[] left,
+                                 final byte[] right) {
+    digest.update(NODE_PREFIX);
+    digest.update(left);
+    return digest.digest(right);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("leafCount", leafCount())
+        .add("height", levels.size() - 1)
+        .toString();
+  }
+}
@@ -0,0 +1,290 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.UnsignedLongs;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An OpenSSH certificate as described in OpenSSH's PROTOCOL.certkeys: a public key signed by a
+ * certificate authority together with the principals it is valid for and a validity window.
+ * Instances are immutable.
+ *
+ * <p>Parsed certificates are cached by their blob, so listing the same certificates again and
+ * checking which of them are valid doesn't parse them again.
+ */
+public final class OpenSshCertificate {
+
+  public static final int SSH_CERT_TYPE_USER = 1;
+  public static final int SSH_CERT_TYPE_HOST = 2;
+
+  // The valid before time of certificates that never expire, 2^64 - 1 as an unsigned long.
+  private static final long FOREVER = -1L;
+
+  private static final int MAX_CACHED_CERTIFICATES = 4096;
+
+  // Keyed by a read-only view of the certificate blob, which compares by content.
+  private static final Cache<ByteBuffer, OpenSshCertificate> CACHE = CacheBuilder.newBuilder()
+      .maximumSize(MAX_CACHED_CERTIFICATES)
+      .build();
+
+  private final String certificateFormat;
+  private final byte[] keyBlob;
+  private final long serial;
+  private final int type;
+  private final String keyId;
+  private final List<String> principals;
+  private final long validAfter;
+  private final long validBefore;
+  private final Map<String, String> criticalOptions;
+  private final Map<String, String> extensions;
+  private final byte[] signatureKey;
+
+  private OpenSshCertificate(final String certificateFormat, final byte[] keyBlob,
+                             final long serial, final int type, final String keyId,
+                             final List<String> principals, final long validAfter,
+                             final long validBefore, final Map<String, String> criticalOptions,
+                             final Map<String, String> extensions, final byte[] signatureKey) {
+    this.certificateFormat = certificateFormat;
+    this.keyBlob = keyBlob;
+    this.serial = serial;
+    this.type = type;
+    this.keyId = keyId;
+    this.principals = principals;
+    this.validAfter = validAfter;
+    this.validBefore = validBefore;
+    this.criticalOptions = criticalOptions;
+    this.extensions = extensions;
+    this.signatureKey = signatureKey;
+  }
+
+  /**
+   * Parse a certificate blob, e.g. the key blob of a certificate identity, or return the
+   * certificate parsed from an equal blob before.
+   * @param certificateBlob The certificate encoded as per PROTOCOL.certkeys.
+   * @throws IllegalArgumentException if the blob isn't a certificate of a supported key type.
+   */
+  public static OpenSshCertificate parse(final byte[] certificateBlob) {
+    checkNotNull(certificateBlob, "Certificate blob cannot be null.");
+    final ByteBuffer key = ByteBuffer.wrap(certificateBlob.clone()).asReadOnlyBuffer();
+    OpenSshCertificate certificate = CACHE.getIfPresent(key);
+    if (certificate == null) {
+      // Racing threads may both parse the certificate, which is harmless.
+      certificate = decode(certificateBlob);
+      CACHE.put(key, certificate);
+    }
+    return certificate;
+  }
+
+  private static OpenSshCertificate decode(final byte[] certificateBlob) {
+    final SshDecoder decoder = new SshDecoder(certificateBlob);
+    final String certificateFormat = decoder.readAscii();
+    final KeyCodec codec = KeyCodecs.get(certificateFormat);
+    checkArgument(codec instanceof CertificateCodec,
+                  "Unsupported certificate format %s.", certificateFormat);
+    final CertificateCodec certificateCodec = (CertificateCodec) codec;
+
+    // The nonce only serves to randomize the signed data.
+    decoder.skipString();
+    final SshEncoder key = new SshEncoder()
+        .writeUtf8(certificateCodec.getKeyCodec().getKeyFormat());
+    for (int i = 0; i < certificateCodec.getKeyFields(); i++) {
+      key.writeString(decoder.readBytes());
+    }
+
+    final long serial = decoder.readLong();
+    final int type = decoder.readInt();
+    final String keyId = decoder.readUtf8();
+    final List<String> principals = readPrincipals(new SshDecoder(decoder.readString()));
+    final long validAfter = decoder.readLong();
+    final long validBefore = decoder.readLong();
+    final Map<String, String> criticalOptions = readOptions(new SshDecoder(decoder.readString()));
+    final Map<String, String> extensions = readOptions(new SshDecoder(decoder.readString()));
+    decoder.skipString();
+    final byte[] signatureKey = decoder.readBytes();
+    // The CA's signature isn't checked here, so only its presence is.
+    decoder.skipString();
+
+    return new OpenSshCertificate(certificateFormat, key.toByteArray(), serial, type, keyId,
+                                  principals, validAfter, validBefore, criticalOptions,
+                                  extensions, signatureKey);
+  }
+
+  private static List<String> readPrincipals(final SshDecoder decoder) {
+    final ImmutableList.Builder<String> principals = ImmutableList.builder();
+    while (decoder.hasRemaining()) {
+      principals.add(decoder.readUtf8());
+    }
+    return principals.build();
+  }
+
+  /**
+   * Read critical options or extensions. The data of an option, if any, is a string that holds
+   * its value.
+   */
+  private static Map<String, String> readOptions(final SshDecoder decoder) {
+    final ImmutableMap.Builder<String, String> options = ImmutableMap.builder();
+    while (decoder.hasRemaining()) {
+      final String name = decoder.readUtf8();
+      final ByteBuffer data = decoder.readString();
+      options.put(name, data.hasRemaining() ? new SshDecoder(data).readUtf8() : "");
+    }
+    return options.build();
+  }
+
+  /**
+   * Return the certificate format, e.g. "ssh-ed25519-cert-v01@openssh.com".
+   */
+  public String getCertificateFormat() {
+    return certificateFormat;
+  }
+
+  /**
+   * Return the key blob of the certified key, encoded as per RFC 4253 section 6.6.
+   */
+  public byte[] getKeyBlob() {
+    return keyBlob.clone();
+  }
+
+  public long getSerial() {
+    return serial;
+  }
+
+  /**
+   * Return {@link #SSH_CERT_TYPE_USER} or {@link #SSH_CERT_TYPE_HOST}.
+   */
+  public int getType() {
+    return type;
+  }
+
+  public String getKeyId() {
+    return keyId;
+  }
+
+  /**
+   * Return the user names or host names the certificate is valid for. An empty list means any
+   * principal.
+   */
+  public List<String> getPrincipals() {
+    return principals;
+  }
+
+  /**
+   * Return the start of the validity window in seconds since the epoch.
+   */
+  public long getValidAfter() {
+    return validAfter;
+  }
+
+  /**
+   * Return the end of the validity window in seconds since the epoch, as an unsigned long.
+   * Certificates that never expire return -1, i.e. 2^64 - 1.
+   */
+  public long getValidBefore() {
+    return validBefore;
+  }
+
+  /**
+   * Return true if the certificate never expires.
+   */
+  public boolean isForever() {
+    return validAfter == 0 && validBefore == FOREVER;
+  }
+
+  /**
+   * Return true if {@code timeMillis} falls in the validity window.
+   * @param timeMillis Milliseconds since the epoch, e.g. {@link System#currentTimeMillis()}.
+   */
+  public boolean isValidAt(final long timeMillis) {
+    final long seconds = TimeUnit.MILLISECONDS.toSeconds(timeMillis);
+    return UnsignedLongs.compare(validAfter, seconds) <= 0
+           && UnsignedLongs.compare(seconds, validBefore) < 0;
+  }
+
+  /**
+   * Return the critical options by name, e.g. "force-command". Options without data map to an
+   * empty string.
+   */
+  public Map<String, String> getCriticalOptions() {
+    return criticalOptions;
+  }
+
+  /**
+   * Return the extensions by name, e.g. "permit-pty". Extensions without data map to an empty
+   * string.
+   */
+  public Map<String, String> getExtensions() {
+    return extensions;
+  }
+
+  /**
+   * Return the key blob of the certificate authority that signed the certificate.
+   */
+  public byte[] getSignatureKey() {
+    return signatureKey.clone();
+  }
+
+  /**
+   * Return the key format of the certificate authority, e.g. "ssh-ed25519".
+   */
+  public String getSignatureKeyFormat() {
+    return new SshDecoder(signatureKey).readAscii();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("certificateFormat", certificateFormat)
+        .add("keyId", keyId)
+        .add("serial", serial)
+        .add("principals", principals)
+        .add("validAfter", validAfter)
+        .add("validBefore", UnsignedLongs.toString(validBefore))
+        .toString();
+  }
+}
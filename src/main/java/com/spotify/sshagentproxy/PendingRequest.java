@@ -0,0 +1,201 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A request that has been sent to ssh-agent and is waiting for its reply. Knows how to read the
+ * reply it expects so that replies can be matched to requests in FIFO order.
+ * @param <T> The type of the decoded reply.
+ */
+abstract class PendingRequest<T> {
+
+  private final SettableFuture<T> future = SettableFuture.create();
+
+  /**
+   * Create a request waiting for a SSH2_AGENT_IDENTITIES_ANSWER message.
+   */
+  static PendingRequest<List<Identity>> identities() {
+    return new PendingRequest<List<Identity>>() {
+      @Override
+      List<Identity> read(final AgentInput in) throws IOException {
+        return in.readIdentitiesAnswer();
+      }
+
+      @Override
+      List<Identity> decode(final byte[] message) throws AgentFailureException {
+        return AgentInput.decodeIdentitiesAnswer(message);
+      }
+    };
+  }
+
+  /**
+   * Create a request waiting for a SSH2_AGENT_SIGN_RESPONSE message.
+   */
+  static PendingRequest<byte[]> signature() {
+    return new PendingRequest<byte[]>() {
+      @Override
+      byte[] read(final AgentInput in) throws IOException {
+        return in.readSignResponse();
+      }
+
+      @Override
+      byte[] decode(final byte[] message) throws AgentFailureException {
+        return AgentInput.decodeSignResponse(message);
+      }
+    };
+  }
+
+  /**
+   * Create a request waiting for a SSH2_AGENT_SIGN_RESPONSE message, keeping the signature's
+   * algorithm.
+   */
+  static PendingRequest<AgentSignature> agentSignature() {
+    return new PendingRequest<AgentSignature>() {
+      @Override
+      AgentSignature read(final AgentInput in) throws IOException {
+        return in.readSignature();
+      }
+
+      @Override
+      AgentSignature decode(final byte[] message) throws AgentFailureException {
+        return AgentInput.decodeSignature(message);
+      }
+    };
+  }
+
+  /**
+   * Read the reply from ssh-agent.
+   */
+  abstract T read(AgentInput in) throws IOException;
+
+  /**
+   * Decode a whole reply message, including its length prefix.
+   */
+  abstract T decode(byte[] message) throws AgentFailureException;
+
+  /**
+   * Read the reply from ssh-agent and complete the future with it. A failure reply only fails
+   * this request, as the connection is still at a message boundary.
+   * @throws IOException if the reply couldn't be read, leaving the connection unusable.
+   */
+  void complete(final AgentInput in) throws IOException {
+    try {
+      future.set(read(in));
+    } catch (AgentFailureException e) {
+      future.setException(e);
+    }
+  }
+
+  /**
+   * Decode a whole reply message and complete the future with it. A failure reply only fails
+   * this request.
+   */
+  void complete(final byte[] message) {
+    try {
+      future.set(decode(message));
+    } catch (AgentFailureException e) {
+      future.setException(e);
+    }
+  }
+
+  /**
+   * Fail the future, unless it has already completed.
+   */
+  void fail(final Throwable cause) {
+    future.setException(cause);
+  }
+
+  ListenableFuture<T> future() {
+    return future;
+  }
+
+  /**
+   * Wait for a reply. Unlike {@link com.google.common.util.concurrent.Futures#get(
+   * java.util.concurrent.Future, Class)} this rethrows the {@link IOException} a request failed
+   * with as it is, so callers can tell an {@link AgentFailureException} from a broken connection.
+   */
+  static <T> T await(final ListenableFuture<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      throw interrupted(e);
+    } catch (ExecutionException e) {
+      throw rethrow(e);
+    }
+  }
+
+  /**
+   * Wait for a reply until {@code timeout} has passed, then cancel the future. The request keeps
+   * its place in the queue of pending requests, so a late reply is matched to it and dropped.
+   * @throws java.net.SocketTimeoutException if the reply didn't arrive in time.
+   */
+  static <T> T await(final ListenableFuture<T> future, final long timeout, final TimeUnit unit)
+      throws IOException {
+    try {
+      return future.get(timeout, unit);
+    } catch (TimeoutException e) {
+      future.cancel(false);
+      throw (IOException) Watchdog.timeout(timeout, unit).initCause(e);
+    } catch (InterruptedException e) {
+      throw interrupted(e);
+    } catch (ExecutionException e) {
+      throw rethrow(e);
+    }
+  }
+
+  private static IOException interrupted(final InterruptedException cause) {
+    Thread.currentThread().interrupt();
+    return (IOException) new InterruptedIOException(
+        "Interrupted while waiting for ssh-agent.").initCause(cause);
+  }
+
+  private static IOException rethrow(final ExecutionException failure) throws IOException {
+    final Throwable cause = failure.getCause();
+    Throwables.propagateIfInstanceOf(cause, IOException.class);
+    throw Throwables.propagate(cause);
+  }
+}
@@ -0,0 +1,344 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread-safe {@link AsyncAgentProxy} that pipelines requests over a single connection to
+ * ssh-agent. Requests are written back-to-back without waiting for earlier replies, and a
+ * dedicated reader thread matches replies to requests in FIFO order, which the ssh-agent
+ * protocol guarantees. Callers only block while their request is written to the socket, which
+ * includes waiting for requests ahead of it, such as a streamed sign request, to be written.
+ */
+class PipelinedAgentProxy extends AbstractAgentProxy implements AsyncAgentProxy {
+
+  private static final Logger log = LoggerFactory.getLogger(PipelinedAgentProxy.class);
+
+  private static final AtomicInteger READER_COUNT = new AtomicInteger();
+
+  private final AgentInput in;
+  private final AgentOutput out;
+  private final BlockingQueue<PendingRequest<?>> pending = new LinkedBlockingQueue<>();
+  private final Object writeLock = new Object();
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private final Thread reader;
+
+  private volatile Throwable failure;
+
+  PipelinedAgentProxy(final AgentInput in, final AgentOutput out) {
+    checkNotNull(in, "AgentInput cannot be null.");
+    checkNotNull(out, "AgentOutput cannot be null.");
+    this.in = in;
+    this.out = out;
+    this.reader = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        readReplies();
+      }
+    }, "ssh-agent-reader-" + READER_COUNT.incrementAndGet());
+    this.reader.setDaemon(true);
+    this.reader.start();
+  }
+
+  @Override
+  public List<Identity> list() throws IOException {
+    return PendingRequest.await(listAsync());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The connection stays usable after a timeout. The request keeps its place in the queue, so
+   * a late reply is read and dropped.
+   */
+  @Override
+  public List<Identity> list(final long timeout, final TimeUnit unit) throws IOException {
+    return PendingRequest.await(listAsync(), timeout, unit);
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data) throws IOException {
+    return PendingRequest.await(signAsync(identity, data));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The connection stays usable after a timeout. The request keeps its place in the queue, so
+   * a late reply is read and dropped.
+   */
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data, final long timeout,
+                     final TimeUnit unit) throws IOException {
+    return PendingRequest.await(signAsync(identity, data), timeout, unit);
+  }
+
+  @Override
+  public AgentSignature sign(final Identity identity, final byte[] data, final String algorithm)
+      throws IOException {
+    return PendingRequest.await(signAsync(identity, data, algorithm));
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The data is streamed while holding the write lock, so the threads making other requests,
+   * including asynchronous ones, wait until it has been written.
+   */
+  @Override
+  public byte[] sign(final Identity identity, final ReadableByteChannel src, final long length)
+      throws IOException {
+    final RuntimeException unsupported = KeyCodecs.unsupportedKeyFormat(identity);
+    if (unsupported != null) {
+      throw unsupported;
+    }
+
+    // Invalid requests must fail before they're enqueued, or they'd fail every other request.
+    AgentOutput.checkStreamLength(src, length);
+
+    final PendingRequest<byte[]> request = PendingRequest.signature();
+    synchronized (writeLock) {
+      if (enqueue(request)) {
+        try {
+          out.signRequest(identity, src, length);
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+        }
+      }
+    }
+    return PendingRequest.await(request.future());
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Up to {@link #MAX_OUTSTANDING_SIGN_REQUESTS} requests are in flight at once, written like
+   * those of {@link #signAsync(Identity, byte[])}.
+   */
+  @Override
+  public void signAll(final Identity identity, final Iterator<byte[]> data,
+                      final SignatureConsumer consumer) throws IOException {
+    signAll(this, identity, data, consumer);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>All requests are written before waiting for the first reply.
+   */
+  @Override
+  public Map<Identity, byte[]> signWithEach(final List<Identity> identities, final byte[] data)
+      throws IOException {
+    return signWithEach(this, identities, data);
+  }
+
+  @Override
+  public ListenableFuture<List<Identity>> listAsync() {
+    final PendingRequest<List<Identity>> request = PendingRequest.identities();
+    synchronized (writeLock) {
+      if (enqueue(request)) {
+        try {
+          out.requestIdentities();
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+        }
+      }
+    }
+    return request.future();
+  }
+
+  @Override
+  public ListenableFuture<byte[]> signAsync(final Identity identity, final byte[] data) {
+    final RuntimeException unsupported = KeyCodecs.unsupportedKeyFormat(identity);
+    if (unsupported != null) {
+      return Futures.immediateFailedFuture(unsupported);
+    }
+
+    final PendingRequest<byte[]> request = PendingRequest.signature();
+    synchronized (writeLock) {
+      if (enqueue(request)) {
+        try {
+          out.signRequest(identity, data);
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+        }
+      }
+    }
+    return request.future();
+  }
+
+  @Override
+  public ListenableFuture<AgentSignature> signAsync(final Identity identity, final byte[] data,
+                                                    final String algorithm) {
+    final int flags;
+    try {
+      flags = KeyCodecs.signFlags(identity, algorithm);
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+
+    final PendingRequest<AgentSignature> request = PendingRequest.agentSignature();
+    synchronized (writeLock) {
+      if (enqueue(request)) {
+        try {
+          out.signRequest(identity, data, flags);
+        } catch (IOException | RuntimeException e) {
+          fail(e);
+        }
+      }
+    }
+    return request.future();
+  }
+
+  /**
+   * Add a request to the queue of requests waiting for a reply, or fail it if the connection is
+   * closed. Must be called with the write lock held.
+   * @return true if the request was enqueued and should be written.
+   */
+  private boolean enqueue(final PendingRequest<?> request) {
+    if (closed.get()) {
+      request.fail(new IOException("This AgentProxy is closed.", failure));
+      return false;
+    }
+    pending.add(request);
+    return true;
+  }
+
+  /**
+   * Read replies from ssh-agent in order and hand each one to the oldest pending request.
+   */
+  private void readReplies() {
+    while (!closed.get()) {
+      final PendingRequest<?> request;
+      try {
+        request = pending.take();
+      } catch (InterruptedException e) {
+        break;
+      }
+
+      try {
+        request.complete(in);
+      } catch (IOException | RuntimeException e) {
+        // We can't tell how much of the reply was consumed, so the connection is unusable.
+        fail(e);
+        request.fail(e);
+        break;
+      }
+    }
+  }
+
+  /**
+   * Close the connection and fail every request that is still waiting for a reply.
+   */
+  private void fail(final Throwable cause) {
+    if (failure == null && !closed.get()) {
+      log.debug("Closing pipelined ssh-agent connection after failure.", cause);
+      failure = cause;
+    }
+    try {
+      close();
+    } catch (IOException e) {
+      log.debug("Error closing ssh-agent connection.", e);
+    }
+  }
+
+  /**
+   * Fail every request that is still waiting for a reply. Must be called with the write lock
+   * held so that no request is enqueued after the connection is closed.
+   */
+  private void failPending() {
+    PendingRequest<?> request;
+    while ((request = pending.poll()) != null) {
+      request.fail(failure == null
+          ? new IOException("This AgentProxy is closed.")
+          : new IOException("ssh-agent connection failed.", failure));
+    }
+  }
+
+  /**
+   * Return the number of requests that have been written but not yet answered.
+   */
+  int pendingRequests() {
+    return pending.size();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed.compareAndSet(false, true)) {
+      return;
+    }
+    reader.interrupt();
+    // Close the streams before taking the write lock so that a writer blocked on a full socket
+    // buffer is released.
+    try {
+      out.close();
+    } finally {
+      try {
+        in.close();
+      } finally {
+        synchronized (writeLock) {
+          failPending();
+        }
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("pending", pending.size())
+        .add("closed", closed.get())
+        .toString();
+  }
+}
@@ -0,0 +1,383 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A thread-safe {@link AgentProxy} that keeps a bounded pool of connections to ssh-agent.
+ * Each call leases one connection, so up to maxConnections requests run concurrently.
+ * Connections that are closed or that fail a request are evicted instead of being returned to
+ * the pool, since their input may be left in the middle of a reply.
+ */
+class PooledAgentProxy extends AbstractAgentProxy {
+
+  private static final Logger log = LoggerFactory.getLogger(PooledAgentProxy.class);
+
+  private final AgentProxyFactory factory;
+  private final int maxConnections;
+  private final Semaphore permits;
+  private final BlockingDeque<AgentProxies.DefaultAgentProxy> idle =
+      new LinkedBlockingDeque<>();
+
+  private final ListeningExecutorService fanOutExecutor;
+
+  private volatile boolean closed;
+
+  PooledAgentProxy(final AgentProxyFactory factory, final int maxConnections) {
+    this(factory, maxConnections, newFanOutExecutor(maxConnections));
+  }
+
+  /**
+   * @param fanOutExecutor Runs the requests of {@link #signWithEach(List, byte[])} in parallel.
+   *                       It is owned by this proxy and shut down when it is closed.
+   */
+  PooledAgentProxy(final AgentProxyFactory factory, final int maxConnections,
+                   final ExecutorService fanOutExecutor) {
+    checkNotNull(factory, "AgentProxyFactory cannot be null.");
+    checkNotNull(fanOutExecutor, "ExecutorService cannot be null.");
+    checkArgument(maxConnections > 0, "maxConnections must be positive.");
+    this.factory = factory;
+    this.maxConnections = maxConnections;
+    this.permits = new Semaphore(maxConnections, true);
+    this.fanOutExecutor = MoreExecutors.listeningDecorator(fanOutExecutor);
+  }
+
+  /**
+   * Return an executor with one thread per connection besides the caller's, as more threads would
+   * only block waiting for a connection.
+   */
+  private static ExecutorService newFanOutExecutor(final int maxConnections) {
+    final int threads = Math.max(1, maxConnections - 1);
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+        threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("ssh-agent-fan-out-%d")
+            .build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @Override
+  public List<Identity> list() throws IOException {
+    return execute(new Call<List<Identity>>() {
+      @Override
+      public List<Identity> call(final AgentProxy connection) throws IOException {
+        return connection.list();
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The time spent waiting for a free connection counts towards the timeout.
+   */
+  @Override
+  public List<Identity> list(final long timeout, final TimeUnit unit) throws IOException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    return execute(new Call<List<Identity>>() {
+      @Override
+      public List<Identity> call(final AgentProxy connection) throws IOException {
+        return connection.list(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+      }
+    }, deadline);
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data) throws IOException {
+    return execute(new Call<byte[]>() {
+      @Override
+      public byte[] call(final AgentProxy connection) throws IOException {
+        return connection.sign(identity, data);
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The time spent waiting for a free connection counts towards the timeout.
+   */
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data, final long timeout,
+                     final TimeUnit unit) throws IOException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    return execute(new Call<byte[]>() {
+      @Override
+      public byte[] call(final AgentProxy connection) throws IOException {
+        return connection.sign(identity, data, remainingNanos(deadline), TimeUnit.NANOSECONDS);
+      }
+    }, deadline);
+  }
+
+  @Override
+  public AgentSignature sign(final Identity identity, final byte[] data, final String algorithm)
+      throws IOException {
+    return execute(new Call<AgentSignature>() {
+      @Override
+      public AgentSignature call(final AgentProxy connection) throws IOException {
+        return connection.sign(identity, data, algorithm);
+      }
+    });
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final ReadableByteChannel src, final long length)
+      throws IOException {
+    return execute(new Call<byte[]>() {
+      @Override
+      public byte[] call(final AgentProxy connection) throws IOException {
+        return connection.sign(identity, src, length);
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>All payloads are signed over one leased connection, which pipelines them.
+   */
+  @Override
+  public void signAll(final Identity identity, final Iterator<byte[]> data,
+                      final SignatureConsumer consumer) throws IOException {
+    execute(new Call<Void>() {
+      @Override
+      public Void call(final AgentProxy connection) throws IOException {
+        connection.signAll(identity, data, consumer);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Each identity signs on its own leased connection, so up to maxConnections requests run in
+   * parallel. The first one runs on the calling thread. If one fails, requests that haven't
+   * started yet are cancelled.
+   */
+  @Override
+  public Map<Identity, byte[]> signWithEach(final List<Identity> identities, final byte[] data)
+      throws IOException {
+    if (identities.isEmpty()) {
+      return Maps.newLinkedHashMap();
+    }
+    ensureOpen();
+
+    final List<Identity> others = identities.subList(1, identities.size());
+    final List<ListenableFuture<byte[]>> futures = Lists.newArrayListWithCapacity(others.size());
+    for (final Identity identity : others) {
+      futures.add(fanOutExecutor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws IOException {
+          return sign(identity, data);
+        }
+      }));
+    }
+
+    final Map<Identity, byte[]> signatures = Maps.newLinkedHashMap();
+    boolean done = false;
+    try {
+      signatures.put(identities.get(0), sign(identities.get(0), data));
+      signatures.putAll(awaitEach(others, futures));
+      done = true;
+    } finally {
+      if (!done) {
+        // Requests that haven't started yet are dropped, the others finish and are discarded.
+        for (final ListenableFuture<byte[]> future : futures) {
+          future.cancel(false);
+        }
+      }
+    }
+    return signatures;
+  }
+
+  private <T> T execute(final Call<T> call) throws IOException {
+    return execute(call, null);
+  }
+
+  /**
+   * Run a request on a leased connection. Connections are evicted when a request fails, unless
+   * ssh-agent replied with a failure message.
+   * @param deadline {@link System#nanoTime()} by which a connection must have been leased, or
+   *                 null to wait as long as it takes.
+   */
+  private <T> T execute(final Call<T> call, final Long deadline) throws IOException {
+    final AgentProxies.DefaultAgentProxy connection = lease(deadline);
+    boolean broken = true;
+    try {
+      final T result = call.call(connection);
+      broken = false;
+      return result;
+    } catch (AgentFailureException e) {
+      // ssh-agent replied, so the connection is still at a message boundary.
+      broken = false;
+      throw e;
+    } finally {
+      release(connection, broken);
+    }
+  }
+
+  private static long remainingNanos(final long deadline) {
+    return Math.max(0, deadline - System.nanoTime());
+  }
+
+  /**
+   * Take an idle connection from the pool, or open a new one if there are none and the pool
+   * isn't full. Blocks while all connections are leased.
+   */
+  private AgentProxies.DefaultAgentProxy lease(final Long deadline) throws IOException {
+    ensureOpen();
+    try {
+      if (deadline == null) {
+        permits.acquire();
+      } else if (!permits.tryAcquire(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+        throw new SocketTimeoutException("Timed out waiting for an ssh-agent connection.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for an ssh-agent connection.");
+    }
+
+    try {
+      ensureOpen();
+      AgentProxies.DefaultAgentProxy connection;
+      while ((connection = idle.pollFirst()) != null) {
+        if (connection.isOpen()) {
+          return connection;
+        }
+        log.debug("Evicting closed ssh-agent connection {}.", connection);
+        closeQuietly(connection);
+      }
+      return factory.create();
+    } catch (IOException | RuntimeException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private void release(final AgentProxies.DefaultAgentProxy connection, final boolean broken) {
+    if (broken || closed || !connection.isOpen()) {
+      log.debug("Evicting ssh-agent connection {}.", connection);
+      closeQuietly(connection);
+    } else {
+      // Most recently used connections go first so that idle ones are reused in LIFO order.
+      idle.offerFirst(connection);
+      if (closed) {
+        // close() may have emptied the pool before the connection was added.
+        closeIdle();
+      }
+    }
+    permits.release();
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("This AgentProxy is closed.");
+    }
+  }
+
+  private static void closeQuietly(final AgentProxy connection) {
+    try {
+      connection.close();
+    } catch (IOException e) {
+      log.debug("Error closing ssh-agent connection.", e);
+    }
+  }
+
+  /**
+   * Return the number of connections that are currently open and not leased.
+   */
+  int idleConnections() {
+    return idle.size();
+  }
+
+  private void closeIdle() {
+    AgentProxies.DefaultAgentProxy connection;
+    while ((connection = idle.pollFirst()) != null) {
+      closeQuietly(connection);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    fanOutExecutor.shutdown();
+    closeIdle();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("maxConnections", maxConnections)
+        .add("idle", idle.size())
+        .add("closed", closed)
+        .toString();
+  }
+
+  private interface Call<T> {
+    T call(AgentProxy connection) throws IOException;
+  }
+}
@@ -0,0 +1,146 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+/**
+ * An {@link Identity} that holds the part of a SSH2_AGENTC_SIGN_REQUEST message that only
+ * depends on the key, i.e. the message type and the length-prefixed key blob, already encoded.
+ * Signing with it only has to encode the message length, the data and the flags. Get one from
+ * {@link AgentProxy#prepare(Identity)} and reuse it for every request signed with that key.
+ */
+public final class PreparedIdentity implements Identity {
+
+  // ssh-agent communication protocol constants
+  static final int SSH2_AGENTC_SIGN_REQUEST = 13;
+
+  private final Identity identity;
+  private final byte[] signRequestPrefix;
+
+  private PreparedIdentity(final Identity identity) {
+    this.identity = identity;
+    this.signRequestPrefix = encodePrefix(identity.getKeyBlob());
+  }
+
+  /**
+   * Prepare an {@link Identity} for signing. Returns {@code identity} itself if it's already
+   * prepared.
+   */
+  static PreparedIdentity of(final Identity identity) {
+    checkNotNull(identity, "Identity cannot be null.");
+    if (identity instanceof PreparedIdentity) {
+      return (PreparedIdentity) identity;
+    }
+    return new PreparedIdentity(identity);
+  }
+
+  /**
+   * Encode the SSH2_AGENTC_SIGN_REQUEST message type followed by the length-prefixed key blob.
+   */
+  static byte[] encodePrefix(final byte[] keyBlob) {
+    return ByteBuffer.allocate(1 + 4 + keyBlob.length)
+        .put((byte) SSH2_AGENTC_SIGN_REQUEST)
+        .putInt(keyBlob.length)
+        .put(keyBlob)
+        .array();
+  }
+
+  /**
+   * Return the identity this was prepared from.
+   */
+  public Identity getIdentity() {
+    return identity;
+  }
+
+  /**
+   * Return the SSH2_AGENTC_SIGN_REQUEST message type followed by the length-prefixed key blob.
+   * Callers must not modify the returned array.
+   */
+  byte[] getSignRequestPrefix() {
+    return signRequestPrefix;
+  }
+
+  @Override
+  public String getKeyFormat() {
+    return identity.getKeyFormat();
+  }
+
+  @Override
+  public PublicKey getPublicKey() {
+    return identity.getPublicKey();
+  }
+
+  @Override
+  public String getComment() {
+    return identity.getComment();
+  }
+
+  @Override
+  public byte[] getKeyBlob() {
+    return identity.getKeyBlob();
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("identity", identity)
+        .toString();
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (obj == null || getClass() != obj.getClass()) {
+      return false;
+    }
+
+    final PreparedIdentity that = (PreparedIdentity) obj;
+    return identity.equals(that.identity);
+  }
+
+  @Override
+  public int hashCode() {
+    return identity.hashCode();
+  }
+}
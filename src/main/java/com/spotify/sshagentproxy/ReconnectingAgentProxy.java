@@ -0,0 +1,413 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link AgentProxy} that survives ssh-agent restarts and broken sockets. It keeps one
+ * connection to ssh-agent, which requests take turns to use.
+ *
+ * <p>When a request fails because the connection broke, the connection is thrown away and the
+ * request is retried once on a new one. Streaming sign requests can't be replayed and are not
+ * retried. When connecting fails, further attempts are delayed by an exponential backoff with
+ * random jitter, so that many clients of a restarting agent don't reconnect in lockstep; requests
+ * made in the meantime fail straight away. A failure reply from ssh-agent leaves the connection
+ * in place.
+ *
+ * <p>If a probe interval is configured, a connection that hasn't been used for that long is
+ * checked by asking for the identities, and replaced in the background if it turns out to be
+ * broken or doesn't answer within the probe interval.
+ */
+public class ReconnectingAgentProxy extends AbstractAgentProxy {
+
+  private static final Logger log = LoggerFactory.getLogger(ReconnectingAgentProxy.class);
+
+  private final AgentProxyFactory factory;
+  private final long initialBackoffNanos;
+  private final long maxBackoffNanos;
+  private final long probeIntervalNanos;
+  private final ScheduledExecutorService probeExecutor;
+  private final Ticker ticker;
+  private final Random random;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final AtomicLong reconnects = new AtomicLong();
+
+  // Guarded by lock
+  private AgentProxies.DefaultAgentProxy connection;
+  private boolean connectedBefore;
+  private int connectFailures;
+  private long nextConnectNanos;
+  private IOException lastConnectFailure;
+  private long lastUsedNanos;
+
+  private volatile boolean closed;
+
+  /**
+   * @param probeInterval How long a connection must be idle before it is probed, or zero to
+   *                      never probe.
+   * @param probeExecutor Runs the probes, if any. It is owned by this proxy and shut down when it
+   *                      is closed.
+   */
+  ReconnectingAgentProxy(final AgentProxyFactory factory,
+                         final long initialBackoff, final long maxBackoff,
+                         final long probeInterval, final TimeUnit unit,
+                         final ScheduledExecutorService probeExecutor,
+                         final Ticker ticker, final Random random) {
+    checkNotNull(factory, "AgentProxyFactory cannot be null.");
+    checkNotNull(ticker, "Ticker cannot be null.");
+    checkNotNull(random, "Random cannot be null.");
+    checkArgument(initialBackoff > 0, "initialBackoff must be positive.");
+    checkArgument(maxBackoff >= initialBackoff, "maxBackoff cannot be less than initialBackoff.");
+    checkArgument(probeInterval >= 0, "probeInterval cannot be negative.");
+    this.factory = factory;
+    this.initialBackoffNanos = unit.toNanos(initialBackoff);
+    this.maxBackoffNanos = unit.toNanos(maxBackoff);
+    this.probeIntervalNanos = unit.toNanos(probeInterval);
+    this.probeExecutor = probeExecutor;
+    this.ticker = ticker;
+    this.random = random;
+    if (probeExecutor != null && probeInterval > 0) {
+      probeExecutor.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          probe();
+        }
+      }, probeInterval, probeInterval, unit);
+    }
+  }
+
+  @Override
+  public List<Identity> list() throws IOException {
+    return execute(new Call<List<Identity>>() {
+      @Override
+      public List<Identity> call(final AgentProxy agentProxy) throws IOException {
+        return agentProxy.list();
+      }
+    }, true);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The time spent waiting for other requests and reconnecting counts towards the timeout.
+   */
+  @Override
+  public List<Identity> list(final long timeout, final TimeUnit unit) throws IOException {
+    final long deadline = ticker.read() + unit.toNanos(timeout);
+    return execute(new Call<List<Identity>>() {
+      @Override
+      public List<Identity> call(final AgentProxy agentProxy) throws IOException {
+        return agentProxy.list(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+      }
+    }, true, deadline);
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data) throws IOException {
+    return execute(new Call<byte[]>() {
+      @Override
+      public byte[] call(final AgentProxy agentProxy) throws IOException {
+        return agentProxy.sign(identity, data);
+      }
+    }, true);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>The time spent waiting for other requests and reconnecting counts towards the timeout.
+   */
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data, final long timeout,
+                     final TimeUnit unit) throws IOException {
+    final long deadline = ticker.read() + unit.toNanos(timeout);
+    return execute(new Call<byte[]>() {
+      @Override
+      public byte[] call(final AgentProxy agentProxy) throws IOException {
+        return agentProxy.sign(identity, data, remainingNanos(deadline), TimeUnit.NANOSECONDS);
+      }
+    }, true, deadline);
+  }
+
+  @Override
+  public AgentSignature sign(final Identity identity, final byte[] data, final String algorithm)
+      throws IOException {
+    return execute(new Call<AgentSignature>() {
+      @Override
+      public AgentSignature call(final AgentProxy agentProxy) throws IOException {
+        return agentProxy.sign(identity, data, algorithm);
+      }
+    }, true);
+  }
+
+  @Override
+  public byte[] sign(final Identity identity, final ReadableByteChannel src, final long length)
+      throws IOException {
+    return execute(new Call<byte[]>() {
+      @Override
+      public byte[] call(final AgentProxy agentProxy) throws IOException {
+        return agentProxy.sign(identity, src, length);
+      }
+    }, false);
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>This is never retried, as some payloads may already have been consumed.
+   */
+  @Override
+  public void signAll(final Identity identity, final Iterator<byte[]> data,
+                      final SignatureConsumer consumer) throws IOException {
+    execute(new Call<Void>() {
+      @Override
+      public Void call(final AgentProxy agentProxy) throws IOException {
+        agentProxy.signAll(identity, data, consumer);
+        return null;
+      }
+    }, false);
+  }
+
+  /**
+   * Return the number of times a new connection replaced a previous one.
+   */
+  public long getReconnectCount() {
+    return reconnects.get();
+  }
+
+  /**
+   * Return true if there is a connection to ssh-agent that is not known to be broken.
+   */
+  public boolean isConnected() {
+    lock.lock();
+    try {
+      return connection != null && connection.isOpen();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private <T> T execute(final Call<T> call, final boolean retry) throws IOException {
+    lock.lock();
+    return executeLocked(call, retry);
+  }
+
+  private <T> T execute(final Call<T> call, final boolean retry, final long deadline)
+      throws IOException {
+    try {
+      if (!lock.tryLock(remainingNanos(deadline), TimeUnit.NANOSECONDS)) {
+        throw new SocketTimeoutException("Timed out waiting for the ssh-agent connection.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the ssh-agent connection.");
+    }
+    return executeLocked(call, retry);
+  }
+
+  /**
+   * Run a request with the lock held, and release it afterwards.
+   */
+  private <T> T executeLocked(final Call<T> call, final boolean retry) throws IOException {
+    try {
+      for (int attempt = 1; ; attempt++) {
+        final AgentProxies.DefaultAgentProxy agentProxy = connection();
+        try {
+          return call.call(agentProxy);
+        } catch (AgentFailureException e) {
+          throw e;
+        } catch (IOException e) {
+          discard();
+          // There's no time left to retry after a timeout.
+          if (!retry || attempt > 1 || e instanceof SocketTimeoutException) {
+            throw e;
+          }
+          log.debug("ssh-agent connection broke. Retrying on a new connection.", e);
+        } finally {
+          lastUsedNanos = ticker.read();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Return the current connection, or open a new one unless we're backing off after failing to.
+   * Must be called with the lock held.
+   */
+  private AgentProxies.DefaultAgentProxy connection() throws IOException {
+    if (closed) {
+      throw new IOException("This AgentProxy is closed.");
+    }
+    if (connection != null) {
+      if (connection.isOpen()) {
+        return connection;
+      }
+      discard();
+    }
+
+    final long now = ticker.read();
+    if (connectFailures > 0 && now - nextConnectNanos < 0) {
+      throw new IOException(String.format(
+          "Can't connect to ssh-agent. Not retrying for another %d ms.",
+          TimeUnit.NANOSECONDS.toMillis(nextConnectNanos - now)), lastConnectFailure);
+    }
+
+    try {
+      connection = factory.create();
+    } catch (IOException e) {
+      connectFailures++;
+      lastConnectFailure = e;
+      nextConnectNanos = now + backoffNanos(connectFailures);
+      log.debug("Failed to connect to ssh-agent {} time(s).", connectFailures, e);
+      throw e;
+    }
+
+    if (connectedBefore) {
+      reconnects.incrementAndGet();
+      log.info("Reconnected to ssh-agent.");
+    }
+    connectedBefore = true;
+    connectFailures = 0;
+    lastConnectFailure = null;
+    return connection;
+  }
+
+  /**
+   * Return how long to wait after the given number of consecutive failures to connect. The
+   * delay doubles with every failure up to the maximum, and a random half of it is taken off.
+   */
+  long backoffNanos(final int failures) {
+    final int shift = Math.min(failures - 1, 62);
+    final long delay = initialBackoffNanos > maxBackoffNanos >> shift
+                       ? maxBackoffNanos
+                       : initialBackoffNanos << shift;
+    final long half = delay / 2;
+    return delay - (long) (random.nextDouble() * half);
+  }
+
+  private long remainingNanos(final long deadline) {
+    return Math.max(0, deadline - ticker.read());
+  }
+
+  private void discard() {
+    if (connection == null) {
+      return;
+    }
+    try {
+      connection.close();
+    } catch (IOException e) {
+      log.debug("Error closing ssh-agent connection.", e);
+    }
+    connection = null;
+  }
+
+  /**
+   * Check an idle connection and replace it if it is broken. Does nothing if a request is in
+   * progress, since that tells us more than a probe would.
+   */
+  void probe() {
+    if (!lock.tryLock()) {
+      return;
+    }
+    try {
+      if (closed || !connectedBefore || ticker.read() - lastUsedNanos < probeIntervalNanos) {
+        return;
+      }
+      final AgentProxies.DefaultAgentProxy agentProxy = connection();
+      try {
+        // An agent that hangs, e.g. waiting for a confirmation, mustn't hold the lock forever.
+        agentProxy.list(probeIntervalNanos, TimeUnit.NANOSECONDS);
+      } catch (AgentFailureException e) {
+        // ssh-agent is there, it just didn't want to answer.
+      } catch (IOException e) {
+        log.debug("ssh-agent connection failed a probe. Reconnecting.", e);
+        discard();
+        connection();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.debug("Failed to probe ssh-agent.", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    if (probeExecutor != null) {
+      probeExecutor.shutdownNow();
+    }
+    lock.lock();
+    try {
+      discard();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("reconnects", reconnects.get())
+        .add("closed", closed)
+        .toString();
+  }
+
+  private interface Call<T> {
+    T call(AgentProxy agentProxy) throws IOException;
+  }
+}
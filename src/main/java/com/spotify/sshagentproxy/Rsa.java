@@ -36,53 +36,101 @@
 
 package com.spotify.sshagentproxy;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Objects;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.RSAPublicKeySpec;
-import java.util.Iterator;
 import org.apache.commons.codec.binary.Base64;
 
 class Rsa {
 
   static final String RSA_LABEL = "ssh-rsa";
 
+  private static final byte[] TEXT_PREFIX = (RSA_LABEL + " ").getBytes(Charsets.US_ASCII);
+
+  // KeyFactory isn't thread-safe, and looking one up through the JCA providers costs more than
+  // building the key, so keep one per thread.
+  private static final ThreadLocal<KeyFactory> KEY_FACTORY = new ThreadLocal<>();
+
   private Rsa() {
   }
 
   /**
    * Create an {@link RSAPublicKey} from bytes.
-   * @param key Array of bytes representing Rsa public key.
+   * @param key Array of bytes representing Rsa public key. Either a key blob encoded as per
+   *            RFC 4253 section 6.6, or a line in OpenSSH's authorized_keys format.
    * @return {@link RSAPublicKey}
    */
   static RSAPublicKey from(final byte[] key)
       throws InvalidKeyException, NoSuchAlgorithmException, InvalidKeySpecException {
 
-    final String s = new String(key);
-    final byte[] encoded;
-    final String decoded;
-    if (s.startsWith(RSA_LABEL)) {
-      decoded = s.split(" ")[1];
-      encoded = Base64.decodeBase64(decoded);
-    } else {
-      encoded = key;
-      decoded = Base64.encodeBase64String(key);
+    final byte[] encoded = hasTextPrefix(key)
+                           ? Base64.decodeBase64(new String(key, Charsets.US_ASCII).split(" ")[1])
+                           : key;
+
+    final SshDecoder decoder = new SshDecoder(encoded);
+    final String sigType;
+    final BigInteger exponent;
+    final BigInteger modulus;
+    try {
+      sigType = decoder.readAscii();
+      if (!sigType.equals(RSA_LABEL)) {
+        throw new RuntimeException(String.format(
+            "Unknown key type %s. This code currently only supports %s.", sigType, RSA_LABEL));
+      }
+      exponent = decoder.readMpint();
+      modulus = decoder.readMpint();
+    } catch (IllegalArgumentException e) {
+      throw new InvalidKeyException(e);
     }
 
-    final Iterator<byte[]> fields = new ByteIterator(encoded);
-    final String sigType = new String(fields.next());
-    if (!sigType.equals(RSA_LABEL)) {
-      throw new RuntimeException(String.format(
-          "Unknown key type %s. This code currently only supports %s.", sigType, RSA_LABEL));
+    return (RSAPublicKey) keyFactory().generatePublic(new RSAPublicKeySpec(modulus, exponent));
+  }
+
+  /**
+   * Encode an {@link RSAPublicKey} as a key blob as per RFC 4253 section 6.6.
+   * @param rsaPublicKey {@link RSAPublicKey}
+   * @return Array of bytes representing the key blob.
+   */
+  static byte[] encode(final RSAPublicKey rsaPublicKey) {
+    final byte[] keyType = RSA_LABEL.getBytes(Charsets.US_ASCII);
+    final byte[] publicExponent = rsaPublicKey.getPublicExponent().toByteArray();
+    final byte[] modulus = rsaPublicKey.getModulus().toByteArray();
+    return ByteBuffer.allocate(4 + keyType.length + 4 + publicExponent.length + 4 + modulus.length)
+        .putInt(keyType.length)
+        .put(keyType)
+        .putInt(publicExponent.length)
+        .put(publicExponent)
+        .putInt(modulus.length)
+        .put(modulus)
+        .array();
+  }
+
+  private static boolean hasTextPrefix(final byte[] key) {
+    if (key.length < TEXT_PREFIX.length) {
+      return false;
     }
+    for (int i = 0; i < TEXT_PREFIX.length; i++) {
+      if (key[i] != TEXT_PREFIX[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
 
-    final RSAPublicKeySpec keySpec =
-        TraditionalKeyParser.parsePemPublicKey(RSA_LABEL + " " + decoded + " ");
-    final KeyFactory keyFactory = KeyFactory.getInstance("Rsa");
-    return (RSAPublicKey) keyFactory.generatePublic(keySpec);
+  private static KeyFactory keyFactory() throws NoSuchAlgorithmException {
+    KeyFactory keyFactory = KEY_FACTORY.get();
+    if (keyFactory == null) {
+      keyFactory = KeyFactory.getInstance("RSA");
+      KEY_FACTORY.set(keyFactory);
+    }
+    return keyFactory;
   }
 
   @Override
@@ -0,0 +1,122 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableMap;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link KeyCodec} of ssh-rsa keys, see RFC 4253 section 6.6. RSA keys make legacy ssh-rsa
+ * signatures with SHA-1 unless a sign request asks for rsa-sha2-256 or rsa-sha2-512 ones, see
+ * RFC 8332.
+ */
+final class RsaCodec implements KeyCodec {
+
+  static final String RSA_SHA2_256 = "rsa-sha2-256";
+  static final String RSA_SHA2_512 = "rsa-sha2-512";
+
+  // ssh-agent communication protocol constants
+  static final int SSH_AGENT_RSA_SHA2_256 = 2;
+  static final int SSH_AGENT_RSA_SHA2_512 = 4;
+
+  private static final Map<String, Integer> SIGN_FLAGS = ImmutableMap.of(
+      Rsa.RSA_LABEL, AgentOutput.NO_FLAGS,
+      RSA_SHA2_256, SSH_AGENT_RSA_SHA2_256,
+      RSA_SHA2_512, SSH_AGENT_RSA_SHA2_512);
+
+  // All of them are RSASSA-PKCS1-v1_5.
+  private static final Map<String, String> SIGNATURE_ALGORITHMS = ImmutableMap.of(
+      Rsa.RSA_LABEL, "SHA1withRSA",
+      RSA_SHA2_256, "SHA256withRSA",
+      RSA_SHA2_512, "SHA512withRSA");
+
+  @Override
+  public String getKeyFormat() {
+    return Rsa.RSA_LABEL;
+  }
+
+  @Override
+  public Set<String> getSignatureFormats() {
+    return SIGN_FLAGS.keySet();
+  }
+
+  @Override
+  public PublicKey decodePublicKey(final byte[] keyBlob) throws GeneralSecurityException {
+    return Rsa.from(keyBlob);
+  }
+
+  @Override
+  public boolean supports(final PublicKey publicKey) {
+    return publicKey instanceof RSAPublicKey;
+  }
+
+  @Override
+  public int getSignFlags(final String signatureAlgorithm) {
+    final Integer flags = SIGN_FLAGS.get(signatureAlgorithm);
+    checkArgument(flags != null, "ssh-rsa keys don't make %s signatures.", signatureAlgorithm);
+    return flags;
+  }
+
+  @Override
+  public boolean verify(final PublicKey publicKey, final String signatureAlgorithm,
+                        final byte[] data, final byte[] signature)
+      throws GeneralSecurityException {
+    final String algorithm = SIGNATURE_ALGORITHMS.get(signatureAlgorithm);
+    if (algorithm == null) {
+      return false;
+    }
+    final Signature verifier = Signature.getInstance(algorithm);
+    verifier.initVerify(publicKey);
+    verifier.update(data);
+    return verifier.verify(signature);
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("keyFormat", getKeyFormat())
+        .toString();
+  }
+}
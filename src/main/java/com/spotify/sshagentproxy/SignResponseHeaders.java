@@ -59,7 +59,7 @@ class SignResponseHeaders extends AgentReplyHeaders {
   }
 
   static SignResponseHeaders from(final byte[] bytes) {
-    if (bytes.length != 9) {
+    if (bytes.length < 9) {
       throw new IllegalArgumentException("SSH2_AGENT_SIGN_RESPONSE headers need to be 9 bytes");
     }
 
@@ -0,0 +1,163 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableSet;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An {@link AgentProxy} that caches the signatures returned by
+ * {@link #sign(Identity, byte[])}.
+ *
+ * <p>RSA PKCS#1 v1.5 and Ed25519 signatures are deterministic, so signing the same data with the
+ * same key again returns the signature ssh-agent made the first time. That includes certificates
+ * of such keys, which ssh-agent signs with the certified key. Signatures by other key types, and
+ * signatures of files and channels, are always made by ssh-agent.
+ *
+ * <p>Signatures are keyed by the key blob and a SHA-256 digest of the data, so the data itself
+ * isn't kept. The cache holds at most the configured number of signatures, each for at most the
+ * configured time-to-live. Concurrent calls for a signature that isn't cached yet each ask
+ * ssh-agent for it.
+ */
+public class SignatureCachingAgentProxy extends ForwardingAgentProxy {
+
+  private static final Set<String> DETERMINISTIC_KEY_FORMATS = ImmutableSet.of(
+      Rsa.RSA_LABEL, Rsa.RSA_LABEL + CertificateCodec.CERT_SUFFIX,
+      Ed25519Codec.KEY_FORMAT, Ed25519Codec.KEY_FORMAT + CertificateCodec.CERT_SUFFIX);
+
+  private final AgentProxy delegate;
+  private final Cache<SignatureKey, byte[]> signatures;
+  private final long maximumSize;
+  private final long ttlNanos;
+
+  SignatureCachingAgentProxy(final AgentProxy delegate, final long maximumSize, final long ttl,
+                             final TimeUnit unit, final Ticker ticker) {
+    checkNotNull(delegate, "AgentProxy cannot be null.");
+    checkArgument(maximumSize >= 0, "maximumSize cannot be negative.");
+    checkArgument(ttl >= 0, "ttl cannot be negative.");
+    this.delegate = delegate;
+    this.maximumSize = maximumSize;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.signatures = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(ttlNanos, TimeUnit.NANOSECONDS)
+        .ticker(ticker)
+        .recordStats()
+        .build();
+  }
+
+  @Override
+  protected AgentProxy delegate() {
+    return delegate;
+  }
+
+  /**
+   * Return the cached signature of {@code data}, asking ssh-agent for it if there is none.
+   */
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data) throws IOException {
+    if (!isDeterministic(identity)) {
+      return delegate.sign(identity, data);
+    }
+    final SignatureKey key = SignatureKey.of(identity, data);
+    final byte[] cached = signatures.getIfPresent(key);
+    if (cached != null) {
+      return cached.clone();
+    }
+    final byte[] signature = delegate.sign(identity, data);
+    signatures.put(key, signature.clone());
+    return signature;
+  }
+
+  /**
+   * Return the cached signature of {@code data}, asking ssh-agent for it within
+   * {@code timeout} if there is none.
+   */
+  @Override
+  public byte[] sign(final Identity identity, final byte[] data, final long timeout,
+                     final TimeUnit unit) throws IOException {
+    if (!isDeterministic(identity)) {
+      return delegate.sign(identity, data, timeout, unit);
+    }
+    final SignatureKey key = SignatureKey.of(identity, data);
+    final byte[] cached = signatures.getIfPresent(key);
+    if (cached != null) {
+      return cached.clone();
+    }
+    final byte[] signature = delegate.sign(identity, data, timeout, unit);
+    signatures.put(key, signature.clone());
+    return signature;
+  }
+
+  /**
+   * Return the number of signatures returned from the cache and made by ssh-agent, among other
+   * statistics. Signatures by key types that aren't cached aren't counted.
+   */
+  public CacheStats stats() {
+    return signatures.stats();
+  }
+
+  /**
+   * Discard all cached signatures, e.g. after a key has been removed from ssh-agent.
+   */
+  public void invalidate() {
+    signatures.invalidateAll();
+  }
+
+  private static boolean isDeterministic(final Identity identity) {
+    return DETERMINISTIC_KEY_FORMATS.contains(identity.getKeyFormat());
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("delegate", delegate)
+        .add("maximumSize", maximumSize)
+        .add("ttlNanos", ttlNanos)
+        .toString();
+  }
+}
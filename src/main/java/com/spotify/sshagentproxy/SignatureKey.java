@@ -0,0 +1,101 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import com.google.common.base.Throwables;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Identifies a signature by the key that makes it, a SHA-256 digest of the signed data and the
+ * flags of the sign request. Two sign requests with equal keys get equal signatures from keys
+ * whose signatures are deterministic, without the data having to be kept.
+ */
+final class SignatureKey {
+
+  private final byte[] keyBlob;
+  private final byte[] digest;
+  private final int flags;
+  private final int hashCode;
+
+  private SignatureKey(final byte[] keyBlob, final byte[] digest, final int flags) {
+    this.keyBlob = keyBlob;
+    this.digest = digest;
+    this.flags = flags;
+    this.hashCode = 31 * (31 * Arrays.hashCode(keyBlob) + Arrays.hashCode(digest)) + flags;
+  }
+
+  static SignatureKey of(final Identity identity, final byte[] data) {
+    return of(identity, data, AgentOutput.NO_FLAGS);
+  }
+
+  static SignatureKey of(final Identity identity, final byte[] data, final int flags) {
+    checkNotNull(identity, "Identity cannot be null.");
+    checkNotNull(data, "data cannot be null.");
+    return new SignatureKey(identity.getKeyBlob(), sha256().digest(data), flags);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  @Override
+  public boolean equals(final Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof SignatureKey)) {
+      return false;
+    }
+    final SignatureKey that = (SignatureKey) obj;
+    return flags == that.flags
+           && Arrays.equals(keyBlob, that.keyBlob)
+           && Arrays.equals(digest, that.digest);
+  }
+
+  @Override
+  public int hashCode() {
+    return hashCode;
+  }
+}
@@ -0,0 +1,181 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the data types defined in RFC 4251 section 5 "Data Type Representations Used in the SSH
+ * Protocols" from a {@link ByteBuffer}. It keeps a single cursor over the buffer, so decoding a
+ * message is one linear pass, and strings are returned as views of the buffer instead of copies.
+ */
+class SshDecoder {
+
+  private final ByteBuffer buffer;
+
+  /**
+   * @param buffer Bytes to decode, starting at the buffer's position. The buffer itself isn't
+   *               modified.
+   */
+  SshDecoder(final ByteBuffer buffer) {
+    this.buffer = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+  }
+
+  SshDecoder(final byte[] bytes) {
+    this(ByteBuffer.wrap(bytes));
+  }
+
+  boolean hasRemaining() {
+    return buffer.hasRemaining();
+  }
+
+  int remaining() {
+    return buffer.remaining();
+  }
+
+  /**
+   * Read a single byte.
+   */
+  byte readByte() {
+    ensureRemaining(1);
+    return buffer.get();
+  }
+
+  /**
+   * Read a uint32. Values larger than {@link Integer#MAX_VALUE} are returned as negative ints.
+   */
+  int readInt() {
+    ensureRemaining(4);
+    return buffer.getInt();
+  }
+
+  /**
+   * Read a uint64. Values larger than {@link Long#MAX_VALUE} are returned as negative longs.
+   */
+  long readLong() {
+    ensureRemaining(8);
+    return buffer.getLong();
+  }
+
+  /**
+   * Read a length-prefixed string.
+   * @return A read-only view of the string's bytes. No bytes are copied.
+   */
+  ByteBuffer readString() {
+    return nextString().asReadOnlyBuffer();
+  }
+
+  /**
+   * Read a length-prefixed string into a new array.
+   */
+  byte[] readBytes() {
+    final ByteBuffer string = nextString();
+    final byte[] bytes = new byte[string.remaining()];
+    string.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Read a length-prefixed string and decode it as UTF-8.
+   */
+  String readUtf8() {
+    return decode(nextString(), Charsets.UTF_8);
+  }
+
+  /**
+   * Read a length-prefixed string and decode it as US-ASCII, e.g. a key format or a
+   * signature format identifier.
+   */
+  String readAscii() {
+    return decode(nextString(), Charsets.US_ASCII);
+  }
+
+  /**
+   * Read an mpint, i.e. a length-prefixed two's complement big-endian integer.
+   */
+  BigInteger readMpint() {
+    final byte[] bytes = readBytes();
+    return bytes.length == 0 ? BigInteger.ZERO : new BigInteger(bytes);
+  }
+
+  /**
+   * Skip over a length-prefixed string.
+   */
+  void skipString() {
+    nextString();
+  }
+
+  private ByteBuffer nextString() {
+    final int length = readInt();
+    if (length < 0) {
+      throw new IllegalArgumentException("Invalid string length " + (length & 0xffffffffL));
+    }
+    ensureRemaining(length);
+    final ByteBuffer string = buffer.slice();
+    string.limit(length);
+    buffer.position(buffer.position() + length);
+    return string;
+  }
+
+  private static String decode(final ByteBuffer string, final Charset charset) {
+    if (string.hasArray()) {
+      return new String(string.array(), string.arrayOffset() + string.position(),
+                        string.remaining(), charset);
+    }
+    return charset.decode(string).toString();
+  }
+
+  private void ensureRemaining(final int numBytes) {
+    if (buffer.remaining() < numBytes) {
+      throw new IllegalArgumentException(String.format(
+          "Expected %d more bytes but only %d remain.", numBytes, buffer.remaining()));
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("position", buffer.position())
+        .add("remaining", buffer.remaining())
+        .toString();
+  }
+}
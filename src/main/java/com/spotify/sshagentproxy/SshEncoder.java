@@ -0,0 +1,135 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes the data types defined in RFC 4251 section 5 "Data Type Representations Used in the SSH
+ * Protocols" into a growable buffer. The counterpart of {@link SshDecoder}.
+ */
+class SshEncoder {
+
+  private static final int DEFAULT_CAPACITY = 256;
+
+  private ByteBuffer buffer;
+
+  SshEncoder() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  SshEncoder(final int initialCapacity) {
+    this.buffer = ByteBuffer.allocate(initialCapacity);
+  }
+
+  /**
+   * Write a single byte.
+   */
+  SshEncoder writeByte(final int value) {
+    ensureCapacity(1);
+    buffer.put((byte) value);
+    return this;
+  }
+
+  /**
+   * Write a uint32.
+   */
+  SshEncoder writeInt(final int value) {
+    ensureCapacity(4);
+    buffer.putInt(value);
+    return this;
+  }
+
+  /**
+   * Write bytes as they are, without a length prefix.
+   */
+  SshEncoder writeRaw(final byte[] bytes) {
+    ensureCapacity(bytes.length);
+    buffer.put(bytes);
+    return this;
+  }
+
+  /**
+   * Write a string, i.e. a uint32 length followed by that many bytes.
+   */
+  SshEncoder writeString(final byte[] bytes) {
+    return writeInt(bytes.length).writeRaw(bytes);
+  }
+
+  /**
+   * Write a string as its UTF-8 bytes.
+   */
+  SshEncoder writeUtf8(final String value) {
+    return writeString(value.getBytes(Charsets.UTF_8));
+  }
+
+  /**
+   * Write an mpint, i.e. a string holding the two's complement big-endian representation of a
+   * number.
+   */
+  SshEncoder writeMpint(final BigInteger value) {
+    return value.signum() == 0 ? writeInt(0) : writeString(value.toByteArray());
+  }
+
+  /**
+   * Return a copy of the bytes written so far.
+   */
+  byte[] toByteArray() {
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+
+  private void ensureCapacity(final int numBytes) {
+    if (buffer.remaining() < numBytes) {
+      final int capacity = Math.max(buffer.capacity() * 2, buffer.position() + numBytes);
+      final ByteBuffer grown = ByteBuffer.allocate(capacity);
+      buffer.flip();
+      grown.put(buffer);
+      buffer = grown;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return Objects.toStringHelper(this)
+        .add("size", buffer.position())
+        .toString();
+  }
+}
@@ -0,0 +1,209 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Strings.isNullOrEmpty;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Creates signatures in the format of "ssh-keygen -Y sign", as described in OpenSSH's
+ * PROTOCOL.sshsig. The message is hashed locally with SHA-512 and only the small SSHSIG wrapper
+ * around the hash is sent to ssh-agent, so signing a large file costs one round trip to the agent
+ * however big the file is.
+ */
+public final class SshSig {
+
+  static final String MAGIC_PREAMBLE = "SSHSIG";
+  static final int SIG_VERSION = 1;
+  static final String HASH_ALGORITHM = "sha512";
+
+  private static final String BEGIN = "-----BEGIN SSH SIGNATURE-----\n";
+  private static final String END = "-----END SSH SIGNATURE-----\n";
+  // ssh-keygen wraps the base64 encoded signature at 70 columns
+  private static final int LINE_LENGTH = 70;
+  // Files are hashed through memory mapped regions of at most this many bytes.
+  private static final long MAP_REGION_SIZE = 64 * 1024 * 1024;
+
+  private SshSig() {
+  }
+
+  /**
+   * Sign a file. It is hashed through memory mapped regions, so it is never copied to the heap.
+   * @param agentProxy The {@link AgentProxy} holding the private key.
+   * @param identity   The {@link Identity} to sign with.
+   * @param namespace  The signature namespace, e.g. "file" or "git".
+   * @param path       The file to be signed.
+   * @return The armored signature, as written by "ssh-keygen -Y sign".
+   */
+  public static String sign(final AgentProxy agentProxy, final Identity identity,
+                            final String namespace, final Path path) throws IOException {
+    try (final FileChannel file = FileChannel.open(path, StandardOpenOption.READ)) {
+      return sign(agentProxy, identity, namespace, file);
+    }
+  }
+
+  /**
+   * Sign the contents of a file from its current position to its end.
+   * @param agentProxy The {@link AgentProxy} holding the private key.
+   * @param identity   The {@link Identity} to sign with.
+   * @param namespace  The signature namespace, e.g. "file" or "git".
+   * @param file       The file to be signed.
+   * @return The armored signature, as written by "ssh-keygen -Y sign".
+   */
+  public static String sign(final AgentProxy agentProxy, final Identity identity,
+                            final String namespace, final FileChannel file) throws IOException {
+    return signHash(agentProxy, identity, namespace, hash(file));
+  }
+
+  /**
+   * Sign a message held in memory.
+   * @param agentProxy The {@link AgentProxy} holding the private key.
+   * @param identity   The {@link Identity} to sign with.
+   * @param namespace  The signature namespace, e.g. "file" or "git".
+   * @param message    The message to be signed.
+   * @return The armored signature, as written by "ssh-keygen -Y sign".
+   */
+  public static String sign(final AgentProxy agentProxy, final Identity identity,
+                            final String namespace, final byte[] message) throws IOException {
+    final MessageDigest digest = sha512();
+    digest.update(message);
+    return signHash(agentProxy, identity, namespace, digest.digest());
+  }
+
+  private static String signHash(final AgentProxy agentProxy, final Identity identity,
+                                 final String namespace, final byte[] hash) throws IOException {
+    checkNotNull(agentProxy, "AgentProxy cannot be null.");
+    checkNotNull(identity, "Identity cannot be null.");
+    checkArgument(!isNullOrEmpty(namespace), "Namespace cannot be empty.");
+
+    final AgentSignature signature =
+        agentProxy.sign(identity, signedData(namespace, hash), signatureAlgorithm(identity));
+    return armor(encode(identity, namespace, signature));
+  }
+
+  /**
+   * Return the signature algorithm to ask ssh-agent for. Like ssh-keygen, RSA keys sign with
+   * rsa-sha2-512, as OpenSSH doesn't accept SHA-1 signatures in this format. Certificates sign
+   * like their keys.
+   */
+  static String signatureAlgorithm(final Identity identity) {
+    String keyFormat = identity.getKeyFormat();
+    final KeyCodec codec = KeyCodecs.get(keyFormat);
+    if (codec instanceof CertificateCodec) {
+      keyFormat = ((CertificateCodec) codec).getKeyCodec().getKeyFormat();
+    }
+    return keyFormat.equals(Rsa.RSA_LABEL) ? RsaCodec.RSA_SHA2_512 : keyFormat;
+  }
+
+  /**
+   * Hash a file with SHA-512 from its current position to its end, which becomes its position.
+   */
+  static byte[] hash(final FileChannel file) throws IOException {
+    final MessageDigest digest = sha512();
+    final long size = file.size();
+    long position = file.position();
+    while (position < size) {
+      final long regionSize = Math.min(MAP_REGION_SIZE, size - position);
+      digest.update(file.map(FileChannel.MapMode.READ_ONLY, position, regionSize));
+      position += regionSize;
+    }
+    file.position(position);
+    return digest.digest();
+  }
+
+  /**
+   * Return the blob that is actually signed by the private key.
+   */
+  static byte[] signedData(final String namespace, final byte[] hash) {
+    return new SshEncoder()
+        .writeRaw(MAGIC_PREAMBLE.getBytes(Charsets.US_ASCII))
+        .writeUtf8(namespace)
+        .writeString(new byte[0])
+        .writeUtf8(HASH_ALGORITHM)
+        .writeString(hash)
+        .toByteArray();
+  }
+
+  /**
+   * Return the signature blob, with the signature wrapped in the algorithm ssh-agent used as per
+   * RFC 4253 section 6.6.
+   */
+  static byte[] encode(final Identity identity, final String namespace,
+                       final AgentSignature signature) {
+    final byte[] signatureBlob = signature.encode();
+    return new SshEncoder()
+        .writeRaw(MAGIC_PREAMBLE.getBytes(Charsets.US_ASCII))
+        .writeInt(SIG_VERSION)
+        .writeString(identity.getKeyBlob())
+        .writeUtf8(namespace)
+        .writeString(new byte[0])
+        .writeUtf8(HASH_ALGORITHM)
+        .writeString(signatureBlob)
+        .toByteArray();
+  }
+
+  /**
+   * Armor a signature blob the way ssh-keygen does.
+   */
+  static String armor(final byte[] blob) {
+    final String encoded = Base64.encodeBase64String(blob);
+    final StringBuilder armored = new StringBuilder(BEGIN);
+    for (int i = 0; i < encoded.length(); i += LINE_LENGTH) {
+      armored.append(encoded, i, Math.min(encoded.length(), i + LINE_LENGTH)).append('\n');
+    }
+    return armored.append(END).toString();
+  }
+
+  private static MessageDigest sha512() {
+    try {
+      return MessageDigest.getInstance("SHA-512");
+    } catch (NoSuchAlgorithmException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs actions when deadlines pass, e.g. closing a connection whose reply is overdue so that a
+ * thread blocked reading from it wakes up. All deadlines share one daemon thread.
+ */
+final class Watchdog {
+
+  private static final ScheduledThreadPoolExecutor EXECUTOR;
+
+  static {
+    EXECUTOR = new ScheduledThreadPoolExecutor(1, new ThreadFactoryBuilder()
+        .setDaemon(true)
+        .setNameFormat("ssh-agent-watchdog-%d")
+        .build());
+    // Most deadlines are met, so don't keep their cancelled tasks around.
+    EXECUTOR.setRemoveOnCancelPolicy(true);
+  }
+
+  private Watchdog() {
+  }
+
+  /**
+   * Run {@code action} once {@code timeout} has passed, unless the returned future is cancelled
+   * first.
+   */
+  static ScheduledFuture<?> schedule(final Runnable action, final long timeout,
+                                     final TimeUnit unit) {
+    return EXECUTOR.schedule(action, timeout, unit);
+  }
+
+  /**
+   * Create the exception thrown when an ssh-agent request misses its deadline.
+   */
+  static SocketTimeoutException timeout(final long timeout, final TimeUnit unit) {
+    return new SocketTimeoutException(String.format(
+        "ssh-agent didn't reply within %d ms.", unit.toMillis(timeout)));
+  }
+}
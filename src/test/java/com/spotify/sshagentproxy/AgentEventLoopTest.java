@@ -0,0 +1,219 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AgentEventLoopTest extends TestConstants {
+
+  private final List<FakeAgent> agents = Lists.newArrayList();
+  private AgentEventLoop loop;
+
+  @Before
+  public void setUp() throws Exception {
+    loop = AgentEventLoop.open();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    loop.close();
+    for (final FakeAgent agent : agents) {
+      agent.close();
+    }
+  }
+
+  private FakeAgent newAgent() throws IOException {
+    final FakeAgent agent = new FakeAgent();
+    agents.add(agent);
+    return agent;
+  }
+
+  @Test
+  public void testList() throws Exception {
+    final AsyncAgentProxy proxy = loop.register(newAgent().clientChannel());
+    assertThat(proxy.listAsync().get(10, TimeUnit.SECONDS), equalTo((List<Identity>) Lists
+        .newArrayList(DefaultIdentity.from(KEY_BLOB1, COMMENT1),
+                      DefaultIdentity.from(KEY_BLOB2, COMMENT2))));
+  }
+
+  @Test
+  public void testManyConnectionsOnOneThread() throws Exception {
+    final List<ListenableFuture<byte[]>> futures = Lists.newArrayList();
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    for (int i = 0; i < 20; i++) {
+      final AsyncAgentProxy proxy = loop.register(newAgent().clientChannel());
+      for (int j = 0; j < 5; j++) {
+        futures.add(proxy.signAsync(identity, DATA));
+      }
+    }
+    assertThat(loop.connections(), equalTo(20));
+
+    for (final ListenableFuture<byte[]> future : futures) {
+      assertArrayEquals(SIGN_RESPONSE_DATA, future.get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testFragmentedReplies() throws Exception {
+    final FakeAgent agent = newAgent();
+    agent.setChunkSize(3);
+    final AsyncAgentProxy proxy = loop.register(agent.clientChannel());
+
+    assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(DefaultIdentity.from(KEY_BLOB2, COMMENT2),
+                                                     DATA));
+    assertThat(proxy.list().size(), equalTo(2));
+  }
+
+  @Test
+  public void testSignFromChannel() throws Exception {
+    final FakeAgent agent = newAgent();
+    final AsyncAgentProxy proxy = loop.register(agent.clientChannel());
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    // Larger than all of the chunks it is streamed through
+    final byte[] data = new byte[1024 * 1024];
+    new Random(0).nextBytes(data);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new AgentOutput(expected).signRequest(identity, data);
+
+    final ListenableFuture<List<Identity>> before = proxy.listAsync();
+    assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(
+        identity, Channels.newChannel(new ByteArrayInputStream(data)), data.length));
+    final byte[] message = expected.toByteArray();
+    assertArrayEquals(Arrays.copyOfRange(message, 4, message.length), agent.lastRequest());
+    assertThat(before.get(10, TimeUnit.SECONDS).size(), equalTo(2));
+    assertThat(proxy.list().size(), equalTo(2));
+  }
+
+  @Test
+  public void testShortChannelClosesConnection() throws Exception {
+    final AsyncAgentProxy proxy = loop.register(newAgent().clientChannel());
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try {
+      proxy.sign(identity, Channels.newChannel(new ByteArrayInputStream(DATA)), DATA.length + 1);
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      // expected
+    }
+
+    try {
+      proxy.listAsync().get(10, TimeUnit.SECONDS);
+      fail("Expected IOException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof IOException, equalTo(true));
+    }
+  }
+
+  @Test
+  public void testAgentFailureKeepsConnection() throws Exception {
+    final FakeAgent agent = newAgent();
+    agent.setFailSignRequests(true);
+    final AsyncAgentProxy proxy = loop.register(agent.clientChannel());
+
+    try {
+      proxy.sign(DefaultIdentity.from(KEY_BLOB2, COMMENT2), DATA);
+      fail("Expected AgentFailureException");
+    } catch (AgentFailureException e) {
+      assertThat(e.getMessageType(), equalTo(5));
+    }
+    assertThat(proxy.list().size(), equalTo(2));
+    assertThat(loop.connections(), equalTo(1));
+  }
+
+  @Test
+  public void testAgentDisconnectFailsPendingRequests() throws Exception {
+    final FakeAgent agent = newAgent();
+    final AsyncAgentProxy proxy = loop.register(agent.clientChannel());
+    proxy.list();
+    agent.close();
+
+    try {
+      proxy.listAsync().get(10, TimeUnit.SECONDS);
+      fail("Expected IOException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof IOException, equalTo(true));
+    }
+  }
+
+  @Test
+  public void testCloseFailsConnections() throws Exception {
+    final AsyncAgentProxy proxy = loop.register(newAgent().clientChannel());
+    loop.close();
+
+    try {
+      proxy.listAsync().get(10, TimeUnit.SECONDS);
+      fail("Expected IOException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof IOException, equalTo(true));
+    }
+  }
+
+  @Test
+  public void testLateReplyAfterTimeoutIsDropped() throws Exception {
+    final FakeAgent agent = newAgent();
+    final AsyncAgentProxy proxy = loop.register(agent.clientChannel());
+    agent.setReplyDelay(500, TimeUnit.MILLISECONDS);
+    try {
+      proxy.list(50, TimeUnit.MILLISECONDS);
+      fail("Expected SocketTimeoutException");
+    } catch (SocketTimeoutException expected) {
+      // expected
+    }
+
+    agent.setReplyDelay(0, TimeUnit.MILLISECONDS);
+    assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(DefaultIdentity.from(KEY_BLOB2, COMMENT2),
+                                                     DATA, 10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,83 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class AgentFrameDecoderTest extends TestConstants {
+
+  @Test
+  public void testWholeFrame() throws Exception {
+    final AgentFrameDecoder decoder = new AgentFrameDecoder();
+    final ByteBuffer src = ByteBuffer.wrap(SIGN_RESPONSE);
+    assertThat(decoder.decode(src), equalTo(SIGN_RESPONSE));
+    assertThat(src.hasRemaining(), equalTo(false));
+  }
+
+  @Test
+  public void testFrameSplitAcrossChunks() throws Exception {
+    final AgentFrameDecoder decoder = new AgentFrameDecoder();
+    for (int i = 0; i < SIGN_RESPONSE.length - 1; i++) {
+      assertThat(decoder.decode(ByteBuffer.wrap(SIGN_RESPONSE, i, 1)), nullValue());
+    }
+    assertThat(decoder.decode(ByteBuffer.wrap(SIGN_RESPONSE, SIGN_RESPONSE.length - 1, 1)),
+               equalTo(SIGN_RESPONSE));
+  }
+
+  @Test
+  public void testSeveralFramesInOneChunk() throws Exception {
+    final byte[] failure = {0, 0, 0, 1, 5};
+    final ByteBuffer src = ByteBuffer.allocate(failure.length + SIGN_RESPONSE.length);
+    src.put(failure).put(SIGN_RESPONSE).flip();
+
+    final AgentFrameDecoder decoder = new AgentFrameDecoder();
+    assertThat(decoder.decode(src), equalTo(failure));
+    assertThat(decoder.decode(src), equalTo(SIGN_RESPONSE));
+    assertThat(decoder.decode(src), nullValue());
+  }
+
+  @Test(expected = IOException.class)
+  public void testInvalidLength() throws Exception {
+    new AgentFrameDecoder().decode(ByteBuffer.wrap(new byte[] {-1, 0, 0, 0}));
+  }
+}
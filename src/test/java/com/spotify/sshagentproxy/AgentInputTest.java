@@ -40,8 +40,15 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.hasItems;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Bytes;
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import org.junit.Test;
 
@@ -95,6 +102,82 @@ public class AgentInputTest extends TestConstants {
     ));
   }
 
+  @Test
+  public void testDecodeIdentitiesAnswer() throws Exception {
+    final List<Identity> identities = AgentInput.decodeIdentitiesAnswer(BYTES);
+
+    assertThat(identities, equalTo((List<Identity>) ImmutableList.of(
+        DefaultIdentity.from(KEY_BLOB1, COMMENT1),
+        DefaultIdentity.from(KEY_BLOB2, COMMENT2)
+    )));
+  }
+
+  @Test
+  public void testDecodeSignResponse() throws Exception {
+    assertArrayEquals(SIGN_RESPONSE_DATA, AgentInput.decodeSignResponse(SIGN_RESPONSE));
+  }
+
+  @Test
+  public void testReadAfterFailure() throws Exception {
+    final byte[] bytes = Bytes.concat(FakeAgent.FAILURE, SIGN_RESPONSE, new byte[] {0, 0, 0, 1, 30},
+                                      BYTES);
+    final AgentInput agentIn = new AgentInput(new TrickleInputStream(bytes));
+
+    try {
+      agentIn.readSignResponse();
+      fail("Expected AgentFailureException");
+    } catch (AgentFailureException e) {
+      assertThat(e.getMessageType(), equalTo(5));
+    }
+    assertArrayEquals(SIGN_RESPONSE_DATA, agentIn.readSignResponse());
+    try {
+      agentIn.readIdentitiesAnswer();
+      fail("Expected AgentFailureException");
+    } catch (AgentFailureException e) {
+      assertThat(e.getMessageType(), equalTo(30));
+    }
+    assertThat(agentIn.readIdentitiesAnswer().size(), equalTo(2));
+  }
+
+  @Test
+  public void testDecodeEd25519SignResponse() throws Exception {
+    final byte[] signature = new byte[64];
+    Arrays.fill(signature, (byte) 7);
+    assertArrayEquals(signature, AgentInput.decodeSignResponse(signResponse("ssh-ed25519",
+                                                                            signature)));
+  }
+
+  @Test
+  public void testReadSignature() throws Exception {
+    final byte[] signature = new byte[] {1, 2, 3};
+    final AgentInput agentIn = new AgentInput(new ByteArrayInputStream(Bytes.concat(
+        signResponse("rsa-sha2-512", signature), SIGN_RESPONSE)));
+
+    final AgentSignature sha512 = agentIn.readSignature();
+    assertThat(sha512.getAlgorithm(), equalTo("rsa-sha2-512"));
+    assertArrayEquals(signature, sha512.getBlob());
+    final AgentSignature legacy = agentIn.readSignature();
+    assertThat(legacy.getAlgorithm(), equalTo("ssh-rsa"));
+    assertArrayEquals(SIGN_RESPONSE_DATA, legacy.getBlob());
+    assertThat(AgentInput.decodeSignature(SIGN_RESPONSE), equalTo(legacy));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void testDecodeUnsupportedSignResponse() throws Exception {
+    AgentInput.decodeSignResponse(signResponse("ssh-dss", new byte[40]));
+  }
+
+  @Test(expected = AgentFailureException.class)
+  public void testDecodeFailure() throws Exception {
+    AgentInput.decodeSignResponse(FakeAgent.FAILURE);
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedReply() throws Exception {
+    new AgentInput(new ByteArrayInputStream(Arrays.copyOf(SIGN_RESPONSE, 20)))
+        .readSignResponse();
+  }
+
   @Test
   public void testReadSignResponse() throws Exception {
     final byte[] headers = new byte[] {
@@ -128,4 +211,27 @@ public class AgentInputTest extends TestConstants {
     assertArrayEquals(signedBytes, expectedSignedBytes);
   }
 
+  /**
+   * Returns at most one byte per read, like a slow socket.
+   */
+  private static class TrickleInputStream extends FilterInputStream {
+
+    TrickleInputStream(final byte[] bytes) {
+      super(new ByteArrayInputStream(bytes));
+    }
+
+    @Override
+    public int read(final byte[] bytes, final int offset, final int length) throws IOException {
+      return super.read(bytes, offset, Math.min(length, 1));
+    }
+  }
+
+  private static byte[] signResponse(final String signatureFormat, final byte[] signature) {
+    final byte[] body = new SshEncoder()
+        .writeByte(SignResponseHeaders.SSH2_AGENT_SIGN_RESPONSE)
+        .writeString(new SshEncoder().writeUtf8(signatureFormat).writeString(signature)
+                         .toByteArray())
+        .toByteArray();
+    return new SshEncoder().writeString(body).toByteArray();
+  }
 }
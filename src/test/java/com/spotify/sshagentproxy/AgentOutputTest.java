@@ -36,13 +36,27 @@
 
 package com.spotify.sshagentproxy;
 
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyFactory;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.RSAPublicKeySpec;
+import java.util.Arrays;
+import java.util.Random;
 import org.junit.Test;
 
 public class AgentOutputTest extends TestConstants {
@@ -58,14 +72,15 @@ public class AgentOutputTest extends TestConstants {
 
   @Test
   public void testSignRequest() throws Exception {
-    final AgentOutput agentOut = new AgentOutput(out);
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    final AgentOutput agentOut = new AgentOutput(written);
     final RSAPublicKeySpec publicKeySpec = TraditionalKeyParser.parsePemPublicKey(PUBLIC_KEY2);
     final KeyFactory keyFactory = KeyFactory.getInstance("Rsa");
     final RSAPublicKey publicKey = (RSAPublicKey) keyFactory.generatePublic(publicKeySpec);
     final byte[] bytes = new byte[]{1, 2, 3, 4};
 
     agentOut.signRequest(publicKey, bytes);
-    verify(out).write(new byte[] {
+    assertThat(written.toByteArray(), equalTo(new byte[] {
         0, 0, 1, 40, 13, 0, 0, 1, 23, 0, 0, 0, 7, 115, 115, 104, 45, 114, 115, 97, 0, 0, 0, 3,
         1, 0, 1, 0, 0, 1, 1, 0, -101, -45, 102, -66, 72, -24, 64, 113, 40, -125, -113, 31, 65,
         31, 75, 113, -64, 67, 71, -70, 62, 108, 93, -77, 60, -49, 89, -109, -24, 106, 36,
@@ -82,7 +97,180 @@ public class AgentOutputTest extends TestConstants {
         1, -101, -59, 108, -57, -93, 110, -28, -82, 93, 119, 88, -50, 77, 91, 9, 109, 48, -119,
         3, -99, -113, 65, 3, -74, -122, 109, -88, 105, -51, 50, 90, 99, -18, 98, 14, 28, 94,
         41, 119, 68, -51, -116, 17, 0, 0, 0, 4, 1, 2, 3, 4, 0, 0, 0, 0,
-    });
+    }));
+  }
+
+  @Test
+  public void testSignRequestWithPreparedIdentity() throws Exception {
+    final RSAPublicKey publicKey = Rsa.from(KEY_BLOB2);
+    final byte[] bytes = new byte[]{1, 2, 3, 4};
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new AgentOutput(expected).signRequest(publicKey, bytes);
+
+    final ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    final PreparedIdentity identity =
+        PreparedIdentity.of(DefaultIdentity.from(KEY_BLOB2, COMMENT2));
+    new AgentOutput(actual).signRequest(identity, bytes);
+
+    assertThat(actual.toByteArray(), equalTo(expected.toByteArray()));
+  }
+
+  @Test
+  public void testSignRequestWithChannel() throws Exception {
+    final byte[] bytes = new byte[]{1, 2, 3, 4};
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new AgentOutput(expected).signRequest(Rsa.from(KEY_BLOB2), bytes);
+
+    // Accept a few bytes per write to check that partial writes are resumed.
+    final ChunkedChannel channel = new ChunkedChannel(7);
+    final AgentOutput agentOut = new AgentOutput(channel);
+    final Identity identity = PreparedIdentity.of(DefaultIdentity.from(KEY_BLOB2, COMMENT2));
+    agentOut.signRequest(identity, bytes);
+    assertThat(channel.written.toByteArray(), equalTo(expected.toByteArray()));
+
+    // The message buffer is reused for the next request.
+    channel.written.reset();
+    agentOut.signRequest(identity, bytes);
+    assertThat(channel.written.toByteArray(), equalTo(expected.toByteArray()));
+  }
+
+  @Test
+  public void testSignRequestIsOneWrite() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final byte[] small = new byte[] {1, 2, 3, 4};
+    final byte[] large = new byte[100 * 1024];
+    new Random(0).nextBytes(large);
+
+    final ChunkedChannel channel = new ChunkedChannel(Integer.MAX_VALUE);
+    final AgentOutput agentOut = new AgentOutput(channel);
+    for (final byte[] data : new byte[][] {small, large, small}) {
+      final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+      new AgentOutput(expected).signRequest(identity, data);
+      channel.written.reset();
+      channel.writes = 0;
+
+      agentOut.signRequest(identity, data);
+      assertThat(channel.written.toByteArray(), equalTo(expected.toByteArray()));
+      assertThat(channel.writes, equalTo(1));
+    }
+  }
+
+  @Test
+  public void testSignRequestWithFlags() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final byte[] bytes = new byte[]{1, 2, 3, 4};
+    final ByteArrayOutputStream unflagged = new ByteArrayOutputStream();
+    new AgentOutput(unflagged).signRequest(identity, bytes);
+    final byte[] expected = unflagged.toByteArray();
+    expected[expected.length - 1] = 4;
+
+    final ChunkedChannel channel = new ChunkedChannel(7);
+    final AgentOutput agentOut = new AgentOutput(channel);
+    agentOut.signRequest(identity, bytes, RsaCodec.SSH_AGENT_RSA_SHA2_512);
+    assertThat(channel.written.toByteArray(), equalTo(expected));
+
+    // The flags buffer is reused, and cleared for requests without flags.
+    channel.written.reset();
+    agentOut.signRequest(identity, bytes);
+    assertThat(channel.written.toByteArray(), equalTo(unflagged.toByteArray()));
+
+    final ByteBuffer message =
+        AgentOutput.signRequestMessage(identity, bytes, RsaCodec.SSH_AGENT_RSA_SHA2_512);
+    assertThat(Arrays.copyOfRange(message.array(), message.position(), message.limit()),
+               equalTo(expected));
+  }
+
+  @Test
+  public void testSignRequestFromChannel() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final byte[] data = new byte[200 * 1024];
+    new Random(0).nextBytes(data);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new AgentOutput(expected).signRequest(identity, data);
+
+    final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    new AgentOutput(written).signRequest(
+        identity, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+    assertThat(written.toByteArray(), equalTo(expected.toByteArray()));
+
+    final ChunkedChannel channel = new ChunkedChannel(1000);
+    new AgentOutput(channel).signRequest(
+        identity, Channels.newChannel(new ByteArrayInputStream(data)), data.length);
+    assertThat(channel.written.toByteArray(), equalTo(expected.toByteArray()));
+  }
+
+  @Test
+  public void testSignRequestFromFileChannel() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final byte[] data = new byte[200 * 1024];
+    new Random(0).nextBytes(data);
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new AgentOutput(expected).signRequest(identity, Arrays.copyOfRange(data, 10, data.length));
+
+    final Path path = Files.createTempFile("ssh-agent-proxy", ".bin");
+    try (final FileChannel file = FileChannel.open(path, StandardOpenOption.READ,
+                                                   StandardOpenOption.WRITE)) {
+      file.write(ByteBuffer.wrap(data));
+      file.position(10);
+      final ChunkedChannel channel = new ChunkedChannel(1000);
+      new AgentOutput(channel).signRequest(identity, file, data.length - 10);
+      assertThat(channel.written.toByteArray(), equalTo(expected.toByteArray()));
+      assertThat(file.position(), equalTo((long) data.length));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test(expected = EOFException.class)
+  public void testSignRequestFromShortChannel() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    new AgentOutput(new ByteArrayOutputStream()).signRequest(
+        identity, Channels.newChannel(new ByteArrayInputStream(DATA)), DATA.length + 1);
+  }
+
+  private static class ChunkedChannel implements GatheringByteChannel {
+
+    private final int chunkSize;
+    private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+    private int writes;
+
+    ChunkedChannel(final int chunkSize) {
+      this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs, final int offset, final int length) {
+      writes++;
+      int count = 0;
+      for (int i = offset; i < offset + length && count < chunkSize; i++) {
+        final ByteBuffer src = srcs[i];
+        while (src.hasRemaining() && count < chunkSize) {
+          written.write(src.get());
+          count++;
+        }
+      }
+      return count;
+    }
+
+    @Override
+    public long write(final ByteBuffer[] srcs) {
+      return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public int write(final ByteBuffer src) {
+      return (int) write(new ByteBuffer[] {src});
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
   }
 
 }
@@ -38,14 +38,34 @@ package com.spotify.sshagentproxy;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import org.junit.Test;
+import org.mockito.InOrder;
 
 public class AgentProxiesTest extends TestConstants {
 
@@ -80,4 +100,198 @@ public class AgentProxiesTest extends TestConstants {
 
     assertArrayEquals(signed, SIGN_RESPONSE_DATA);
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testSignWithAlgorithm() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final AgentSignature expected = new AgentSignature("rsa-sha2-256", SIGN_RESPONSE_DATA);
+    when(in.readSignature()).thenReturn(expected);
+
+    try (final AgentProxy proxy = AgentProxies.withCustomInputOutput(in, out)) {
+      assertThat(proxy.sign(identity, DATA, "rsa-sha2-256"), equalTo(expected));
+    }
+    verify(out).signRequest(identity, DATA, RsaCodec.SSH_AGENT_RSA_SHA2_256);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSignWithUnsupportedAlgorithm() throws Exception {
+    try (final AgentProxy proxy = AgentProxies.withCustomInputOutput(in, out)) {
+      proxy.sign(DefaultIdentity.from(KEY_BLOB2, COMMENT2), DATA, "ssh-ed25519");
+    }
+  }
+
+  @Test
+  public void testSignChannel() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final ReadableByteChannel src = Channels.newChannel(new ByteArrayInputStream(DATA));
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+
+    final byte[] signed;
+    try (final AgentProxy proxy = AgentProxies.withCustomInputOutput(in, out)) {
+      signed = proxy.sign(identity, src, DATA.length);
+    }
+
+    verify(out).signRequest(identity, src, DATA.length);
+    assertArrayEquals(signed, SIGN_RESPONSE_DATA);
+  }
+
+  @Test
+  public void testSignPathStreamsFile() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final byte[] data = new byte[300 * 1024];
+    new Random(0).nextBytes(data);
+    final Path path = Files.createTempFile("ssh-agent-proxy", ".bin");
+    Files.write(path, data);
+
+    final ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    new AgentOutput(expected).signRequest(identity, data);
+
+    try (final FakeAgent agent = new FakeAgent();
+         final AgentProxy proxy = new AgentProxies.DefaultAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      assertArrayEquals(proxy.sign(identity, path), SIGN_RESPONSE_DATA);
+      final byte[] message = expected.toByteArray();
+      assertArrayEquals(agent.lastRequest(), Arrays.copyOfRange(message, 4, message.length));
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  public void testSignDeadlineClosesConnection() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try (final FakeAgent agent = new FakeAgent()) {
+      agent.setReplyDelay(10, TimeUnit.SECONDS);
+      final AgentProxies.DefaultAgentProxy proxy = new AgentProxies.DefaultAgentProxy(
+          new AgentInput(Channels.newInputStream(agent.clientChannel())),
+          new AgentOutput(agent.clientChannel()));
+
+      final long start = System.nanoTime();
+      try {
+        proxy.sign(identity, DATA, 100, TimeUnit.MILLISECONDS);
+        fail("Expected SocketTimeoutException");
+      } catch (SocketTimeoutException expected) {
+        assertThat(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5), equalTo(true));
+      }
+      assertFalse(proxy.isOpen());
+    }
+  }
+
+  @Test
+  public void testListWithinDeadline() throws Exception {
+    try (final FakeAgent agent = new FakeAgent();
+         final AgentProxy proxy = new AgentProxies.DefaultAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      assertThat(proxy.list(10, TimeUnit.SECONDS).size(), equalTo(2));
+      assertThat(proxy.list().size(), equalTo(2));
+    }
+  }
+
+  @Test
+  public void testSignAllWritesBeforeReading() throws Exception {
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final List<byte[]> data = Collections.nCopies(5, DATA);
+
+    final AgentProxy proxy = new AgentProxies.DefaultAgentProxy(in, out);
+    final List<byte[]> signatures = proxy.signAll(identity, data);
+
+    assertThat(signatures.size(), equalTo(5));
+    for (final byte[] signature : signatures) {
+      assertArrayEquals(SIGN_RESPONSE_DATA, signature);
+    }
+    final InOrder inOrder = inOrder(out, in);
+    inOrder.verify(out, times(5)).signRequest(any(PreparedIdentity.class), eq(DATA));
+    inOrder.verify(in, times(5)).readSignResponse();
+  }
+
+  @Test
+  public void testSignAllOverSocket() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    final List<byte[]> data = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      data.add(("record " + i).getBytes());
+    }
+
+    try (final FakeAgent agent = new FakeAgent();
+         final AgentProxy proxy = new AgentProxies.DefaultAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      final List<byte[]> signed = Lists.newArrayList();
+      proxy.signAll(identity, data.iterator(), new SignatureConsumer() {
+        @Override
+        public void accept(final byte[] payload, final byte[] signature) {
+          assertArrayEquals(SIGN_RESPONSE_DATA, signature);
+          signed.add(payload);
+        }
+      });
+
+      assertThat(signed, equalTo(data));
+      assertThat(agent.requests(), equalTo(100));
+    }
+  }
+
+  @Test
+  public void testSignAllFailureKeepsConnection() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try (final FakeAgent agent = new FakeAgent();
+         final AgentProxy proxy = new AgentProxies.DefaultAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      agent.setFailSignRequests(true);
+      try {
+        proxy.signAll(identity, Collections.nCopies(10, DATA));
+        fail("Expected AgentFailureException");
+      } catch (AgentFailureException expected) {
+        // expected
+      }
+
+      // The replies to the other requests were dropped, so the next reply is the right one.
+      assertThat(proxy.list().size(), equalTo(2));
+    }
+  }
+
+  @Test
+  public void testSignAllConsumerFailureKeepsConnection() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try (final FakeAgent agent = new FakeAgent();
+         final AgentProxy proxy = new AgentProxies.DefaultAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      final SignatureConsumer failing = new SignatureConsumer() {
+        @Override
+        public void accept(final byte[] payload, final byte[] signature) throws IOException {
+          throw new IOException("disk full");
+        }
+      };
+      try {
+        proxy.signAll(identity, Collections.nCopies(10, DATA).iterator(), failing);
+        fail("Expected IOException");
+      } catch (IOException e) {
+        assertThat(e.getMessage(), equalTo("disk full"));
+      }
+
+      assertThat(proxy.list().size(), equalTo(2));
+    }
+  }
+
+  @Test
+  public void testSignAllNullPayloadKeepsConnection() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try (final FakeAgent agent = new FakeAgent();
+         final AgentProxy proxy = new AgentProxies.DefaultAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      try {
+        proxy.signAll(identity, Arrays.asList(DATA, DATA, null));
+        fail("Expected NullPointerException");
+      } catch (NullPointerException expected) {
+        // expected
+      }
+
+      assertThat(proxy.list().size(), equalTo(2));
+    }
+  }
+}
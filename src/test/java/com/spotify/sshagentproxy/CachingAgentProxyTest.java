@@ -0,0 +1,195 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingAgentProxyTest extends TestConstants {
+
+  private final AgentProxy delegate = mock(AgentProxy.class);
+  private final Queue<Runnable> refreshes = Lists.newLinkedList();
+  private final Executor executor = new Executor() {
+    @Override
+    public void execute(final Runnable command) {
+      refreshes.add(command);
+    }
+  };
+  private final FakeTicker ticker = new FakeTicker();
+
+  private List<Identity> ids1;
+  private List<Identity> ids2;
+  private CachingAgentProxy proxy;
+
+  @Before
+  public void setUp() throws Exception {
+    ids1 = ImmutableList.of(DefaultIdentity.from(KEY_BLOB1, COMMENT1));
+    ids2 = ImmutableList.of(DefaultIdentity.from(KEY_BLOB1, COMMENT1),
+                            DefaultIdentity.from(KEY_BLOB2, COMMENT2));
+    proxy = new CachingAgentProxy(delegate, 10, TimeUnit.SECONDS, executor, ticker);
+  }
+
+  @Test
+  public void testCachesWithinTtl() throws Exception {
+    when(delegate.list()).thenReturn(ids1);
+
+    assertThat(proxy.list(), equalTo(ids1));
+    ticker.advance(9, TimeUnit.SECONDS);
+    assertThat(proxy.list(), equalTo(ids1));
+
+    verify(delegate, times(1)).list();
+    assertThat(refreshes.size(), equalTo(0));
+  }
+
+  @Test
+  public void testIndexIsRefreshedWithIdentities() throws Exception {
+    when(delegate.list()).thenReturn(ids1, ids2);
+    final IdentityIndex index = proxy.index();
+    assertThat(index.getIdentities(), equalTo(ids1));
+    assertThat(proxy.index(), sameInstance(index));
+    assertTrue(index.getByComment(COMMENT2).isEmpty());
+
+    ticker.advance(11, TimeUnit.SECONDS);
+    proxy.list();
+    refreshes.poll().run();
+    assertThat(proxy.index().getByComment(COMMENT2),
+               equalTo((List<Identity>) ImmutableList.of(ids2.get(1))));
+    verify(delegate, times(2)).list();
+  }
+
+  @Test
+  public void testListDoesNotParseCertificates() throws Exception {
+    final Identity malformed = DefaultIdentity.from(
+        Arrays.copyOf(OpenSshCertificateTest.ED25519_CERT, 100), COMMENT2);
+    final List<Identity> ids = ImmutableList.of(ids1.get(0), malformed);
+    when(delegate.list()).thenReturn(ids);
+
+    assertThat(proxy.list(), equalTo(ids));
+    assertThat(proxy.index().getByComment(COMMENT2),
+               equalTo((List<Identity>) ImmutableList.of(malformed)));
+  }
+
+  @Test
+  public void testServesStaleWhileRefreshing() throws Exception {
+    when(delegate.list()).thenReturn(ids1, ids2);
+    assertThat(proxy.list(), equalTo(ids1));
+
+    ticker.advance(11, TimeUnit.SECONDS);
+    // The refresh hasn't run yet, so the stale list is returned without blocking
+    assertThat(proxy.list(), equalTo(ids1));
+    assertThat(refreshes.size(), equalTo(1));
+
+    refreshes.poll().run();
+    assertThat(proxy.list(), equalTo(ids2));
+    verify(delegate, times(2)).list();
+  }
+
+  @Test
+  public void testFailedRefreshKeepsStaleList() throws Exception {
+    when(delegate.list()).thenReturn(ids1).thenThrow(new IOException("agent gone"));
+    proxy.list();
+
+    ticker.advance(11, TimeUnit.SECONDS);
+    proxy.list();
+    refreshes.poll().run();
+
+    assertThat(proxy.list(), equalTo(ids1));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    when(delegate.list()).thenReturn(ids1, ids2);
+    assertThat(proxy.list(), equalTo(ids1));
+
+    proxy.invalidate();
+    assertThat(proxy.list(), equalTo(ids2));
+    assertThat(refreshes.size(), equalTo(0));
+  }
+
+  @Test
+  public void testInitialLoadFailure() throws Exception {
+    when(delegate.list()).thenThrow(new IOException("agent gone")).thenReturn(ids1);
+
+    try {
+      proxy.list();
+      fail("Expected IOException");
+    } catch (IOException expected) {
+      assertThat(expected.getMessage(), equalTo("agent gone"));
+    }
+    assertThat(proxy.list(), equalTo(ids1));
+  }
+
+  @Test
+  public void testSignIsForwarded() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    when(delegate.sign(identity, DATA)).thenReturn(SIGN_RESPONSE_DATA);
+
+    assertThat(proxy.sign(identity, DATA), equalTo(SIGN_RESPONSE_DATA));
+    proxy.close();
+    verify(delegate).close();
+  }
+
+  @Test
+  public void testListWithTimeout() throws Exception {
+    when(delegate.list(1, TimeUnit.SECONDS)).thenReturn(ids1);
+
+    assertThat(proxy.list(1, TimeUnit.SECONDS), equalTo(ids1));
+    assertThat(proxy.list(1, TimeUnit.SECONDS), equalTo(ids1));
+    assertThat(proxy.list(), equalTo(ids1));
+    verify(delegate, times(1)).list(1, TimeUnit.SECONDS);
+    verify(delegate, never()).list();
+  }
+}
@@ -0,0 +1,223 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class CoalescingAgentProxyTest extends TestConstants {
+
+  private final AgentProxy delegate = mock(AgentProxy.class);
+  private final CoalescingAgentProxy proxy = new CoalescingAgentProxy(delegate);
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private final CountDownLatch signing = new CountDownLatch(1);
+  private final CountDownLatch reply = new CountDownLatch(1);
+
+  private Identity identity;
+
+  @Before
+  public void setUp() throws Exception {
+    identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Make the delegate block in sign until {@link #reply} is counted down, then return
+   * {@code result} or throw it.
+   */
+  private void signBlocking(final Object result) throws IOException {
+    doAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) throws Throwable {
+        signing.countDown();
+        Uninterruptibles.awaitUninterruptibly(reply);
+        if (result instanceof Throwable) {
+          throw (Throwable) result;
+        }
+        return (byte[]) result;
+      }
+    }).when(delegate).sign(any(Identity.class), any(byte[].class));
+  }
+
+  private Future<byte[]> signAsync(final byte[] data) {
+    return executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return proxy.sign(identity, data);
+      }
+    });
+  }
+
+  /**
+   * Wait until one thread is signing in the delegate and the others have had time to find its
+   * request in flight.
+   */
+  private void awaitWaiters() throws InterruptedException {
+    signing.await(10, TimeUnit.SECONDS);
+    Thread.sleep(200);
+  }
+
+  @Test
+  public void testConcurrentIdenticalCallsShareRequest() throws Exception {
+    signBlocking(SIGN_RESPONSE_DATA);
+
+    final List<Future<byte[]>> futures = Lists.newArrayList();
+    for (int i = 0; i < 5; i++) {
+      futures.add(signAsync(DATA.clone()));
+    }
+    awaitWaiters();
+    assertThat(proxy.inFlight(), equalTo(1));
+    reply.countDown();
+
+    for (final Future<byte[]> future : futures) {
+      assertArrayEquals(SIGN_RESPONSE_DATA, future.get(10, TimeUnit.SECONDS));
+    }
+    verify(delegate, times(1)).sign(any(Identity.class), any(byte[].class));
+    assertThat(proxy.inFlight(), equalTo(0));
+  }
+
+  @Test
+  public void testFailureIsShared() throws Exception {
+    signBlocking(new AgentFailureException(5));
+
+    final Future<byte[]> first = signAsync(DATA);
+    final Future<byte[]> second = signAsync(DATA);
+    awaitWaiters();
+    reply.countDown();
+
+    for (final Future<byte[]> future : Lists.newArrayList(first, second)) {
+      try {
+        future.get(10, TimeUnit.SECONDS);
+        fail("Expected AgentFailureException");
+      } catch (ExecutionException e) {
+        assertThat(e.getCause() instanceof AgentFailureException, equalTo(true));
+      }
+    }
+    verify(delegate, times(1)).sign(any(Identity.class), any(byte[].class));
+  }
+
+  @Test
+  public void testSequentialCallsAreNotShared() throws Exception {
+    reply.countDown();
+    signBlocking(SIGN_RESPONSE_DATA);
+
+    proxy.sign(identity, DATA);
+    proxy.sign(identity, DATA);
+
+    verify(delegate, times(2)).sign(identity, DATA);
+  }
+
+  @Test
+  public void testWaiterTimeoutDoesNotCancelRequest() throws Exception {
+    signBlocking(SIGN_RESPONSE_DATA);
+
+    final Future<byte[]> first = signAsync(DATA);
+    signing.await(10, TimeUnit.SECONDS);
+    try {
+      proxy.sign(identity, DATA, 50, TimeUnit.MILLISECONDS);
+      fail("Expected SocketTimeoutException");
+    } catch (SocketTimeoutException expected) {
+      // expected
+    }
+    reply.countDown();
+
+    assertArrayEquals(SIGN_RESPONSE_DATA, first.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testUntimedCallDoesNotShareTimedRequest() throws Exception {
+    doAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) throws Throwable {
+        signing.countDown();
+        Uninterruptibles.awaitUninterruptibly(reply);
+        throw new SocketTimeoutException();
+      }
+    }).when(delegate).sign(any(Identity.class), any(byte[].class), anyLong(),
+                           any(TimeUnit.class));
+    when(delegate.sign(identity, DATA)).thenReturn(SIGN_RESPONSE_DATA);
+
+    final Future<byte[]> timed = executor.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws Exception {
+        return proxy.sign(identity, DATA, 10, TimeUnit.SECONDS);
+      }
+    });
+    signing.await(10, TimeUnit.SECONDS);
+    assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+    reply.countDown();
+
+    try {
+      timed.get(10, TimeUnit.SECONDS);
+      fail("Expected SocketTimeoutException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof SocketTimeoutException, equalTo(true));
+    }
+    verify(delegate, times(1)).sign(identity, DATA);
+  }
+}
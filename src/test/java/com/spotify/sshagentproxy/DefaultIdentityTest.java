@@ -0,0 +1,106 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.base.Charsets;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class DefaultIdentityTest extends TestConstants {
+
+  @Test
+  public void testLazyDecoding() throws Exception {
+    final Identity identity =
+        DefaultIdentity.fromCommentBytes(KEY_BLOB2, COMMENT2.getBytes(Charsets.UTF_8));
+    assertThat(identity.getKeyFormat(), equalTo("ssh-rsa"));
+    assertThat(identity.getComment(), equalTo(COMMENT2));
+
+    final RSAPublicKey publicKey = (RSAPublicKey) identity.getPublicKey();
+    assertThat(publicKey, equalTo(Rsa.from(PUBLIC_KEY2.getBytes())));
+    assertThat(identity.getPublicKey(), sameInstance((Object) publicKey));
+  }
+
+  @Test
+  public void testEquals() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    assertThat(identity, equalTo(DefaultIdentity.fromCommentBytes(
+        KEY_BLOB2, COMMENT2.getBytes(Charsets.UTF_8))));
+    assertThat(identity.hashCode(), equalTo(
+        DefaultIdentity.fromCommentBytes(KEY_BLOB2, COMMENT2.getBytes(Charsets.UTF_8)).hashCode()));
+    assertThat(identity, not(equalTo(DefaultIdentity.from(KEY_BLOB1, COMMENT2))));
+    assertThat(identity, not(equalTo(DefaultIdentity.from(KEY_BLOB2, COMMENT1))));
+  }
+
+  @Test
+  public void testNullComment() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, null);
+    assertThat(identity.getComment(), nullValue());
+    assertThat(identity, equalTo(DefaultIdentity.from(KEY_BLOB2, null)));
+    assertThat(identity.hashCode(), equalTo(DefaultIdentity.from(KEY_BLOB2, null).hashCode()));
+    assertThat(identity, not(equalTo(DefaultIdentity.from(KEY_BLOB2, COMMENT2))));
+    assertThat(identity.toString(), containsString("comment=null"));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testUnsupportedKeyFormat() throws Exception {
+    DefaultIdentity.from(new byte[] {0, 0, 0, 7, 115, 115, 104, 45, 100, 115, 115}, COMMENT1);
+  }
+
+  @Test
+  public void testEd25519() throws Exception {
+    final Identity identity = DefaultIdentity.from(ED25519_KEY_BLOB, COMMENT1);
+    assertThat(identity.getKeyFormat(), equalTo("ssh-ed25519"));
+
+    assumeTrue(isEd25519Available());
+    assertThat(Ed25519Codec.encode(identity.getPublicKey()), equalTo(ED25519_KEY_BLOB));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void testInvalidKeyFailsOnFirstUse() throws Exception {
+    final Identity identity = DefaultIdentity.from(Arrays.copyOf(KEY_BLOB2, 30), COMMENT2);
+    identity.getPublicKey();
+  }
+}
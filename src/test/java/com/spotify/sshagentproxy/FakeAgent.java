@@ -0,0 +1,224 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jnr.unixsocket.UnixSocketChannel;
+
+/**
+ * A minimal ssh-agent on one end of a socket pair. It answers SSH2_AGENTC_REQUEST_IDENTITIES
+ * with the keys in {@link TestConstants}, SSH2_AGENTC_SIGN_REQUEST with
+ * {@link TestConstants#SIGN_RESPONSE} and everything else with SSH_AGENT_FAILURE.
+ */
+class FakeAgent implements Closeable {
+
+  static final byte[] IDENTITIES_ANSWER;
+  static final byte[] FAILURE = new byte[] {0, 0, 0, 1, 5};
+
+  static {
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(body);
+    try {
+      out.writeByte(12);
+      out.writeInt(2);
+      out.writeInt(TestConstants.KEY_BLOB1.length);
+      out.write(TestConstants.KEY_BLOB1);
+      out.writeInt(TestConstants.COMMENT1.length());
+      out.write(TestConstants.COMMENT1.getBytes());
+      out.writeInt(TestConstants.KEY_BLOB2.length);
+      out.write(TestConstants.KEY_BLOB2);
+      out.writeInt(TestConstants.COMMENT2.length());
+      out.write(TestConstants.COMMENT2.getBytes());
+    } catch (IOException e) {
+      throw Throwables.propagate(e);
+    }
+    IDENTITIES_ANSWER = ByteBuffer.allocate(4 + body.size())
+        .putInt(body.size()).put(body.toByteArray()).array();
+  }
+
+  private final UnixSocketChannel agentChannel;
+  private final UnixSocketChannel clientChannel;
+  private final AtomicInteger requests = new AtomicInteger();
+  private final Thread thread;
+
+  private volatile int chunkSize = Integer.MAX_VALUE;
+  private volatile byte[] lastRequest;
+  private volatile boolean failSignRequests;
+  private volatile long replyDelayMillis;
+  private volatile boolean closed;
+
+  FakeAgent() throws IOException {
+    final UnixSocketChannel[] pair = UnixSocketChannel.pair();
+    this.agentChannel = pair[0];
+    this.clientChannel = pair[1];
+    this.thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        serve();
+      }
+    }, "fake-ssh-agent");
+    this.thread.setDaemon(true);
+    this.thread.start();
+  }
+
+  /**
+   * The client's end of the socket pair.
+   */
+  UnixSocketChannel clientChannel() {
+    return clientChannel;
+  }
+
+  /**
+   * Write replies in chunks of at most this many bytes.
+   */
+  void setChunkSize(final int chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * Answer SSH2_AGENTC_SIGN_REQUEST with SSH_AGENT_FAILURE.
+   */
+  void setFailSignRequests(final boolean failSignRequests) {
+    this.failSignRequests = failSignRequests;
+  }
+
+  /**
+   * Wait this long before replying to each request, like an agent asking for confirmation.
+   */
+  void setReplyDelay(final long replyDelay, final TimeUnit unit) {
+    this.replyDelayMillis = unit.toMillis(replyDelay);
+  }
+
+  /**
+   * Return the number of requests received so far.
+   */
+  int requests() {
+    return requests.get();
+  }
+
+  /**
+   * Return the body of the last request received, without its length prefix.
+   */
+  byte[] lastRequest() {
+    return lastRequest;
+  }
+
+  private void serve() {
+    try {
+      while (true) {
+        final ByteBuffer length = readFully(4);
+        final ByteBuffer body = readFully(length.getInt());
+        lastRequest = body.array();
+        requests.incrementAndGet();
+        if (!delayReply()) {
+          return;
+        }
+        switch (body.get()) {
+          case 11:
+            write(IDENTITIES_ANSWER);
+            break;
+          case 13:
+            write(failSignRequests ? FAILURE : TestConstants.SIGN_RESPONSE);
+            break;
+          default:
+            write(FAILURE);
+        }
+      }
+    } catch (IOException e) {
+      // The client closed the connection
+    }
+  }
+
+  /**
+   * Wait for the reply delay.
+   * @return false if the agent was closed while waiting.
+   */
+  private boolean delayReply() {
+    try {
+      Thread.sleep(replyDelayMillis);
+    } catch (InterruptedException e) {
+      return false;
+    }
+    return !closed;
+  }
+
+  private ByteBuffer readFully(final int numBytes) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(numBytes);
+    while (buffer.hasRemaining()) {
+      if (agentChannel.read(buffer) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  private void write(final byte[] bytes) throws IOException {
+    for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+      final ByteBuffer chunk =
+          ByteBuffer.wrap(bytes, offset, Math.min(chunkSize, bytes.length - offset));
+      while (chunk.hasRemaining()) {
+        agentChannel.write(chunk);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // Stop serving before closing the socket, or a late read or write could use the same socket
+    // number after it has been reused by another FakeAgent.
+    closed = true;
+    thread.interrupt();
+    try {
+      agentChannel.shutdownInput();
+      agentChannel.shutdownOutput();
+    } catch (IOException e) {
+      // The client already closed the connection
+    }
+    Uninterruptibles.joinUninterruptibly(thread, 10, TimeUnit.SECONDS);
+    agentChannel.close();
+  }
+}
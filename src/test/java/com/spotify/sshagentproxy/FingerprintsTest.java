@@ -0,0 +1,76 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class FingerprintsTest extends TestConstants {
+
+  // ssh-keygen -l [-E md5] -f
+  private static final String SHA256_KEY2 = "SHA256:uabtYPkdiOSqczz2Ku7NE4eYMnJgNFGsBemAxrE7tOA";
+  private static final String MD5_KEY2 = "MD5:dd:b4:a0:d3:9d:f7:91:07:a6:5c:0c:78:c2:00:80:c4";
+  private static final String SHA256_ED25519 = "SHA256:UjDzi617Rw+DQoAO0jGD3tXhwkNTMRPnzDck+R9Wmrw";
+  private static final String MD5_ED25519 = "MD5:4b:bc:c4:4f:4b:97:3c:63:68:8a:6d:24:c7:3f:2a:17";
+
+  @Test
+  public void testKeyBlob() {
+    assertThat(Fingerprints.sha256(KEY_BLOB2), equalTo(SHA256_KEY2));
+    assertThat(Fingerprints.md5(KEY_BLOB2), equalTo(MD5_KEY2));
+  }
+
+  @Test
+  public void testIdentity() throws Exception {
+    final DefaultIdentity identity = (DefaultIdentity) DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    assertThat(identity.getFingerprint(), equalTo(SHA256_KEY2));
+    assertThat(identity.getMd5Fingerprint(), equalTo(MD5_KEY2));
+    assertThat(Fingerprints.sha256(identity), equalTo(SHA256_KEY2));
+    assertThat(Fingerprints.md5(PreparedIdentity.of(identity)), equalTo(MD5_KEY2));
+  }
+
+  @Test
+  public void testCertificateHasKeyFingerprint() throws Exception {
+    final Identity certificate =
+        DefaultIdentity.from(OpenSshCertificateTest.ED25519_CERT, "u1");
+    assertThat(Fingerprints.sha256(certificate), equalTo(SHA256_ED25519));
+    assertThat(Fingerprints.md5(PreparedIdentity.of(certificate)), equalTo(MD5_ED25519));
+    assertThat(Fingerprints.sha256(OpenSshCertificateTest.ED25519_KEY),
+               equalTo(SHA256_ED25519));
+  }
+}
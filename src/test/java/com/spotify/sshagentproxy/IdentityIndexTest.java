@@ -0,0 +1,124 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class IdentityIndexTest extends TestConstants {
+
+  private Identity identity1;
+  private Identity identity2;
+  private Identity key;
+  private Identity certificate;
+  private IdentityIndex index;
+
+  @Before
+  public void setUp() throws Exception {
+    identity1 = DefaultIdentity.from(KEY_BLOB1, COMMENT1);
+    identity2 = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    key = DefaultIdentity.from(OpenSshCertificateTest.ED25519_KEY, "u1");
+    certificate = DefaultIdentity.from(OpenSshCertificateTest.ED25519_CERT, "u1");
+    index = IdentityIndex.of(ImmutableList.of(identity1, identity2, key, certificate));
+  }
+
+  @Test
+  public void testGetIdentities() {
+    assertThat(index.getIdentities(),
+               equalTo((List<Identity>) ImmutableList.of(identity1, identity2, key, certificate)));
+  }
+
+  @Test
+  public void testGetByFingerprint() {
+    assertThat(index.getByFingerprint(Fingerprints.sha256(KEY_BLOB2)),
+               equalTo((List<Identity>) ImmutableList.of(identity2)));
+    assertThat(index.getByFingerprint(Fingerprints.md5(KEY_BLOB1)),
+               equalTo((List<Identity>) ImmutableList.of(identity1)));
+    // A key and its certificate share fingerprints.
+    assertThat(index.getByFingerprint(Fingerprints.sha256(OpenSshCertificateTest.ED25519_KEY)),
+               equalTo((List<Identity>) ImmutableList.of(key, certificate)));
+    assertTrue(index.getByFingerprint("SHA256:unknown").isEmpty());
+  }
+
+  @Test
+  public void testGetByKeyBlob() {
+    assertThat(index.getByKeyBlob(KEY_BLOB1.clone()), sameInstance(identity1));
+    assertThat(index.getByKeyBlob(OpenSshCertificateTest.ED25519_CERT),
+               sameInstance(certificate));
+    assertThat(index.getByKeyBlob(new byte[] {0, 0, 0, 0}), nullValue());
+  }
+
+  @Test
+  public void testGetByComment() {
+    assertThat(index.getByComment(COMMENT2),
+               equalTo((List<Identity>) ImmutableList.of(identity2)));
+    assertThat(index.getByComment("u1"),
+               equalTo((List<Identity>) ImmutableList.of(key, certificate)));
+    assertTrue(index.getByComment("unknown").isEmpty());
+  }
+
+  @Test
+  public void testDuplicateKeyBlobs() throws Exception {
+    final Identity duplicate = DefaultIdentity.from(KEY_BLOB1, COMMENT2);
+    final IdentityIndex duplicates = IdentityIndex.of(ImmutableList.of(identity1, duplicate));
+    assertThat(duplicates.getByKeyBlob(KEY_BLOB1), sameInstance(identity1));
+    assertThat(duplicates.getByComment(COMMENT2),
+               equalTo((List<Identity>) ImmutableList.of(duplicate)));
+  }
+
+  @Test
+  public void testMalformedCertificate() throws Exception {
+    final byte[] keyBlob = Arrays.copyOf(OpenSshCertificateTest.ED25519_CERT, 100);
+    final Identity malformed = DefaultIdentity.from(keyBlob, "malformed");
+    final IdentityIndex withMalformed = IdentityIndex.of(ImmutableList.of(identity1, malformed));
+
+    assertThat(withMalformed.getByKeyBlob(keyBlob), sameInstance(malformed));
+    assertThat(withMalformed.getByComment("malformed"),
+               equalTo((List<Identity>) ImmutableList.of(malformed)));
+    assertThat(withMalformed.getByFingerprint(Fingerprints.sha256(KEY_BLOB1)),
+               equalTo((List<Identity>) ImmutableList.of(identity1)));
+  }
+}
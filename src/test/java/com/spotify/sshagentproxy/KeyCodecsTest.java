@@ -0,0 +1,226 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSet;
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import org.junit.Test;
+
+public class KeyCodecsTest extends TestConstants {
+
+  @Test
+  public void testBuiltInKeyFormats() {
+    assertThat(KeyCodecs.supportedKeyFormats(), hasItems(
+        "ssh-rsa", "ssh-ed25519", "ecdsa-sha2-nistp256", "ecdsa-sha2-nistp384",
+        "ecdsa-sha2-nistp521"));
+    assertFalse(KeyCodecs.isSupported("ssh-dss"));
+    assertThat(KeyCodecs.get("ssh-dss"), nullValue());
+    assertThat(KeyCodecs.forSignatureFormat("ssh-ed25519"),
+               sameInstance(KeyCodecs.get("ssh-ed25519")));
+  }
+
+  @Test
+  public void testRsa() throws Exception {
+    final KeyPair keyPair = generate("RSA", null);
+    final byte[] keyBlob = Rsa.encode((RSAPublicKey) keyPair.getPublic());
+    assertRoundTrip("ssh-rsa", keyBlob, keyPair.getPublic());
+
+    final Signature signer = Signature.getInstance("SHA1withRSA");
+    signer.initSign(keyPair.getPrivate());
+    signer.update(DATA);
+    final byte[] signature = signer.sign();
+    assertVerifies(keyPair.getPublic(), "ssh-rsa", signature);
+    assertFalse(new RsaCodec().verify(keyPair.getPublic(), "ssh-ed25519", DATA, signature));
+
+    final Signature sha512Signer = Signature.getInstance("SHA512withRSA");
+    sha512Signer.initSign(keyPair.getPrivate());
+    sha512Signer.update(DATA);
+    assertVerifies(keyPair.getPublic(), "rsa-sha2-512", sha512Signer.sign());
+  }
+
+  @Test
+  public void testSignFlags() {
+    final KeyCodec rsa = KeyCodecs.get("ssh-rsa");
+    assertThat(rsa.getSignFlags("ssh-rsa"), equalTo(0));
+    assertThat(rsa.getSignFlags("rsa-sha2-256"), equalTo(2));
+    assertThat(rsa.getSignFlags("rsa-sha2-512"), equalTo(4));
+    assertThat(KeyCodecs.forSignatureFormat("rsa-sha2-512"), sameInstance(rsa));
+    assertThat(KeyCodecs.get("ssh-ed25519").getSignFlags("ssh-ed25519"), equalTo(0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnsupportedSignatureAlgorithm() {
+    KeyCodecs.get("ssh-ed25519").getSignFlags("rsa-sha2-512");
+  }
+
+  @Test
+  public void testEd25519() throws Exception {
+    assertThat(ED25519_KEY_BLOB.length, equalTo(4 + 11 + 4 + 32));
+    assertThat(DefaultIdentity.from(ED25519_KEY_BLOB, COMMENT1).getKeyFormat(),
+               equalTo("ssh-ed25519"));
+
+    assumeTrue(isEd25519Available());
+    final PublicKey publicKey = KeyCodecs.get("ssh-ed25519").decodePublicKey(ED25519_KEY_BLOB);
+    assertThat(Ed25519Codec.encode(publicKey), equalTo(ED25519_KEY_BLOB));
+    assertRoundTrip("ssh-ed25519", ED25519_KEY_BLOB, publicKey);
+
+    final KeyCodec codec = KeyCodecs.forPublicKey(publicKey);
+    assertTrue(codec.verify(publicKey, "ssh-ed25519", ED25519_MESSAGE, ED25519_SIGNATURE));
+    assertFalse(codec.verify(publicKey, "ssh-ed25519", DATA, ED25519_SIGNATURE));
+  }
+
+  @Test
+  public void testEcdsa() throws Exception {
+    assertEcdsa(EcdsaCodec.NISTP256, "secp256r1", "SHA256withECDSA");
+    assertEcdsa(EcdsaCodec.NISTP384, "secp384r1", "SHA384withECDSA");
+    assertEcdsa(EcdsaCodec.NISTP521, "secp521r1", "SHA512withECDSA");
+  }
+
+  @Test
+  public void testEcdsaCurveMismatch() throws Exception {
+    final KeyPair keyPair = generate("EC", new ECGenParameterSpec("secp384r1"));
+    assertFalse(EcdsaCodec.NISTP256.supports(keyPair.getPublic()));
+    try {
+      EcdsaCodec.NISTP256.decodePublicKey(
+          EcdsaCodec.NISTP384.encode((ECPublicKey) keyPair.getPublic()));
+      throw new AssertionError("Decoded a nistp384 key as nistp256.");
+    } catch (InvalidKeyException expected) {
+      // expected
+    }
+  }
+
+  @Test(expected = InvalidKeyException.class)
+  public void testTruncatedEd25519Key() throws Exception {
+    KeyCodecs.get("ssh-ed25519").decodePublicKey(
+        Arrays.copyOf(ED25519_KEY_BLOB, ED25519_KEY_BLOB.length - 1));
+  }
+
+  @Test
+  public void testRegister() throws Exception {
+    final KeyCodec codec = mock(KeyCodec.class);
+    when(codec.getKeyFormat()).thenReturn("test-key@example.com");
+    when(codec.getSignatureFormats()).thenReturn(ImmutableSet.of("test-sig@example.com"));
+    KeyCodecs.register(codec);
+
+    assertThat(KeyCodecs.get("test-key@example.com"), sameInstance(codec));
+    assertThat(KeyCodecs.forSignatureFormat("test-sig@example.com"), sameInstance(codec));
+    final byte[] keyBlob = new SshEncoder().writeUtf8("test-key@example.com").toByteArray();
+    assertThat(DefaultIdentity.from(keyBlob, COMMENT1).getKeyFormat(),
+               equalTo("test-key@example.com"));
+  }
+
+  @Test
+  public void testToDer() {
+    // A high bit set in r needs a leading zero byte to stay positive.
+    assertThat(EcdsaCodec.toDer(BigInteger.valueOf(0x80), BigInteger.ONE),
+               equalTo(new byte[] {0x30, 7, 2, 2, 0, (byte) 0x80, 2, 1, 1}));
+  }
+
+  private static void assertEcdsa(final EcdsaCodec codec, final String curve,
+                                  final String algorithm) throws Exception {
+    final KeyPair keyPair = generate("EC", new ECGenParameterSpec(curve));
+    assertRoundTrip(codec.getKeyFormat(), codec.encode((ECPublicKey) keyPair.getPublic()),
+                    keyPair.getPublic());
+
+    final Signature signer = Signature.getInstance(algorithm);
+    signer.initSign(keyPair.getPrivate());
+    signer.update(DATA);
+    assertVerifies(keyPair.getPublic(), codec.getKeyFormat(), fromDer(signer.sign()));
+  }
+
+  private static void assertRoundTrip(final String keyFormat, final byte[] keyBlob,
+                                      final PublicKey publicKey) throws Exception {
+    final Identity identity = DefaultIdentity.from(keyBlob, COMMENT1);
+    assertThat(identity.getKeyFormat(), equalTo(keyFormat));
+    assertThat(identity.getPublicKey(), equalTo(publicKey));
+    assertThat(KeyCodecs.forPublicKey(publicKey), sameInstance(KeyCodecs.get(keyFormat)));
+  }
+
+  private static void assertVerifies(final PublicKey publicKey, final String algorithm,
+                                     final byte[] signature) throws Exception {
+    final KeyCodec codec = KeyCodecs.forPublicKey(publicKey);
+    assertTrue(codec.verify(publicKey, algorithm, DATA, signature));
+    assertFalse(codec.verify(publicKey, algorithm, SIGN_RESPONSE_DATA, signature));
+  }
+
+  private static KeyPair generate(final String algorithm, final ECGenParameterSpec spec)
+      throws Exception {
+    final KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+    if (spec != null) {
+      generator.initialize(spec);
+    } else if (algorithm.equals("RSA")) {
+      generator.initialize(2048);
+    }
+    return generator.generateKeyPair();
+  }
+
+  /**
+   * Convert a DER encoded ECDSA signature to the two mpints ssh-agent sends.
+   */
+  private static byte[] fromDer(final byte[] der) {
+    // Skip the SEQUENCE header, whose length takes two bytes for nistp521.
+    int offset = (der[1] & 0x80) != 0 ? 3 : 2;
+    final SshEncoder encoder = new SshEncoder();
+    for (int i = 0; i < 2; i++) {
+      final int length = der[offset + 1];
+      encoder.writeMpint(new BigInteger(Arrays.copyOfRange(der, offset + 2,
+                                                           offset + 2 + length)));
+      offset += 2 + length;
+    }
+    return encoder.toByteArray();
+  }
+}
@@ -0,0 +1,200 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.Lists;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class MerkleSignerTest extends TestConstants {
+
+  private final AgentProxy agentProxy = mock(AgentProxy.class);
+
+  private KeyPair keyPair;
+  private Identity identity;
+
+  @Before
+  public void setUp() throws Exception {
+    final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    keyPair = generator.generateKeyPair();
+    identity = DefaultIdentity.from(Rsa.encode((RSAPublicKey) keyPair.getPublic()), COMMENT1);
+    when(agentProxy.sign(eq(identity), any(byte[].class), eq("rsa-sha2-512"))).thenAnswer(
+        new Answer<AgentSignature>() {
+          @Override
+          public AgentSignature answer(final InvocationOnMock invocation) throws Throwable {
+            final Signature signature = Signature.getInstance("SHA512withRSA");
+            signature.initSign(keyPair.getPrivate());
+            signature.update((byte[]) invocation.getArguments()[1]);
+            return new AgentSignature("rsa-sha2-512", signature.sign());
+          }
+        });
+  }
+
+  @Test
+  public void testSignBatch() throws Exception {
+    final List<byte[]> messages = messages(11);
+    final List<MerkleSignature> signatures = MerkleSigner.sign(agentProxy, identity, messages);
+
+    verify(agentProxy, times(1)).sign(eq(identity), any(byte[].class), eq("rsa-sha2-512"));
+    assertThat(signatures.size(), equalTo(messages.size()));
+    for (int i = 0; i < messages.size(); i++) {
+      assertThat(signatures.get(i).getIndex(), equalTo(i));
+      assertThat(signatures.get(i).getSignatureAlgorithm(), equalTo("rsa-sha2-512"));
+      assertThat(signatures.get(i).getLeafCount(), equalTo(messages.size()));
+      assertTrue(MerkleSigner.verify(keyPair.getPublic(), messages.get(i), signatures.get(i)));
+    }
+  }
+
+  @Test
+  public void testEncodeDecode() throws Exception {
+    final List<byte[]> messages = messages(6);
+    final MerkleSignature signature = MerkleSigner.sign(agentProxy, identity, messages).get(3);
+    final MerkleSignature decoded = MerkleSignature.decode(signature.encode());
+
+    assertThat(decoded.getIndex(), equalTo(3));
+    assertThat(decoded.getLeafCount(), equalTo(6));
+    assertThat(decoded.getRootSignature(), equalTo(signature.getRootSignature()));
+    assertThat(decoded.getSignatureAlgorithm(), equalTo("rsa-sha2-512"));
+    assertThat(decoded.getPath().size(), equalTo(signature.getPath().size()));
+    assertTrue(MerkleSigner.verify(keyPair.getPublic(), messages.get(3), decoded));
+  }
+
+  @Test
+  public void testVerifyRejectsOtherMessage() throws Exception {
+    final List<byte[]> messages = messages(4);
+    final List<MerkleSignature> signatures = MerkleSigner.sign(agentProxy, identity, messages);
+    assertFalse(MerkleSigner.verify(keyPair.getPublic(), messages.get(1), signatures.get(0)));
+    assertFalse(MerkleSigner.verify(keyPair.getPublic(), DATA, signatures.get(0)));
+  }
+
+  @Test
+  public void testVerifyRejectsOtherKey() throws Exception {
+    final List<MerkleSignature> signatures =
+        MerkleSigner.sign(agentProxy, identity, messages(2));
+    final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    assertFalse(MerkleSigner.verify(generator.generateKeyPair().getPublic(), messages(2).get(0),
+                                    signatures.get(0)));
+  }
+
+  @Test
+  public void testVerifyRejectsOtherLeafCount() throws Exception {
+    final List<byte[]> messages = messages(4);
+    final MerkleSignature signature = MerkleSigner.sign(agentProxy, identity, messages).get(0);
+    final MerkleSignature forged = new MerkleSignature(
+        0, 3, signature.getPath(), signature.getSignatureAlgorithm(),
+        signature.getRootSignature());
+    assertFalse(MerkleSigner.verify(keyPair.getPublic(), messages.get(0), forged));
+  }
+
+  @Test
+  public void testVerifyRejectsOtherAlgorithm() throws Exception {
+    final List<byte[]> messages = messages(4);
+    final MerkleSignature signature = MerkleSigner.sign(agentProxy, identity, messages).get(0);
+    final MerkleSignature sha1 = new MerkleSignature(
+        0, 4, signature.getPath(), "ssh-rsa", signature.getRootSignature());
+    assertFalse(MerkleSigner.verify(keyPair.getPublic(), messages.get(0), sha1));
+  }
+
+  @Test
+  public void testEd25519() throws Exception {
+    assumeTrue(isEd25519Available());
+    final KeyPair ed25519 = KeyPairGenerator.getInstance("Ed25519").generateKeyPair();
+    final Identity ed25519Identity =
+        DefaultIdentity.from(Ed25519Codec.encode(ed25519.getPublic()), COMMENT2);
+    when(agentProxy.sign(eq(ed25519Identity), any(byte[].class), eq("ssh-ed25519"))).thenAnswer(
+        new Answer<AgentSignature>() {
+          @Override
+          public AgentSignature answer(final InvocationOnMock invocation) throws Throwable {
+            final Signature signature = Signature.getInstance("Ed25519");
+            signature.initSign(ed25519.getPrivate());
+            signature.update((byte[]) invocation.getArguments()[1]);
+            return new AgentSignature("ssh-ed25519", signature.sign());
+          }
+        });
+
+    final List<byte[]> messages = messages(5);
+    final List<MerkleSignature> signatures =
+        MerkleSigner.sign(agentProxy, ed25519Identity, messages);
+    assertTrue(MerkleSigner.verify(ed25519.getPublic(), messages.get(4), signatures.get(4)));
+    assertFalse(MerkleSigner.verify(ed25519.getPublic(), messages.get(3), signatures.get(4)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeTruncated() throws Exception {
+    final byte[] encoded = MerkleSigner.sign(agentProxy, identity, messages(3)).get(0).encode();
+    MerkleSignature.decode(Arrays.copyOf(encoded, encoded.length - 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeShortPathHash() throws Exception {
+    final MerkleSignature signature = MerkleSigner.sign(agentProxy, identity, messages(2)).get(0);
+    final List<byte[]> path = signature.getPath();
+    path.set(0, Arrays.copyOf(path.get(0), 31));
+    MerkleSignature.decode(new MerkleSignature(
+        0, 2, path, signature.getSignatureAlgorithm(), signature.getRootSignature()).encode());
+  }
+
+  private static List<byte[]> messages(final int count) {
+    final List<byte[]> messages = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      messages.add(("message " + i).getBytes());
+    }
+    return messages;
+  }
+}
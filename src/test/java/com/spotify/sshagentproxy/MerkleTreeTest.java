@@ -0,0 +1,126 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+import com.google.common.collect.Lists;
+import java.util.List;
+import org.junit.Test;
+
+public class MerkleTreeTest {
+
+  @Test
+  public void testPathsLeadToRoot() {
+    for (int size = 1; size <= 17; size++) {
+      final List<byte[]> messages = messages(size);
+      final MerkleTree tree = MerkleTree.build(messages);
+      assertThat(tree.leafCount(), equalTo(size));
+      for (int i = 0; i < size; i++) {
+        assertThat(MerkleTree.rootFromPath(messages.get(i), i, size, tree.path(i)),
+                   equalTo(tree.root()));
+      }
+    }
+  }
+
+  @Test
+  public void testSingleMessage() {
+    final MerkleTree tree = MerkleTree.build(messages(1));
+    assertThat(tree.path(0).size(), equalTo(0));
+    assertThat(tree.root().length, equalTo(32));
+  }
+
+  @Test
+  public void testRootDependsOnOrder() {
+    final List<byte[]> messages = messages(4);
+    final byte[] root = MerkleTree.build(messages).root();
+    messages.add(messages.remove(0));
+    assertThat(MerkleTree.build(messages).root(), not(equalTo(root)));
+  }
+
+  @Test
+  public void testOddNodeIsNotDuplicated() {
+    final List<byte[]> messages = messages(3);
+    final byte[] root = MerkleTree.build(messages).root();
+    messages.add(messages.get(2));
+    assertThat(MerkleTree.build(messages).root(), not(equalTo(root)));
+  }
+
+  @Test
+  public void testTamperedPath() {
+    final List<byte[]> messages = messages(5);
+    final MerkleTree tree = MerkleTree.build(messages);
+    final List<byte[]> path = Lists.newArrayList(tree.path(1));
+    path.get(0)[0] ^= 1;
+    assertThat(MerkleTree.rootFromPath(messages.get(1), 1, 5, path), not(equalTo(tree.root())));
+  }
+
+  @Test
+  public void testWrongIndex() {
+    final List<byte[]> messages = messages(4);
+    final MerkleTree tree = MerkleTree.build(messages);
+    assertThat(MerkleTree.rootFromPath(messages.get(1), 2, 4, tree.path(1)),
+               not(equalTo(tree.root())));
+    assertThat(MerkleTree.rootFromPath(messages.get(1), 4, 4, tree.path(1)), nullValue());
+  }
+
+  @Test
+  public void testMalformedPath() {
+    final List<byte[]> messages = messages(5);
+    final MerkleTree tree = MerkleTree.build(messages);
+    final List<byte[]> path = Lists.newArrayList(tree.path(0));
+    path.add(tree.root());
+    assertThat(MerkleTree.rootFromPath(messages.get(0), 0, 5, path), nullValue());
+    assertThat(MerkleTree.rootFromPath(messages.get(0), 0, 5, path.subList(0, 1)), nullValue());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmpty() {
+    MerkleTree.build(Lists.<byte[]>newArrayList());
+  }
+
+  private static List<byte[]> messages(final int count) {
+    final List<byte[]> messages = Lists.newArrayList();
+    for (int i = 0; i < count; i++) {
+      messages.add(new byte[] {(byte) i, 42});
+    }
+    return messages;
+  }
+}
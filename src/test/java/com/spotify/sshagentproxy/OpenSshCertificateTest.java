@@ -0,0 +1,202 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+
+public class OpenSshCertificateTest {
+
+  // ssh-keygen -s ca -I test-id -z 42 -n alice,bob -V 20200101:20300101 -O force-command=/bin/true
+  static final byte[] ED25519_CERT = Base64.decodeBase64(
+      "AAAAIHNzaC1lZDI1NTE5LWNlcnQtdjAxQG9wZW5zc2guY29tAAAAIH/9WPdn50NwA3oEnrBltyR8RhqY"
+      + "mBw/Ozl6b525UNsSAAAAIFEH3G0sSwlipwKrBx1thMzjh2Y/11BAJuvaKLBlrYGwAAAAAAAAACoAAAAB"
+      + "AAAAB3Rlc3QtaWQAAAAQAAAABWFsaWNlAAAAA2JvYgAAAABeC+EAAAAAAHDb2IAAAAAiAAAADWZvcmNl"
+      + "LWNvbW1hbmQAAAANAAAACS9iaW4vdHJ1ZQAAAIIAAAAVcGVybWl0LVgxMS1mb3J3YXJkaW5nAAAAAAAA"
+      + "ABdwZXJtaXQtYWdlbnQtZm9yd2FyZGluZwAAAAAAAAAWcGVybWl0LXBvcnQtZm9yd2FyZGluZwAAAAAA"
+      + "AAAKcGVybWl0LXB0eQAAAAAAAAAOcGVybWl0LXVzZXItcmMAAAAAAAAAAAAAADMAAAALc3NoLWVkMjU1"
+      + "MTkAAAAgHYuTSosVG1ou7drJLl9GHOwxsyx+n/EgZVYKukXvgIoAAABTAAAAC3NzaC1lZDI1NTE5AAAA"
+      + "QNks4ZswZc1iDoqtfn0tJ0lu3Xuss2P3YPXtmium1x1DM9hmG9Ya9wXANTAEjwVdoljce319jr3yEfUb"
+      + "oq+lmgc=");
+
+  static final byte[] ED25519_KEY = Base64.decodeBase64(
+      "AAAAC3NzaC1lZDI1NTE5AAAAIFEH3G0sSwlipwKrBx1thMzjh2Y/11BAJuvaKLBlrYGw");
+
+  // ssh-keygen -s ca -I host-id -z 7 -h -n host.example.com
+  private static final byte[] RSA_CERT = Base64.decodeBase64(
+      "AAAAHHNzaC1yc2EtY2VydC12MDFAb3BlbnNzaC5jb20AAAAgrsiZIT6smfFapi+x9JkRl71AaN7jeqoJ"
+      + "RZUFYxEpxQMAAAADAQABAAAAgQDAya8q9vFC9vNLgq+q3Ef36skk1xiqpbKvXOqhvaD1o2Xngsl3wHD0"
+      + "AxJe/a/wNdLczCHgsaN5/fHCjkQC+JRRWwiHuTOlG0aruTzyDnr+8MZOw7CNYo7BPleXmeiPQVE2skZV"
+      + "nodHcjnxyfefwgsu0QlzWjVHlNArucnVQV6k6QAAAAAAAAAHAAAAAgAAAAdob3N0LWlkAAAAFAAAABBo"
+      + "b3N0LmV4YW1wbGUuY29tAAAAAAAAAAD//////////wAAAAAAAAAAAAAAAAAAADMAAAALc3NoLWVkMjU1"
+      + "MTkAAAAgHYuTSosVG1ou7drJLl9GHOwxsyx+n/EgZVYKukXvgIoAAABTAAAAC3NzaC1lZDI1NTE5AAAA"
+      + "QL48SjTEbnu7wfmS2rzaxeua5y0Grv+aE0hs4FSkPCA/wntt33vTU8y0arbObWpsynvEIzhx9js4Q7nd"
+      + "dWHZfgo=");
+
+  private static final byte[] RSA_KEY = Base64.decodeBase64(
+      "AAAAB3NzaC1yc2EAAAADAQABAAAAgQDAya8q9vFC9vNLgq+q3Ef36skk1xiqpbKvXOqhvaD1o2Xngsl3"
+      + "wHD0AxJe/a/wNdLczCHgsaN5/fHCjkQC+JRRWwiHuTOlG0aruTzyDnr+8MZOw7CNYo7BPleXmeiPQVE2"
+      + "skZVnodHcjnxyfefwgsu0QlzWjVHlNArucnVQV6k6Q==");
+
+  private static final byte[] CA_KEY = Base64.decodeBase64(
+      "AAAAC3NzaC1lZDI1NTE5AAAAIB2Lk0qLFRtaLu3ayS5fRhzsMbMsfp/xIGVWCrpF74CK");
+
+  private static final long JANUARY_2020 = 1577836800000L;
+  private static final long JANUARY_2030 = 1893456000000L;
+
+  @Test
+  public void testUserCertificate() {
+    final OpenSshCertificate certificate = OpenSshCertificate.parse(ED25519_CERT);
+    assertThat(certificate.getCertificateFormat(),
+               equalTo("ssh-ed25519-cert-v01@openssh.com"));
+    assertArrayEquals(ED25519_KEY, certificate.getKeyBlob());
+    assertThat(certificate.getSerial(), equalTo(42L));
+    assertThat(certificate.getType(), equalTo(OpenSshCertificate.SSH_CERT_TYPE_USER));
+    assertThat(certificate.getKeyId(), equalTo("test-id"));
+    assertThat(certificate.getPrincipals(),
+               equalTo((List<String>) ImmutableList.of("alice", "bob")));
+    assertThat(certificate.getValidAfter(), equalTo(JANUARY_2020 / 1000));
+    assertThat(certificate.getValidBefore(), equalTo(JANUARY_2030 / 1000));
+    assertFalse(certificate.isForever());
+    assertThat(certificate.getCriticalOptions(),
+               equalTo(Collections.singletonMap("force-command", "/bin/true")));
+    assertThat(certificate.getExtensions(), equalTo((Map<String, String>) ImmutableMap.of(
+        "permit-X11-forwarding", "", "permit-agent-forwarding", "", "permit-port-forwarding", "",
+        "permit-pty", "", "permit-user-rc", "")));
+    assertArrayEquals(CA_KEY, certificate.getSignatureKey());
+    assertThat(certificate.getSignatureKeyFormat(), equalTo("ssh-ed25519"));
+  }
+
+  @Test
+  public void testHostCertificate() {
+    final OpenSshCertificate certificate = OpenSshCertificate.parse(RSA_CERT);
+    assertThat(certificate.getCertificateFormat(), equalTo("ssh-rsa-cert-v01@openssh.com"));
+    assertArrayEquals(RSA_KEY, certificate.getKeyBlob());
+    assertThat(certificate.getSerial(), equalTo(7L));
+    assertThat(certificate.getType(), equalTo(OpenSshCertificate.SSH_CERT_TYPE_HOST));
+    assertThat(certificate.getPrincipals(),
+               equalTo((List<String>) ImmutableList.of("host.example.com")));
+    assertTrue(certificate.isForever());
+    assertTrue(certificate.getCriticalOptions().isEmpty());
+    assertTrue(certificate.getExtensions().isEmpty());
+  }
+
+  @Test
+  public void testIsValidAt() {
+    final OpenSshCertificate certificate = OpenSshCertificate.parse(ED25519_CERT);
+    assertFalse(certificate.isValidAt(JANUARY_2020 - 1000));
+    assertTrue(certificate.isValidAt(JANUARY_2020));
+    assertTrue(certificate.isValidAt(JANUARY_2030 - 1));
+    assertFalse(certificate.isValidAt(JANUARY_2030));
+
+    final OpenSshCertificate forever = OpenSshCertificate.parse(RSA_CERT);
+    assertTrue(forever.isValidAt(0));
+    assertTrue(forever.isValidAt(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testParseIsCached() {
+    final OpenSshCertificate certificate = OpenSshCertificate.parse(ED25519_CERT);
+    assertThat(OpenSshCertificate.parse(ED25519_CERT.clone()), sameInstance(certificate));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParsePlainKey() {
+    OpenSshCertificate.parse(ED25519_KEY);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParseTruncated() {
+    OpenSshCertificate.parse(Arrays.copyOf(RSA_CERT, RSA_CERT.length - 1));
+  }
+
+  @Test
+  public void testIdentity() throws Exception {
+    final Identity certificateIdentity = DefaultIdentity.from(ED25519_CERT, "u1");
+    assertThat(certificateIdentity, instanceOf(CertificateIdentity.class));
+    assertThat(certificateIdentity.getKeyFormat(), equalTo("ssh-ed25519-cert-v01@openssh.com"));
+    assertThat(((CertificateIdentity) certificateIdentity).getCertificate(),
+               sameInstance(OpenSshCertificate.parse(ED25519_CERT)));
+
+    final Identity rsaIdentity = DefaultIdentity.fromCommentBytes(RSA_CERT, "u2".getBytes("UTF-8"));
+    assertThat(rsaIdentity.getPublicKey(),
+               equalTo(DefaultIdentity.from(RSA_KEY, "u2").getPublicKey()));
+    assertThat(SshSig.signatureAlgorithm(rsaIdentity), equalTo(RsaCodec.RSA_SHA2_512));
+    assertThat(KeyCodecs.signFlags(rsaIdentity, RsaCodec.RSA_SHA2_256), equalTo(2));
+
+    assumeTrue(TestConstants.isEd25519Available());
+    assertThat(certificateIdentity.getPublicKey(),
+               equalTo(DefaultIdentity.from(ED25519_KEY, "u1").getPublicKey()));
+  }
+
+  @Test
+  public void testValidAt() throws Exception {
+    final Identity user = DefaultIdentity.from(ED25519_CERT, "u1");
+    final Identity host = DefaultIdentity.from(RSA_CERT, "u2");
+    final Identity key = DefaultIdentity.from(ED25519_KEY, "u1");
+    final List<Identity> identities = ImmutableList.of(key, user, host);
+
+    assertThat(CertificateIdentity.validAt(identities, JANUARY_2020),
+               equalTo((List<CertificateIdentity>) ImmutableList.of(
+                   (CertificateIdentity) user, (CertificateIdentity) host)));
+    assertThat(CertificateIdentity.validAt(identities, JANUARY_2030),
+               equalTo((List<CertificateIdentity>) ImmutableList.of((CertificateIdentity) host)));
+  }
+
+  @Test
+  public void testSignatureFormatsStayWithKeys() {
+    assertThat(KeyCodecs.forSignatureFormat("ssh-ed25519"),
+               sameInstance(KeyCodecs.get("ssh-ed25519")));
+    assertThat(KeyCodecs.forSignatureFormat(RsaCodec.RSA_SHA2_512),
+               sameInstance(KeyCodecs.get("ssh-rsa")));
+  }
+}
@@ -0,0 +1,335 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PipelinedAgentProxyTest extends TestConstants {
+
+  private final AgentOutput out = mock(AgentOutput.class);
+  private final AgentInput in = mock(AgentInput.class);
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testList() throws Exception {
+    final List<Identity> expectedIds = ImmutableList.of(
+        DefaultIdentity.from(KEY_BLOB1, COMMENT1),
+        DefaultIdentity.from(KEY_BLOB2, COMMENT2)
+    );
+    when(in.readIdentitiesAnswer()).thenReturn(expectedIds);
+
+    try (final AgentProxy proxy = new PipelinedAgentProxy(in, out)) {
+      assertThat(proxy.list(), equalTo(expectedIds));
+    }
+    verify(out).requestIdentities();
+  }
+
+  @Test
+  public void testSignAsync() throws Exception {
+    final CountDownLatch reply = new CountDownLatch(1);
+    when(in.readSignResponse()).thenAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) throws Throwable {
+        reply.await();
+        return SIGN_RESPONSE_DATA;
+      }
+    });
+
+    try (final AsyncAgentProxy proxy = new PipelinedAgentProxy(in, out)) {
+      final ListenableFuture<byte[]> future =
+          proxy.signAsync(DefaultIdentity.from(KEY_BLOB2, COMMENT2), DATA);
+      assertFalse(future.isDone());
+      reply.countDown();
+      assertArrayEquals(SIGN_RESPONSE_DATA, future.get(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testAsyncAfterCloseFails() throws Exception {
+    final AsyncAgentProxy proxy = new PipelinedAgentProxy(in, out);
+    proxy.close();
+
+    final ListenableFuture<List<Identity>> future = proxy.listAsync();
+    assertTrue(future.isDone());
+    try {
+      future.get();
+      fail("Expected IOException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof IOException, equalTo(true));
+    }
+    verify(out, never()).requestIdentities();
+  }
+
+  @Test
+  public void testRequestsAreWrittenBeforeRepliesArrive() throws Exception {
+    final int requests = 5;
+    final CountDownLatch allWritten = new CountDownLatch(requests);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Throwable {
+        allWritten.countDown();
+        return null;
+      }
+    }).when(out).signRequest(any(Identity.class), any(byte[].class));
+    when(in.readSignResponse()).thenAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) throws Throwable {
+        // No reply is produced until every request has been written.
+        allWritten.await();
+        return SIGN_RESPONSE_DATA;
+      }
+    });
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+
+    try (final PipelinedAgentProxy proxy = new PipelinedAgentProxy(in, out)) {
+      final List<Future<byte[]>> futures = Lists.newArrayList();
+      for (int i = 0; i < requests; i++) {
+        futures.add(executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return proxy.sign(identity, DATA);
+          }
+        }));
+      }
+      for (final Future<byte[]> future : futures) {
+        assertArrayEquals(SIGN_RESPONSE_DATA, future.get(10, TimeUnit.SECONDS));
+      }
+      assertThat(proxy.pendingRequests(), equalTo(0));
+    }
+  }
+
+  @Test
+  public void testReadFailureFailsConnection() throws Exception {
+    when(in.readSignResponse()).thenThrow(new IOException("broken pipe"));
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+
+    try (final AgentProxy proxy = new PipelinedAgentProxy(in, out)) {
+      try {
+        proxy.sign(identity, DATA);
+        fail("Expected IOException");
+      } catch (IOException expected) {
+        // expected
+      }
+      try {
+        proxy.sign(identity, DATA);
+        fail("Expected IOException");
+      } catch (IOException expected) {
+        // the connection can't be reused after a failed read
+      }
+    }
+    verify(in).close();
+  }
+
+  @Test
+  public void testCloseFailsPendingRequests() throws Exception {
+    final CountDownLatch written = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Throwable {
+        written.countDown();
+        return null;
+      }
+    }).when(out).requestIdentities();
+    final CountDownLatch closed = new CountDownLatch(1);
+    when(in.readIdentitiesAnswer()).thenAnswer(new Answer<List<Identity>>() {
+      @Override
+      public List<Identity> answer(final InvocationOnMock invocation) throws Throwable {
+        Uninterruptibles.awaitUninterruptibly(closed);
+        throw new IOException("stream closed");
+      }
+    });
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) throws Throwable {
+        closed.countDown();
+        return null;
+      }
+    }).when(in).close();
+
+    final AgentProxy proxy = new PipelinedAgentProxy(in, out);
+    final Future<List<Identity>> future = executor.submit(new Callable<List<Identity>>() {
+      @Override
+      public List<Identity> call() throws Exception {
+        return proxy.list();
+      }
+    });
+    written.await(10, TimeUnit.SECONDS);
+    proxy.close();
+
+    try {
+      future.get(10, TimeUnit.SECONDS);
+      fail("Expected IOException");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof IOException, equalTo(true));
+    }
+  }
+
+  @Test
+  public void testLateReplyAfterTimeoutIsDropped() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try (final FakeAgent agent = new FakeAgent();
+         final PipelinedAgentProxy proxy = new PipelinedAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      agent.setReplyDelay(500, TimeUnit.MILLISECONDS);
+      try {
+        proxy.sign(identity, DATA, 50, TimeUnit.MILLISECONDS);
+        fail("Expected SocketTimeoutException");
+      } catch (SocketTimeoutException expected) {
+        // expected
+      }
+
+      agent.setReplyDelay(0, TimeUnit.MILLISECONDS);
+      assertThat(proxy.list(10, TimeUnit.SECONDS).size(), equalTo(2));
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA, 10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testInvalidStreamKeepsConnection() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try (final FakeAgent agent = new FakeAgent();
+         final PipelinedAgentProxy proxy = new PipelinedAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      try {
+        proxy.sign(identity, Channels.newChannel(new ByteArrayInputStream(DATA)), -1);
+        fail();
+      } catch (IllegalArgumentException expected) {
+        // expected
+      }
+
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+      assertThat(agent.requests(), equalTo(1));
+    }
+  }
+
+  @Test
+  public void testSignAll() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try (final FakeAgent agent = new FakeAgent();
+         final PipelinedAgentProxy proxy = new PipelinedAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      final List<byte[]> signatures = proxy.signAll(identity, Collections.nCopies(100, DATA));
+
+      assertThat(signatures.size(), equalTo(100));
+      for (final byte[] signature : signatures) {
+        assertArrayEquals(SIGN_RESPONSE_DATA, signature);
+      }
+      assertThat(agent.requests(), equalTo(100));
+    }
+  }
+
+  @Test
+  public void testSignWithEach() throws Exception {
+    final List<Identity> identities = ImmutableList.of(DefaultIdentity.from(KEY_BLOB1, COMMENT1),
+                                                       DefaultIdentity.from(KEY_BLOB2, COMMENT2));
+    try (final FakeAgent agent = new FakeAgent();
+         final PipelinedAgentProxy proxy = new PipelinedAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      final Map<Identity, byte[]> signatures = proxy.signWithEach(identities, DATA);
+
+      assertThat(Lists.newArrayList(signatures.keySet()), equalTo(identities));
+      for (final byte[] signature : signatures.values()) {
+        assertArrayEquals(SIGN_RESPONSE_DATA, signature);
+      }
+      assertThat(agent.requests(), equalTo(2));
+    }
+  }
+
+  @Test
+  public void testSignWithAlgorithm() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    try (final FakeAgent agent = new FakeAgent();
+         final PipelinedAgentProxy proxy = new PipelinedAgentProxy(
+             new AgentInput(Channels.newInputStream(agent.clientChannel())),
+             new AgentOutput(agent.clientChannel()))) {
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.signAsync(identity, DATA).get());
+      final AgentSignature signature = proxy.sign(identity, DATA, "rsa-sha2-512");
+      final byte[] request = agent.lastRequest();
+      assertThat(Arrays.copyOfRange(request, request.length - 4, request.length),
+                 equalTo(new byte[] {0, 0, 0, 4}));
+
+      // The fake agent ignores the flags, like agents that predate them.
+      assertThat(signature.getAlgorithm(), equalTo("ssh-rsa"));
+      assertArrayEquals(SIGN_RESPONSE_DATA, signature.getBlob());
+    }
+  }
+
+}
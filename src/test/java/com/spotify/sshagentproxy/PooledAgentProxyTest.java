@@ -0,0 +1,354 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PooledAgentProxyTest extends TestConstants {
+
+  private final AgentOutput out = mock(AgentOutput.class);
+  private final AgentInput in = mock(AgentInput.class);
+  private final AtomicInteger created = new AtomicInteger();
+
+  private final AgentProxyFactory factory = new AgentProxyFactory() {
+    @Override
+    public AgentProxies.DefaultAgentProxy create() throws IOException {
+      created.incrementAndGet();
+      return new AgentProxies.DefaultAgentProxy(in, out);
+    }
+  };
+
+  @Test
+  public void testReusesIdleConnection() throws Exception {
+    final List<Identity> expectedIds = ImmutableList.of(DefaultIdentity.from(KEY_BLOB1, COMMENT1));
+    when(in.readIdentitiesAnswer()).thenReturn(expectedIds);
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(factory, 4)) {
+      assertThat(proxy.list(), equalTo(expectedIds));
+      assertArrayEquals(SIGN_RESPONSE_DATA,
+                        proxy.sign(DefaultIdentity.from(KEY_BLOB2, COMMENT2), DATA));
+      assertThat(proxy.idleConnections(), equalTo(1));
+    }
+
+    assertThat(created.get(), equalTo(1));
+  }
+
+  @Test
+  public void testEvictsBrokenConnection() throws Exception {
+    when(in.readSignResponse()).thenThrow(new IOException("broken pipe"))
+        .thenReturn(SIGN_RESPONSE_DATA);
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(factory, 4)) {
+      try {
+        proxy.sign(identity, DATA);
+        fail("Expected IOException");
+      } catch (IOException expected) {
+        assertThat(proxy.idleConnections(), equalTo(0));
+      }
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+    }
+
+    assertThat(created.get(), equalTo(2));
+    // Once when evicted and once when the pool is closed
+    verify(in, times(2)).close();
+  }
+
+  @Test
+  public void testKeepsConnectionOnAgentFailure() throws Exception {
+    when(in.readSignResponse()).thenThrow(new AgentFailureException(5))
+        .thenReturn(SIGN_RESPONSE_DATA);
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(factory, 4)) {
+      try {
+        proxy.sign(identity, DATA);
+        fail("Expected AgentFailureException");
+      } catch (AgentFailureException expected) {
+        assertThat(proxy.idleConnections(), equalTo(1));
+      }
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+    }
+
+    assertThat(created.get(), equalTo(1));
+  }
+
+  @Test
+  public void testConcurrentLeasesAreBounded() throws Exception {
+    final int maxConnections = 3;
+    final CountDownLatch allLeased = new CountDownLatch(maxConnections);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger active = new AtomicInteger();
+    final AtomicInteger maxActive = new AtomicInteger();
+    when(in.readSignResponse()).thenAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) throws Throwable {
+        final int now = active.incrementAndGet();
+        synchronized (maxActive) {
+          maxActive.set(Math.max(maxActive.get(), now));
+        }
+        allLeased.countDown();
+        release.await();
+        active.decrementAndGet();
+        return SIGN_RESPONSE_DATA;
+      }
+    });
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+
+    final ExecutorService executor = Executors.newFixedThreadPool(maxConnections * 2);
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(factory, maxConnections)) {
+      final List<Future<byte[]>> futures = Lists.newArrayList();
+      for (int i = 0; i < maxConnections * 2; i++) {
+        futures.add(executor.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return proxy.sign(identity, DATA);
+          }
+        }));
+      }
+
+      allLeased.await(10, TimeUnit.SECONDS);
+      release.countDown();
+      for (final Future<byte[]> future : futures) {
+        assertArrayEquals(SIGN_RESPONSE_DATA, future.get(10, TimeUnit.SECONDS));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertThat(maxActive.get(), equalTo(maxConnections));
+    assertThat(created.get(), equalTo(maxConnections));
+  }
+
+  @Test(expected = IOException.class)
+  public void testClosed() throws Exception {
+    final PooledAgentProxy proxy = new PooledAgentProxy(factory, 1);
+    proxy.close();
+    proxy.list();
+  }
+
+  @Test
+  public void testReleaseDuringCloseClosesConnection() throws Exception {
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+    final AtomicReference<PooledAgentProxy> pool = new AtomicReference<>();
+    final AgentProxies.DefaultAgentProxy connection = new AgentProxies.DefaultAgentProxy(in, out) {
+      @Override
+      boolean isOpen() {
+        // Close the pool after the connection is released, before it is added back.
+        closeQuietly(pool.get());
+        return super.isOpen();
+      }
+    };
+    final AgentProxyFactory closing = new AgentProxyFactory() {
+      @Override
+      public AgentProxies.DefaultAgentProxy create() throws IOException {
+        return connection;
+      }
+    };
+
+    pool.set(new PooledAgentProxy(closing, 1));
+    pool.get().sign(DefaultIdentity.from(KEY_BLOB2, COMMENT2), DATA);
+    assertThat(pool.get().idleConnections(), equalTo(0));
+    verify(out).close();
+  }
+
+  private static void closeQuietly(final PooledAgentProxy proxy) {
+    try {
+      proxy.close();
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  public void testCreateFailureReleasesPermit() throws Exception {
+    final AgentProxyFactory failing = mock(AgentProxyFactory.class);
+    when(failing.create()).thenThrow(new IOException("no agent"))
+        .thenReturn(new AgentProxies.DefaultAgentProxy(in, out));
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(failing, 1)) {
+      try {
+        proxy.sign(DefaultIdentity.from(KEY_BLOB2, COMMENT2), DATA);
+        fail("Expected IOException");
+      } catch (IOException expected) {
+        // the single permit must have been given back
+      }
+      proxy.sign(DefaultIdentity.from(KEY_BLOB2, COMMENT2), DATA);
+    }
+    verify(out).signRequest(any(Identity.class), any(byte[].class));
+  }
+
+  @Test
+  public void testLeaseDeadline() throws Exception {
+    final CountDownLatch leased = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    when(in.readSignResponse()).thenAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) throws Throwable {
+        leased.countDown();
+        release.await();
+        return SIGN_RESPONSE_DATA;
+      }
+    });
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(factory, 1)) {
+      final Future<byte[]> first = executor.submit(new Callable<byte[]>() {
+        @Override
+        public byte[] call() throws Exception {
+          return proxy.sign(identity, DATA);
+        }
+      });
+      leased.await(10, TimeUnit.SECONDS);
+
+      try {
+        proxy.sign(identity, DATA, 50, TimeUnit.MILLISECONDS);
+        fail("Expected SocketTimeoutException");
+      } catch (SocketTimeoutException expected) {
+        // the only connection is still leased
+      }
+      release.countDown();
+      assertArrayEquals(SIGN_RESPONSE_DATA, first.get(10, TimeUnit.SECONDS));
+      assertThat(proxy.idleConnections(), equalTo(1));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSignAllUsesOneConnection() throws Exception {
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(factory, 3)) {
+      assertThat(proxy.signAll(identity, Collections.nCopies(10, DATA)).size(), equalTo(10));
+    }
+    assertThat(created.get(), equalTo(1));
+    verify(in, times(10)).readSignResponse();
+  }
+
+  @Test
+  public void testSignWithEachRunsInParallel() throws Exception {
+    final CountDownLatch bothSigning = new CountDownLatch(2);
+    when(in.readSignResponse()).thenAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) throws Throwable {
+        // Neither reply arrives until both requests have been sent.
+        bothSigning.countDown();
+        if (!bothSigning.await(10, TimeUnit.SECONDS)) {
+          throw new IOException("requests weren't sent in parallel");
+        }
+        return SIGN_RESPONSE_DATA;
+      }
+    });
+    final List<Identity> identities = ImmutableList.of(DefaultIdentity.from(KEY_BLOB1, COMMENT1),
+                                                       DefaultIdentity.from(KEY_BLOB2, COMMENT2));
+
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(factory, 2)) {
+      final Map<Identity, byte[]> signatures = proxy.signWithEach(identities, DATA);
+      assertThat(Lists.newArrayList(signatures.keySet()), equalTo(identities));
+      for (final byte[] signature : signatures.values()) {
+        assertArrayEquals(SIGN_RESPONSE_DATA, signature);
+      }
+    }
+    assertThat(created.get(), equalTo(2));
+  }
+
+  @Test
+  public void testSignWithEachCancelsOthersOnFailure() throws Exception {
+    when(in.readSignResponse()).thenThrow(new AgentFailureException(5));
+    final List<Identity> identities = ImmutableList.of(DefaultIdentity.from(KEY_BLOB1, COMMENT1),
+                                                       DefaultIdentity.from(KEY_BLOB2, COMMENT2));
+    // Keep the fan-out thread busy so that the second request is still queued.
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    final CountDownLatch release = new CountDownLatch(1);
+    executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        release.await(10, TimeUnit.SECONDS);
+        return null;
+      }
+    });
+
+    try (final PooledAgentProxy proxy = new PooledAgentProxy(factory, 2, executor)) {
+      try {
+        proxy.signWithEach(identities, DATA);
+        fail("Expected AgentFailureException");
+      } catch (AgentFailureException expected) {
+        // expected
+      }
+      release.countDown();
+      executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() {
+          return null;
+        }
+      }).get(10, TimeUnit.SECONDS);
+    }
+    verify(out).signRequest(any(Identity.class), any(byte[].class));
+  }
+}
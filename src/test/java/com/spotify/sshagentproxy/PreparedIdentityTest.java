@@ -0,0 +1,75 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class PreparedIdentityTest extends TestConstants {
+
+  @Test
+  public void testSignRequestPrefix() throws Exception {
+    final PreparedIdentity identity =
+        PreparedIdentity.of(DefaultIdentity.from(KEY_BLOB1, COMMENT1));
+    final byte[] expected = ByteBuffer.allocate(1 + 4 + KEY_BLOB1.length)
+        .put((byte) 13)
+        .putInt(KEY_BLOB1.length)
+        .put(KEY_BLOB1)
+        .array();
+    assertThat(identity.getSignRequestPrefix(), equalTo(expected));
+    assertThat(identity.getKeyBlob(), equalTo(KEY_BLOB1));
+    assertThat(identity.getComment(), equalTo(COMMENT1));
+  }
+
+  @Test
+  public void testOfIsIdempotent() throws Exception {
+    final PreparedIdentity identity =
+        PreparedIdentity.of(DefaultIdentity.from(KEY_BLOB1, COMMENT1));
+    assertThat(PreparedIdentity.of(identity), sameInstance(identity));
+  }
+
+  @Test
+  public void testEquals() throws Exception {
+    final Identity identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    assertThat(PreparedIdentity.of(identity), equalTo(PreparedIdentity.of(identity)));
+    assertThat(PreparedIdentity.of(identity).getIdentity(), equalTo(identity));
+  }
+}
@@ -0,0 +1,265 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ReconnectingAgentProxyTest extends TestConstants {
+
+  private final AgentOutput out = mock(AgentOutput.class);
+  private final AgentInput in = mock(AgentInput.class);
+  private final AtomicInteger created = new AtomicInteger();
+  private final FakeTicker ticker = new FakeTicker();
+  private Identity identity;
+
+  private final AgentProxyFactory factory = new AgentProxyFactory() {
+    @Override
+    public AgentProxies.DefaultAgentProxy create() throws IOException {
+      created.incrementAndGet();
+      return new AgentProxies.DefaultAgentProxy(in, out);
+    }
+  };
+
+  @Before
+  public void setUp() throws Exception {
+    identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+  }
+
+  private ReconnectingAgentProxy newProxy(final AgentProxyFactory agentProxyFactory) {
+    return new ReconnectingAgentProxy(agentProxyFactory, 1, 8, 30, TimeUnit.SECONDS, null,
+                                      ticker, new Random(0));
+  }
+
+  @Test
+  public void testRetriesOnNewConnection() throws Exception {
+    when(in.readSignResponse()).thenThrow(new IOException("broken pipe"))
+        .thenReturn(SIGN_RESPONSE_DATA);
+
+    try (final ReconnectingAgentProxy proxy = newProxy(factory)) {
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+      assertThat(proxy.getReconnectCount(), equalTo(1L));
+      assertTrue(proxy.isConnected());
+    }
+
+    assertThat(created.get(), equalTo(2));
+  }
+
+  @Test
+  public void testAgentFailureKeepsConnection() throws Exception {
+    when(in.readSignResponse()).thenThrow(new AgentFailureException(5))
+        .thenReturn(SIGN_RESPONSE_DATA);
+
+    try (final ReconnectingAgentProxy proxy = newProxy(factory)) {
+      try {
+        proxy.sign(identity, DATA);
+        fail("Expected AgentFailureException");
+      } catch (AgentFailureException expected) {
+        // expected
+      }
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+      assertThat(proxy.getReconnectCount(), equalTo(0L));
+    }
+
+    assertThat(created.get(), equalTo(1));
+  }
+
+  @Test
+  public void testStreamingSignIsNotRetried() throws Exception {
+    final ReadableByteChannel src = Channels.newChannel(new ByteArrayInputStream(DATA));
+    doThrow(new IOException("broken pipe"))
+        .when(out).signRequest(any(Identity.class), any(ReadableByteChannel.class), anyLong());
+
+    try (final ReconnectingAgentProxy proxy = newProxy(factory)) {
+      try {
+        proxy.sign(identity, src, DATA.length);
+        fail("Expected IOException");
+      } catch (IOException expected) {
+        assertThat(proxy.isConnected(), equalTo(false));
+      }
+    }
+
+    assertThat(created.get(), equalTo(1));
+  }
+
+  @Test
+  public void testBacksOffAfterConnectFailure() throws Exception {
+    final AgentProxyFactory failing = mock(AgentProxyFactory.class);
+    when(failing.create()).thenThrow(new IOException("no agent"))
+        .thenReturn(new AgentProxies.DefaultAgentProxy(in, out));
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+
+    try (final ReconnectingAgentProxy proxy = newProxy(failing)) {
+      for (int i = 0; i < 2; i++) {
+        try {
+          proxy.sign(identity, DATA);
+          fail("Expected IOException");
+        } catch (IOException expected) {
+          // The first attempt fails to connect and the second doesn't try.
+        }
+      }
+      verify(failing).create();
+
+      ticker.advance(1, TimeUnit.SECONDS);
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+      assertThat(proxy.getReconnectCount(), equalTo(0L));
+    }
+  }
+
+  @Test
+  public void testBackoffIsBoundedAndJittered() throws Exception {
+    try (final ReconnectingAgentProxy proxy = newProxy(factory)) {
+      for (int failures = 1; failures < 100; failures++) {
+        final long max = TimeUnit.SECONDS.toNanos(Math.min(8, 1L << Math.min(failures - 1, 10)));
+        final long backoff = proxy.backoffNanos(failures);
+        assertTrue(backoff <= max);
+        assertTrue(backoff >= max / 2);
+      }
+    }
+  }
+
+  @Test
+  public void testProbeReplacesBrokenIdleConnection() throws Exception {
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+    when(in.readIdentitiesAnswer()).thenThrow(new IOException("broken pipe"));
+
+    try (final ReconnectingAgentProxy proxy = newProxy(factory)) {
+      // Nothing to probe before the first connection.
+      proxy.probe();
+      assertThat(created.get(), equalTo(0));
+
+      proxy.sign(identity, DATA);
+      // Recently used connections aren't probed.
+      proxy.probe();
+      verify(in, never()).readIdentitiesAnswer();
+
+      ticker.advance(30, TimeUnit.SECONDS);
+      proxy.probe();
+      assertThat(created.get(), equalTo(2));
+      assertThat(proxy.getReconnectCount(), equalTo(1L));
+      assertTrue(proxy.isConnected());
+    }
+  }
+
+  @Test
+  public void testProbeReplacesHungConnection() throws Exception {
+    final CountDownLatch closed = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) {
+        closed.countDown();
+        return null;
+      }
+    }).when(in).close();
+    when(in.readSignResponse()).thenReturn(SIGN_RESPONSE_DATA);
+    when(in.readIdentitiesAnswer()).thenAnswer(new Answer<List<Identity>>() {
+      @Override
+      public List<Identity> answer(final InvocationOnMock invocation) throws Throwable {
+        // Like an agent waiting for a confirmation that never comes.
+        closed.await();
+        throw new IOException("closed");
+      }
+    });
+
+    try (final ReconnectingAgentProxy proxy = new ReconnectingAgentProxy(
+        factory, 1, 8, 50, TimeUnit.MILLISECONDS, null, ticker, new Random(0))) {
+      proxy.sign(identity, DATA);
+      ticker.advance(50, TimeUnit.MILLISECONDS);
+      proxy.probe();
+      assertThat(created.get(), equalTo(2));
+      assertThat(proxy.getReconnectCount(), equalTo(1L));
+      assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA, 1, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testTimeoutIsNotRetried() throws Exception {
+    final CountDownLatch closed = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(final InvocationOnMock invocation) {
+        closed.countDown();
+        return null;
+      }
+    }).when(in).close();
+    when(in.readSignResponse()).thenAnswer(new Answer<byte[]>() {
+      @Override
+      public byte[] answer(final InvocationOnMock invocation) throws Throwable {
+        // Like a socket read, this only returns once the connection is closed.
+        closed.await();
+        throw new IOException("closed");
+      }
+    });
+
+    try (final ReconnectingAgentProxy proxy = newProxy(factory)) {
+      try {
+        proxy.sign(identity, DATA, 50, TimeUnit.MILLISECONDS);
+        fail("Expected SocketTimeoutException");
+      } catch (SocketTimeoutException expected) {
+        assertThat(proxy.isConnected(), equalTo(false));
+      }
+    }
+
+    assertThat(created.get(), equalTo(1));
+  }
+}
@@ -0,0 +1,108 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import java.security.KeyFactory;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * Compares the cost of decoding an RSA key blob with {@link Rsa#from(byte[])} against the
+ * previous approach of re-encoding the blob as an authorized_keys line, parsing it with a regex
+ * and looking up a new {@link KeyFactory} for each key. It isn't run as part of the tests.
+ *
+ * <p>Run with: mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.spotify.sshagentproxy.RsaBenchmark
+ */
+public class RsaBenchmark extends TestConstants {
+
+  private static final int WARMUP_ITERATIONS = 50000;
+  private static final int ITERATIONS = 200000;
+
+  private interface Parser {
+    RSAPublicKey parse(byte[] keyBlob) throws Exception;
+  }
+
+  private static final Parser BASE64_REGEX = new Parser() {
+    @Override
+    public RSAPublicKey parse(final byte[] keyBlob) throws Exception {
+      final String decoded = Base64.encodeBase64String(keyBlob);
+      final RSAPublicKeySpec keySpec =
+          TraditionalKeyParser.parsePemPublicKey(Rsa.RSA_LABEL + " " + decoded + " ");
+      return (RSAPublicKey) KeyFactory.getInstance("RSA").generatePublic(keySpec);
+    }
+  };
+
+  private static final Parser BINARY = new Parser() {
+    @Override
+    public RSAPublicKey parse(final byte[] keyBlob) throws Exception {
+      return Rsa.from(keyBlob);
+    }
+  };
+
+  public static void main(final String[] args) throws Exception {
+    final byte[][] keyBlobs = {KEY_BLOB1, KEY_BLOB2};
+    for (int round = 0; round < 3; round++) {
+      report("base64+regex", run(BASE64_REGEX, keyBlobs));
+      report("binary", run(BINARY, keyBlobs));
+    }
+  }
+
+  private static long run(final Parser parser, final byte[][] keyBlobs) throws Exception {
+    long checksum = 0;
+    for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+      checksum += parser.parse(keyBlobs[i % keyBlobs.length]).getModulus().signum();
+    }
+    final long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      checksum += parser.parse(keyBlobs[i % keyBlobs.length]).getModulus().signum();
+    }
+    final long elapsed = System.nanoTime() - start;
+    if (checksum != WARMUP_ITERATIONS + ITERATIONS) {
+      throw new AssertionError("Unexpected checksum " + checksum);
+    }
+    return elapsed;
+  }
+
+  private static void report(final String name, final long elapsedNanos) {
+    System.out.printf("%-14s %8.0f ns/key (%d keys in %d ms)%n", name,
+                      (double) elapsedNanos / ITERATIONS, ITERATIONS,
+                      TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+  }
+}
@@ -40,7 +40,9 @@ import static org.hamcrest.CoreMatchers.equalTo;
 import static org.junit.Assert.assertThat;
 
 import java.math.BigInteger;
+import java.security.InvalidKeyException;
 import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.runners.MockitoJUnitRunner;
@@ -54,4 +56,16 @@ public class RsaTest extends TestConstants {
     assertThat(key.getAlgorithm(), equalTo("RSA"));
     assertThat(key.getPublicExponent(), equalTo(BigInteger.valueOf(65537)));
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testFromKeyBlob() throws Exception {
+    final RSAPublicKey key = Rsa.from(KEY_BLOB2);
+    assertThat(key, equalTo(Rsa.from(PUBLIC_KEY2.getBytes())));
+    assertThat(key.getModulus().bitLength(), equalTo(2048));
+  }
+
+  @Test(expected = InvalidKeyException.class)
+  public void testFromTruncatedKeyBlob() throws Exception {
+    Rsa.from(Arrays.copyOf(KEY_BLOB2, 30));
+  }
+}
@@ -0,0 +1,152 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SignatureCachingAgentProxyTest extends TestConstants {
+
+  private static final byte[] OTHER_DATA = "other data".getBytes();
+
+  private final AgentProxy delegate = mock(AgentProxy.class);
+  private final FakeTicker ticker = new FakeTicker();
+
+  private Identity identity;
+  private SignatureCachingAgentProxy proxy;
+
+  @Before
+  public void setUp() throws Exception {
+    identity = DefaultIdentity.from(KEY_BLOB2, COMMENT2);
+    when(delegate.sign(any(Identity.class), any(byte[].class)))
+        .thenReturn(SIGN_RESPONSE_DATA.clone());
+    proxy = new SignatureCachingAgentProxy(delegate, 2, 10, TimeUnit.SECONDS, ticker);
+  }
+
+  @Test
+  public void testCachesSignature() throws Exception {
+    assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+    assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA.clone()));
+
+    verify(delegate, times(1)).sign(identity, DATA);
+    assertThat(proxy.stats().missCount(), equalTo(1L));
+    assertThat(proxy.stats().hitCount(), equalTo(1L));
+  }
+
+  @Test
+  public void testDifferentDataIsSignedByAgent() throws Exception {
+    proxy.sign(identity, DATA);
+    proxy.sign(identity, OTHER_DATA);
+
+    verify(delegate).sign(identity, DATA);
+    verify(delegate).sign(identity, OTHER_DATA);
+    assertThat(proxy.stats().missCount(), equalTo(2L));
+  }
+
+  @Test
+  public void testExpiresAfterTtl() throws Exception {
+    proxy.sign(identity, DATA);
+    ticker.advance(11, TimeUnit.SECONDS);
+    proxy.sign(identity, DATA);
+
+    verify(delegate, times(2)).sign(identity, DATA);
+  }
+
+  @Test
+  public void testEvictsBeyondMaximumSize() throws Exception {
+    proxy.sign(identity, DATA);
+    proxy.sign(identity, OTHER_DATA);
+    proxy.sign(identity, "more data".getBytes());
+    proxy.sign(identity, DATA);
+
+    verify(delegate, times(2)).sign(identity, DATA);
+  }
+
+  @Test
+  public void testCallerCannotModifyCachedSignature() throws Exception {
+    proxy.sign(identity, DATA)[0] ^= 1;
+    assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+  }
+
+  @Test
+  public void testNonDeterministicKeyTypeIsNotCached() throws Exception {
+    final Identity ecdsa = mock(Identity.class);
+    when(ecdsa.getKeyFormat()).thenReturn("ecdsa-sha2-nistp256");
+
+    proxy.sign(ecdsa, DATA);
+    proxy.sign(ecdsa, DATA);
+
+    verify(delegate, times(2)).sign(ecdsa, DATA);
+    assertThat(proxy.stats().requestCount(), equalTo(0L));
+  }
+
+  @Test
+  public void testCertificateIsCached() throws Exception {
+    for (final String format : new String[] {
+        "ssh-rsa-cert-v01@openssh.com", "ssh-ed25519-cert-v01@openssh.com"}) {
+      final Identity certificate = mock(Identity.class);
+      when(certificate.getKeyFormat()).thenReturn(format);
+      when(certificate.getKeyBlob()).thenReturn(format.getBytes());
+
+      proxy.sign(certificate, DATA);
+      proxy.sign(certificate, DATA);
+
+      verify(delegate).sign(certificate, DATA);
+    }
+    assertThat(proxy.stats().hitCount(), equalTo(2L));
+  }
+
+  @Test
+  public void testSignWithTimeoutUsesCache() throws Exception {
+    when(delegate.sign(identity, DATA, 1, TimeUnit.SECONDS)).thenReturn(SIGN_RESPONSE_DATA);
+
+    proxy.sign(identity, DATA, 1, TimeUnit.SECONDS);
+    assertArrayEquals(SIGN_RESPONSE_DATA, proxy.sign(identity, DATA));
+
+    verify(delegate, times(0)).sign(identity, DATA);
+  }
+}
@@ -0,0 +1,106 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class SshDecoderTest extends TestConstants {
+
+  @Test
+  public void testReadKeyBlob() {
+    final SshDecoder decoder = new SshDecoder(KEY_BLOB2);
+    assertThat(decoder.readAscii(), equalTo("ssh-rsa"));
+    assertThat(decoder.readMpint(), equalTo(BigInteger.valueOf(65537)));
+    assertThat(decoder.readMpint().bitLength(), equalTo(2048));
+    assertFalse(decoder.hasRemaining());
+  }
+
+  @Test
+  public void testReadStringIsAView() {
+    final byte[] bytes = {0, 0, 0, 3, 1, 2, 3, 0, 0, 0, 1, 9};
+    final SshDecoder decoder = new SshDecoder(bytes);
+
+    final ByteBuffer string = decoder.readString();
+    assertTrue(string.isReadOnly());
+    assertThat(string.remaining(), equalTo(3));
+    bytes[5] = 42;
+    assertThat(string.get(1), equalTo((byte) 42));
+
+    assertThat(decoder.readBytes(), equalTo(new byte[] {9}));
+  }
+
+  @Test
+  public void testStartsAtBufferPosition() {
+    final ByteBuffer buffer = ByteBuffer.wrap(new byte[] {7, 0, 0, 0, 2, 104, 105});
+    buffer.get();
+    final SshDecoder decoder = new SshDecoder(buffer);
+    assertThat(decoder.readUtf8(), equalTo("hi"));
+    assertThat(buffer.position(), equalTo(1));
+  }
+
+  @Test
+  public void testReadLong() {
+    final SshDecoder decoder = new SshDecoder(new byte[] {
+        0, 0, 0, 0, 0, 0, 1, -79, -1, -1, -1, -1, -1, -1, -1, -1});
+    assertThat(decoder.readLong(), equalTo(433L));
+    assertThat(decoder.readLong(), equalTo(-1L));
+    assertFalse(decoder.hasRemaining());
+  }
+
+  @Test
+  public void testUnsignedLength() {
+    final SshDecoder decoder = new SshDecoder(new byte[] {0, 0, 1, -79});
+    assertThat(decoder.readInt(), equalTo(433));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncatedString() {
+    new SshDecoder(new byte[] {0, 0, 0, 5, 1, 2}).readString();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeLength() {
+    new SshDecoder(new byte[] {-1, -1, -1, -1, 1, 2}).readString();
+  }
+}
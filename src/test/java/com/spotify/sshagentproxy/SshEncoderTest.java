@@ -0,0 +1,71 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.math.BigInteger;
+import org.junit.Test;
+
+public class SshEncoderTest extends TestConstants {
+
+  @Test
+  public void testRoundTripKeyBlob() throws Exception {
+    final SshDecoder decoder = new SshDecoder(KEY_BLOB2);
+    final byte[] encoded = new SshEncoder(1)
+        .writeUtf8(decoder.readAscii())
+        .writeMpint(decoder.readMpint())
+        .writeMpint(decoder.readMpint())
+        .toByteArray();
+    assertThat(encoded, equalTo(KEY_BLOB2));
+  }
+
+  @Test
+  public void testWrite() {
+    final byte[] encoded = new SshEncoder()
+        .writeByte(13)
+        .writeInt(258)
+        .writeString(new byte[] {1, 2})
+        .writeRaw(new byte[] {3})
+        .writeMpint(BigInteger.ZERO)
+        .writeMpint(BigInteger.valueOf(128))
+        .toByteArray();
+    assertThat(encoded, equalTo(new byte[] {
+        13, 0, 0, 1, 2, 0, 0, 0, 2, 1, 2, 3, 0, 0, 0, 0, 0, 0, 0, 2, 0, -128}));
+  }
+}
@@ -0,0 +1,145 @@
+/*-
+ * -\-\-
+ * ssh-agent-proxy
+ * --
+ * Copyright (C) 2016 Spotify AB
+ * --
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * -/-/-
+ */
+
+/**
+ * Copyright (c) 2015 Spotify AB.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.spotify.sshagentproxy;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.base.Charsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class SshSigTest extends TestConstants {
+
+  private static final String NAMESPACE = "file";
+
+  private final AgentProxy agentProxy = mock(AgentProxy.class);
+
+  @Test
+  public void testSign() throws Exception {
+    final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+    generator.initialize(2048);
+    final KeyPair keyPair = generator.generateKeyPair();
+    final Identity identity =
+        DefaultIdentity.from(Rsa.encode((RSAPublicKey) keyPair.getPublic()), COMMENT1);
+    final Answer<AgentSignature> answer = new Answer<AgentSignature>() {
+      @Override
+      public AgentSignature answer(final InvocationOnMock invocation) throws Throwable {
+        final Signature signature = Signature.getInstance("SHA512withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update((byte[]) invocation.getArguments()[1]);
+        return new AgentSignature("rsa-sha2-512", signature.sign());
+      }
+    };
+    when(agentProxy.sign(eq(identity), any(byte[].class), eq("rsa-sha2-512"))).thenAnswer(answer);
+
+    final byte[] message = new byte[3 * 1024 * 1024 + 17];
+    new Random(0).nextBytes(message);
+    final Path path = Files.createTempFile("ssh-agent-proxy", ".bin");
+    final String armored;
+    try {
+      Files.write(path, message);
+      armored = SshSig.sign(agentProxy, identity, NAMESPACE, path);
+    } finally {
+      Files.delete(path);
+    }
+    assertThat(armored, equalTo(SshSig.sign(agentProxy, identity, NAMESPACE, message)));
+
+    final String[] lines = armored.split("\n");
+    assertThat(lines[0], equalTo("-----BEGIN SSH SIGNATURE-----"));
+    assertThat(lines[lines.length - 1], equalTo("-----END SSH SIGNATURE-----"));
+    final StringBuilder encoded = new StringBuilder();
+    for (final String line : Arrays.copyOfRange(lines, 1, lines.length - 1)) {
+      assertTrue(line.length() <= 70);
+      encoded.append(line);
+    }
+
+    final byte[] blob = Base64.decodeBase64(encoded.toString());
+    assertThat(new String(blob, 0, 6, Charsets.US_ASCII), equalTo("SSHSIG"));
+    final SshDecoder decoder = new SshDecoder(Arrays.copyOfRange(blob, 6, blob.length));
+    assertThat(decoder.readInt(), equalTo(1));
+    assertThat(decoder.readBytes(), equalTo(identity.getKeyBlob()));
+    assertThat(decoder.readUtf8(), equalTo(NAMESPACE));
+    assertThat(decoder.readBytes(), equalTo(new byte[0]));
+    assertThat(decoder.readUtf8(), equalTo("sha512"));
+    final SshDecoder signatureBlob = new SshDecoder(decoder.readBytes());
+    assertThat(signatureBlob.readAscii(), equalTo("rsa-sha2-512"));
+
+    final Signature verifier = Signature.getInstance("SHA512withRSA");
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update(SshSig.signedData(
+        NAMESPACE, MessageDigest.getInstance("SHA-512").digest(message)));
+    assertTrue(verifier.verify(signatureBlob.readBytes()));
+  }
+
+  @Test
+  public void testSignedData() {
+    final byte[] hash = new byte[] {1, 2, 3};
+    assertThat(SshSig.signedData("git", hash), equalTo(new byte[] {
+        'S', 'S', 'H', 'S', 'I', 'G', 0, 0, 0, 3, 'g', 'i', 't', 0, 0, 0, 0,
+        0, 0, 0, 6, 's', 'h', 'a', '5', '1', '2', 0, 0, 0, 3, 1, 2, 3}));
+  }
+
+  @Test
+  public void testSignatureAlgorithm() throws Exception {
+    assertThat(SshSig.signatureAlgorithm(DefaultIdentity.from(KEY_BLOB1, COMMENT1)),
+               equalTo("rsa-sha2-512"));
+    assertThat(SshSig.signatureAlgorithm(DefaultIdentity.from(ED25519_KEY_BLOB, COMMENT1)),
+               equalTo("ssh-ed25519"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testEmptyNamespace() throws Exception {
+    SshSig.sign(agentProxy, DefaultIdentity.from(KEY_BLOB1, COMMENT1), "", DATA);
+  }
+}
@@ -37,8 +37,11 @@
 package com.spotify.sshagentproxy;
 
 import com.google.common.base.Throwables;
+import com.google.common.io.BaseEncoding;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
 
 abstract class TestConstants {
 
@@ -107,6 +110,20 @@ abstract class TestConstants {
       -107, -81, 127,
   };
 
+  // RFC 8032 section 7.1, TEST 2: an Ed25519 public key, a one byte message and its signature
+  static final byte[] ED25519_KEY_BLOB = new SshEncoder()
+      .writeUtf8("ssh-ed25519")
+      .writeString(BaseEncoding.base16().lowerCase().decode(
+          "3d4017c3e843895a92b70aa74d1b7ebc9c982ccf2ec4968cc0cd55f12af4660c"))
+      .toByteArray();
+  static final byte[] ED25519_MESSAGE = new byte[] {0x72};
+  static final byte[] ED25519_SIGNATURE = BaseEncoding.base16().lowerCase().decode(
+      "92a009a9f0d4cab8720e820b5f642540a2b27b5416503f8fb3762223ebdb69da"
+      + "085ac1e43e15996e458f3613d0f11d8c387b2eaeb4302aeeb00d291612bb0c00");
+
+  // A whole SSH2_AGENT_SIGN_RESPONSE message containing SIGN_RESPONSE_DATA
+  static final byte[] SIGN_RESPONSE;
+
   static {
     final ByteArrayOutputStream out = new ByteArrayOutputStream();
     try {
@@ -115,5 +132,18 @@ abstract class TestConstants {
     } catch (IOException e) {
       throw Throwables.propagate(e);
     }
+    SIGN_RESPONSE = out.toByteArray();
+  }
+
+  /**
+   * Return true if the JDK can build Ed25519 keys, which it does from Java 15 on.
+   */
+  static boolean isEd25519Available() {
+    try {
+      KeyFactory.getInstance("Ed25519");
+      return true;
+    } catch (NoSuchAlgorithmException e) {
+      return false;
+    }
   }
 }